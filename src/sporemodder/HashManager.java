@@ -33,11 +33,15 @@ import sporemodder.util.NameRegistry;
  */
 public class HashManager {
 	
+	/** The last instance that was initialized, returned by {@link #get()}. */
+	private static volatile HashManager instance;
+	
 	/**
-	 * Returns the current instance of the HashManager class.
+	 * Returns the current instance of the HashManager class, which is the last one that was initialized,
+	 * or null if none has been initialized yet.
 	 */
 	public static HashManager get() {
-		return null;
+		return instance;
 	}
 
 	/** The symbols used to print floating point values. This decides the decimal separator: we must always use '.' to avoid language problems. */
@@ -109,6 +113,8 @@ public class HashManager {
 		registries.put(propRegistry.getFileName(), propRegistry);
 		registries.put(simulatorRegistry.getFileName(), simulatorRegistry);
 		registries.put(projectRegistry.getFileName(), projectRegistry);
+		
+		instance = this;
 	}
 
 	public NameRegistry getProjectRegistry() {
@@ -201,8 +207,27 @@ public class HashManager {
 		}
 	}
 	
-	// Returns null if no name is found
-	private String getFileNameOptional(int hash) {
+	/**
+	 * Same as {@link #getFileName(int)}, but the names of the given registry are used before the ones of the project registry.
+	 * This is used for nested packages, whose names must not replace the names of the package that contains them.
+	 * @param hash The hash whose name will be returned.
+	 * @param packageRegistry The names of the package being unpacked; it can be null.
+	 */
+	public String getFileName(int hash, NameRegistry packageRegistry) {
+		String str = fileRegistry.getName(hash);
+		if (str == null && packageRegistry != null) {
+			str = packageRegistry.getName(hash);
+		}
+		if (str == null) {
+			str = projectRegistry.getName(hash);
+		}
+		return str != null ? str : hexToStringUC(hash);
+	}
+	
+	/**
+	 * Same as {@link #getFileName(int)}, but this returns null if the hash has no name.
+	 */
+	public String getFileNameOptional(int hash) {
 		String str = fileRegistry.getName(hash);
 		if (str != null) {
 			return str;
@@ -216,16 +241,24 @@ public class HashManager {
 	 * <li>If the name is not found in the registry, the hexadecimal representation of the hash will be returned, such as <code>0x006E62BA</code>.
 	 */
 	public String getTypeName(int hash) {
-		String str = typeRegistry.getName(hash);
-		if (str == null && extraRegistry != null) {
-			str = extraRegistry.getName(hash);
-		}
+		String str = getTypeNameOptional(hash);
 		if (str != null) {
 			return str;
 		} else {
 			return hexToStringUC(hash);
 		}
 	}
+	
+	/**
+	 * Same as {@link #getTypeName(int)}, but this returns null if the hash has no name.
+	 */
+	public String getTypeNameOptional(int hash) {
+		String str = typeRegistry.getName(hash);
+		if (str == null && extraRegistry != null) {
+			str = extraRegistry.getName(hash);
+		}
+		return str;
+	}
 
 	/**
 	 * Returns the integer that represents the hash of the given name, taken from the group and instance IDs registry (reg_file.txt).
@@ -1,11 +1,33 @@
 package sporemodder;
 
+import sporemodder.file.AsyncFileWriter;
 import sporemodder.file.Converter;
+import sporemodder.file.dbpf.CorruptResourceException;
 import sporemodder.file.dbpf.DBPFConverter;
+import sporemodder.file.dbpf.DBPFIndexCache;
+import sporemodder.file.dbpf.DBPFIndexFilter;
+import sporemodder.file.dbpf.DBPFIndexLister;
+import sporemodder.file.dbpf.DBPFProbe;
 import sporemodder.file.dbpf.DBPFUnpacker;
+import sporemodder.file.dbpf.DBPFIndexTable;
+import sporemodder.file.dbpf.DBPFItem;
+import sporemodder.file.dbpf.PackageReader;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -23,9 +45,62 @@ public class Main {
     public static void main(String[] args) throws Exception {
 
         boolean debug = false;
+        boolean memoryMapped = true;
+        boolean probe = false;
+        boolean list = false;
+        boolean validate = false;
+        boolean prefetch = false;
+        DBPFIndexLister.Format listFormat = DBPFIndexLister.Format.CSV;
+        List<String> filters = new ArrayList<>();
+        int writerThreads = AsyncFileWriter.DEFAULT_THREADS;
+        File indexCacheFolder = null;
+        List<String> arguments = new ArrayList<>();
 
-        if (args.length > 0 && (args[0].equals("-d") || args[0].equals("--debug"))) {
-            debug = true;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-d") || arg.equals("--debug")) {
+                debug = true;
+            } else if (arg.equals("--probe")) {
+                probe = true;
+            } else if (arg.equals("--filter")) {
+                if (++i >= args.length) {
+                    printUsageError("missing value for option: " + arg);
+                }
+                filters.add(args[i]);
+            } else if (arg.equals("--list")) {
+                list = true;
+            } else if (arg.equals("--format")) {
+                if (++i >= args.length) {
+                    printUsageError("missing value for option: " + arg);
+                }
+                if (args[i].equalsIgnoreCase("csv")) {
+                    listFormat = DBPFIndexLister.Format.CSV;
+                } else if (args[i].equalsIgnoreCase("json")) {
+                    listFormat = DBPFIndexLister.Format.JSON;
+                } else {
+                    printUsageError("invalid value for option " + arg + ": " + args[i]);
+                }
+            } else if (arg.equals("--prefetch")) {
+                prefetch = true;
+            } else if (arg.equals("--validate")) {
+                validate = true;
+            } else if (arg.equals("--no-mmap")) {
+                memoryMapped = false;
+            } else if (arg.equals("--writers")) {
+                writerThreads = parsePositiveInt(arg, ++i < args.length ? args[i] : null);
+            } else if (arg.equals("--index-cache")) {
+                if (++i >= args.length) {
+                    printUsageError("missing value for option: " + arg);
+                }
+                indexCacheFolder = new File(args[i]);
+            } else if (arg.startsWith("-")) {
+                printUsageError("unknown option: " + arg);
+            } else {
+                arguments.add(arg);
+            }
+        }
+
+        if (debug) {
             System.out.println("Debug mode enabled");
             configureLogger(Level.FINE);
         } else {
@@ -33,23 +108,51 @@ public class Main {
         }
 
         LoggerManager.initialize(debug);
-        int fileArgIndex = debug ? 1 : 0;
-
-        if (args.length != (fileArgIndex + 2)) {
-            System.err.println("DBPF Unpacker"); // + version
-            if (args.length == 0 || (debug && args.length == 1)) {
-                System.err.println("  error: no input file provided");
-            } else if (args.length == (fileArgIndex + 1)) {
-                System.err.println("  error: not enough arguments");
+
+        if (probe) {
+            if (arguments.isEmpty()) {
+                printUsageError("no input folder provided");
+            }
+            probe(arguments);
+            return;
+        }
+
+        // Filters are parsed before unpacking so errors are reported right away; names are resolved with this HashManager
+        DBPFIndexFilter indexFilter = null;
+        if (!filters.isEmpty() || list) {
+            new HashManager().initialize();
+        }
+        if (!filters.isEmpty()) {
+            indexFilter = new DBPFIndexFilter();
+            try {
+                for (String filter : filters) {
+                    indexFilter.add(filter);
+                }
+            } catch (IllegalArgumentException e) {
+                printUsageError("invalid filter: " + e.getMessage());
+            }
+        }
+
+        if (list) {
+            if (arguments.size() != 1) {
+                printUsageError(arguments.isEmpty() ? "no input file provided" : "too many arguments");
+            }
+            list(new File(arguments.get(0)), listFormat, indexFilter, memoryMapped, indexCacheFolder);
+            return;
+        }
+
+        if (arguments.size() != 2) {
+            if (arguments.isEmpty()) {
+                printUsageError("no input file provided");
+            } else if (arguments.size() == 1) {
+                printUsageError("not enough arguments");
             } else {
-                System.err.println("  error: too many arguments");
+                printUsageError("too many arguments");
             }
-            System.err.println("  usage: dbpf_unpacker [-d|--debug] <file> <destination>");
-            System.exit(1);
         }
 
-        File inputFile = new File(args[fileArgIndex]);
-        File outputFile = new File(args[fileArgIndex + 1]);
+        File inputFile = new File(arguments.get(0));
+        File outputFile = new File(arguments.get(1));
 
         if (!inputFile.exists()) {
             System.err.println("dbpf_unpacker v" + version);
@@ -79,10 +182,23 @@ public class Main {
         try {
             logger.fine("Creating DBPFUnpacker...");
             var unpacker = new DBPFUnpacker(inputFile, outputFile, converters);
+            unpacker.setMemoryMapped(memoryMapped);
+            unpacker.setWriterThreads(writerThreads);
+            unpacker.setIndexFilter(indexFilter);
+            unpacker.setValidating(validate);
+            unpacker.setPrefetching(prefetch);
+            if (indexCacheFolder != null) {
+                unpacker.setIndexCache(new DBPFIndexCache(indexCacheFolder));
+            }
 
             logger.fine("Starting unpacking process...");
-            unpacker.call();
-            logger.fine("Unpacking completed successfully.");
+            Exception error = unpacker.call();
+            if (error != null) {
+                throw error;
+            }
+            logger.fine("Unpacking completed.");
+            // Items can fail with or without --validate (corrupt data, files that cannot be written...), so they are always reported
+            reportItemErrors(unpacker.getExceptions());
         } catch (Exception e) {
             logger.severe("An error occurred during unpacking: " + e.getMessage());
             e.printStackTrace();
@@ -92,6 +208,118 @@ public class Main {
         logger.fine("Unpacking process finished.");
     }
 
+    /**
+     * Prints the items that could not be unpacked, in the order they are in the package, and exits with status 2 if there are any.
+     */
+    private static void reportItemErrors(Map<DBPFItem, Exception> errors) {
+        if (errors.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<DBPFItem, Exception>> entries = new ArrayList<>(errors.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getKey().chunkOffset));
+        int corrupt = 0;
+        for (Map.Entry<DBPFItem, Exception> entry : entries) {
+            Exception error = entry.getValue();
+            if (error instanceof CorruptResourceException) {
+                corrupt++;
+            }
+            System.err.println("  warning: " + entry.getKey().name + ": " + error.getMessage());
+        }
+        System.err.println(entries.size() + " items could not be unpacked" + (corrupt != 0 ? ", " + corrupt + " with corrupt data" : ""));
+        System.exit(2);
+    }
+
+    /**
+     * Prints the header of every package found in the given files or folders, one tab-separated line per package.
+     * Only the header of every file is read, never the index.
+     */
+    private static void probe(List<String> paths) {
+        int packages = 0;
+        int invalid = 0;
+        System.out.println("magic\tversion\tentries\tindex_offset\tindex_size\tfile_size\tpath");
+        for (String path : paths) {
+            List<DBPFProbe.Result> results;
+            try {
+                results = DBPFProbe.probePackages(new File(path), DBPFProbe.DEFAULT_THREADS);
+            } catch (IOException e) {
+                System.err.println("  error: could not read " + path + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            for (DBPFProbe.Result result : results) {
+                if (result.isValid()) {
+                    System.out.println(result.getMagic() + "\t" + result.header.majorVersion + "." + result.header.minVersion
+                            + "\t" + result.header.indexCount + "\t" + result.header.indexOffset + "\t" + result.header.indexSize
+                            + "\t" + result.fileSize + "\t" + result.file.getPath());
+                    packages++;
+                } else {
+                    System.err.println("  warning: invalid " + result.getMagic() + " header in " + result.file.getPath() + ": " + result.error);
+                    invalid++;
+                }
+            }
+        }
+        System.err.println(packages + " packages found" + (invalid != 0 ? ", " + invalid + " with invalid headers" : ""));
+    }
+
+    /**
+     * Prints every item in the index of the package that passes the filter, without reading their data.
+     */
+    private static void list(File inputFile, DBPFIndexLister.Format format, DBPFIndexFilter filter, boolean memoryMapped, File indexCacheFolder) {
+        DBPFIndexCache indexCache = indexCacheFolder != null ? new DBPFIndexCache(indexCacheFolder) : null;
+        try (PackageReader reader = new PackageReader(inputFile, memoryMapped, indexCache)) {
+            // Unpacking reads the names of the package into the project registry, so they are listed and filtered the same way
+            byte[] namesData = reader.getNamesData();
+            if (namesData != null) {
+                try (BufferedReader namesReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(namesData)))) {
+                    HashManager.get().getProjectRegistry().read(namesReader);
+                }
+            }
+            // System.out flushes and locks on every write, so the output is written through a plain buffered writer
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+            DBPFIndexLister lister = new DBPFIndexLister(out, format);
+            lister.writeHeader();
+            if (filter == null) {
+                lister.write(reader.getIndex());
+            } else {
+                DBPFIndexTable table = reader.getIndex();
+                for (int i = 0; i < table.size(); i++) {
+                    if (filter.matches(table, i)) {
+                        lister.write(table, i);
+                    }
+                }
+            }
+            lister.flush();
+        } catch (IOException e) {
+            System.err.println("  error: could not list " + inputFile.getPath() + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printUsageError(String error) {
+        System.err.println("DBPF Unpacker"); // + version
+        System.err.println("  error: " + error);
+        System.err.println("  usage: dbpf_unpacker [-d|--debug] [--no-mmap] [--prefetch] [--validate] [--writers <n>] [--index-cache <dir>] [--filter <conditions>]... <file> <destination>");
+        System.err.println("         dbpf_unpacker --probe <file-or-folder>...");
+        System.err.println("         dbpf_unpacker --list [--format csv|json] [--no-mmap] [--index-cache <dir>] [--filter <conditions>]... <file>");
+        System.exit(1);
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        if (value == null) {
+            printUsageError("missing value for option: " + option);
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        printUsageError("invalid value for option " + option + ": " + value);
+        return -1;
+    }
+
     private static void configureLogger(Level level) {
         Logger rootLogger = Logger.getLogger("");
         rootLogger.setLevel(level);
@@ -0,0 +1,153 @@
+package sporemodder.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import sporemodder.file.filestructures.MemoryStream;
+
+/**
+ * Writes output files on a dedicated pool of writer threads, so the threads that read and decompress the data
+ * never wait for the filesystem. The amount of writes that can be pending at once is limited: when the limit is reached,
+ * new writes wait until a previous one finishes. This also limits the amount of memory used by data waiting to be written.
+ * <p>
+ * Every write returns a {@link CompletableFuture} that is completed when the file has been written, or completed exceptionally
+ * if there was an error. Writes to the same file are done one after the other in the order they were submitted,
+ * so the last one always wins.
+ */
+public class AsyncFileWriter implements Closeable {
+
+	/** The default amount of writer threads, which is also the maximum amount of files open at once. */
+	public static final int DEFAULT_THREADS = 4;
+	/** The default maximum amount of writes that can be pending, including the ones being written. */
+	public static final int DEFAULT_MAX_PENDING = 64;
+
+	/** An operation that writes a single file. */
+	@FunctionalInterface
+	public static interface FileWriteTask {
+		public void write(File file) throws IOException;
+	}
+
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final Semaphore pending;
+	/** The last write submitted for every file that is still being written. */
+	private final ConcurrentHashMap<File, CompletableFuture<Void>> lastWrites = new ConcurrentHashMap<File, CompletableFuture<Void>>();
+
+	public AsyncFileWriter() {
+		this(DEFAULT_THREADS, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * @param threads The amount of writer threads, which is the maximum amount of files that will be open at once.
+	 * @param maxPending The maximum amount of writes that can be pending.
+	 */
+	public AsyncFileWriter(int threads, int maxPending) {
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, "File writer " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.maxPending = Math.max(1, maxPending);
+		pending = new Semaphore(this.maxPending);
+	}
+
+	/**
+	 * Writes a file on a writer thread, waiting first if there are too many pending writes.
+	 * @param file The file that will be written.
+	 * @param task The operation that writes the file.
+	 * @param onComplete An optional function called on the writer thread once the write has finished, with the exception
+	 * that caused the write to fail or null if it succeeded. It is always called before {@link #flush()} returns.
+	 * @return A future that completes when the file has been written.
+	 */
+	public CompletableFuture<Void> write(File file, FileWriteTask task, Consumer<Exception> onComplete) throws InterruptedException {
+		pending.acquire();
+		try {
+			Runnable runnable = () -> {
+				Exception error = null;
+				try {
+					task.write(file);
+				}
+				catch (Exception e) {
+					error = e;
+				}
+				try {
+					if (onComplete != null) onComplete.accept(error);
+				}
+				finally {
+					pending.release();
+				}
+				if (error != null) {
+					throw new CompletionException(error);
+				}
+			};
+
+			File key = file.getAbsoluteFile();
+			CompletableFuture<Void> future = lastWrites.compute(key, (k, previous) -> previous == null ?
+					CompletableFuture.runAsync(runnable, executor) :
+					previous.handle((result, error) -> null).thenRunAsync(runnable, executor));
+			future.whenComplete((result, error) -> lastWrites.remove(key, future));
+			return future;
+		}
+		catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the content of the stream into a file on a writer thread, waiting first if there are too many pending writes.
+	 * The writer takes ownership of the stream: it is closed once it has been written, even if there was an error.
+	 * @param file The file that will be written.
+	 * @param data The data that will be written.
+	 * @param onComplete An optional function called once the write has finished, see {@link #write(File, FileWriteTask, Consumer)}.
+	 * @return A future that completes when the file has been written.
+	 */
+	public CompletableFuture<Void> write(File file, MemoryStream data, Consumer<Exception> onComplete) throws InterruptedException {
+		try {
+			return write(file, outputFile -> {
+				try {
+					data.writeToFile(outputFile);
+				}
+				finally {
+					data.close();
+				}
+			}, onComplete);
+		}
+		catch (InterruptedException | RuntimeException e) {
+			data.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until all the writes submitted so far have finished, including their completion functions.
+	 */
+	public void flush() throws InterruptedException {
+		pending.acquire(maxPending);
+		pending.release(maxPending);
+	}
+
+	/**
+	 * Waits until all pending writes have finished, and stops the writer threads.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the data of a resource is not valid, for example because its compressed data is truncated, refers to
+ * bytes that don't exist, or doesn't match the size stored in the index. The exception says where in the data
+ * the problem was found.
+ */
+public class CorruptResourceException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The position in the compressed data (counting from its header) where the problem was found. */
+	private final long offset;
+
+	/**
+	 * @param message What is wrong with the data.
+	 * @param offset The position in the compressed data, counting from its header, where the problem was found.
+	 */
+	public CorruptResourceException(String message, long offset) {
+		super(message + " (at offset " + offset + ")");
+		this.offset = offset;
+	}
+
+	/** Returns the position in the compressed data, counting from its header, where the problem was found. */
+	public long getOffset() {
+		return offset;
+	}
+}
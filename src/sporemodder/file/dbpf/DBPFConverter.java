@@ -1,6 +1,8 @@
 package sporemodder.file.dbpf;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
@@ -12,32 +14,47 @@ public class DBPFConverter implements Converter {
 	
 	public static final int TYPE_ID = 0x06EFC6AA;
 	
-	private DBPFUnpackingTask createUnpackTask(StreamReader stream, File outputFile) throws Exception {
-		if (outputFile.exists() && outputFile.isDirectory()) {
-			for (File file : outputFile.listFiles()) {
+	/**
+	 * Prepares the folder where a nested package is unpacked, removing the files left from previous unpackings.
+	 */
+	static void clearOutputFolder(File outputFile) {
+		File[] files = outputFile.listFiles();
+		if (files != null) {
+			for (File file : files) {
 				file.delete();
 			}
 		}
 		outputFile.mkdir();
+	}
+	
+	private DBPFUnpackingTask createUnpackTask(StreamReader stream, File outputFile) throws Exception {
+		clearOutputFolder(outputFile);
 		
-		stream.setBaseOffset(stream.getFilePointer());
 		DBPFUnpackingTask task = new DBPFUnpackingTask(stream, outputFile);
+		// Packages nested inside this one are unpacked as well, in the same pool
+		task.getConverters().add(this);
+		task.setNested(true);
 
 		return task;
 	}
 	
 	@Override
 	public boolean decode(StreamReader stream, File outputFolder, ResourceKey key) throws Exception {
-		long oldBase = stream.getBaseOffset();
-		
-		DBPFUnpackingTask task = createUnpackTask(stream, Converter.getOutputFile(key, outputFolder, "unpacked"));
-		task.call();
-		
-		stream.setBaseOffset(oldBase);
+		// The nested package is read through its own view, so the parent stream is not modified
+		try (StreamReader packageStream = stream.slice(stream.getFilePointer(), stream.length() - stream.getFilePointerAbs())) {
+			DBPFUnpackingTask task = createUnpackTask(packageStream, Converter.getOutputFile(key, outputFolder, "unpacked"));
+			Exception error = task.call();
+			if (error != null) {
+				throw error;
+			}
+			// The files that could be read are kept, but the caller must know the package was not completely unpacked
+			Map<DBPFItem, Exception> itemErrors = task.getExceptions();
+			if (!itemErrors.isEmpty()) {
+				throw new IOException(itemErrors.size() + " items of the nested package could not be unpacked", itemErrors.values().iterator().next());
+			}
+		}
 		
-		// Always return true, even if there were errors?
 		return true;
-		
 	}
 
 	@Override
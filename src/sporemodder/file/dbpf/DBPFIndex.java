@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import sporemodder.file.ResourceKey;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
 
@@ -33,9 +34,15 @@ public class DBPFIndex {
 	public int typeID = -1;
 	/** A list with all the items in the index. This only stores the items metadata such as the size, compression, etc, but not the data itself. */
 	public final List<DBPFItem> items = new ArrayList<DBPFItem>();
+	/** The items in the index stored as columns, only used if it was read with {@link #readTable(StreamReader, int, boolean)}. */
+	public DBPFIndexTable table;
 	
 	/** The position where the items metadata is stored. Only used for reading. */
 	private long itemsOffset;
+	/** Finds items in the {@link #items} list by their IDs, created on the first lookup. */
+	private DBPFKeyIndex itemsKeyIndex;
+	/** The amount of items there were when {@link #itemsKeyIndex} was created. */
+	private int itemsKeyIndexSize;
 
 	/**
 	 * Reads the parameters of this index; this does not include the DBPFItems that it contains.
@@ -97,26 +104,87 @@ public class DBPFIndex {
 		stream.writeLEInt(0);
 	}
 	
+	/**
+	 * Reads the items of this index into the {@link #items} list.
+	 * @param stream
+	 * @param numItems The amount of items in the index.
+	 * @param isDBBF Whether the package is a big DBPF, which uses 64-bit offsets.
+	 * @throws IOException
+	 */
 	public void readItems(StreamReader stream, int numItems, boolean isDBBF) throws IOException {
-		stream.seek(itemsOffset);
-		
-		boolean readGroup = groupID == -1;
-		boolean readType = typeID == -1;
+		DBPFIndexTable table = readTable(stream, numItems, isDBBF);
+		this.table = null;
 		
 		for (int i = 0; i < numItems; i++) {
-			
-			DBPFItem item = new DBPFItem();
-			
-			if (!readGroup) {
-				item.name.setGroupID(groupID);
-			}
-			if (!readType) {
-				item.name.setTypeID(typeID);
+			items.add(table.getItem(i));
+		}
+	}
+	
+	/**
+	 * Reads the items of this index into a {@link DBPFIndexTable}, which is also assigned to {@link #table}.
+	 * This is much lighter than {@link #readItems(StreamReader, int, boolean)}, as no objects are created for the items.
+	 * @param stream
+	 * @param numItems The amount of items in the index.
+	 * @param isDBBF Whether the package is a big DBPF, which uses 64-bit offsets.
+	 * @throws IOException
+	 */
+	public DBPFIndexTable readTable(StreamReader stream, int numItems, boolean isDBBF) throws IOException {
+		stream.seek(itemsOffset);
+		table = DBPFIndexTable.read(stream, numItems, isDBBF, typeID, groupID);
+		return table;
+	}
+	
+	/**
+	 * Returns the key index of the {@link #items} list, creating it if necessary. It is created again if items have
+	 * been added or removed, but the keys of the items must not be modified once it has been used.
+	 */
+	private synchronized DBPFKeyIndex getItemsKeyIndex() {
+		if (itemsKeyIndex == null || itemsKeyIndexSize != items.size()) {
+			int size = items.size();
+			int[] typeIDs = new int[size];
+			int[] groupIDs = new int[size];
+			int[] instanceIDs = new int[size];
+			for (int i = 0; i < size; i++) {
+				ResourceKey name = items.get(i).name;
+				typeIDs[i] = name.getTypeID();
+				groupIDs[i] = name.getGroupID();
+				instanceIDs[i] = name.getInstanceID();
 			}
-			item.read(stream, isDBBF, readType, readGroup);
-			
-			items.add(item);
+			itemsKeyIndex = new DBPFKeyIndex(typeIDs, groupIDs, instanceIDs);
+			itemsKeyIndexSize = size;
+		}
+		return itemsKeyIndex;
+	}
+	
+	/**
+	 * Returns the first item in the {@link #items} list with the given resource key, or null if there is none.
+	 * The lookup takes constant time, using a hash table created on the first call.
+	 */
+	public DBPFItem getItem(ResourceKey key) {
+		int index = getItemsKeyIndex().indexOf(key.getGroupID(), key.getInstanceID(), key.getTypeID());
+		return index == -1 ? null : items.get(index);
+	}
+	
+	/**
+	 * Returns all the items in the {@link #items} list with the given group ID (folder name), in the order they are in the index.
+	 */
+	public List<DBPFItem> getItemsInGroup(int groupID) {
+		return getItems(getItemsKeyIndex().indicesOfGroup(groupID));
+	}
+	
+	/**
+	 * Returns all the items in the {@link #items} list with the given type ID (extension), in the order they are in the index.
+	 */
+	public List<DBPFItem> getItemsOfType(int typeID) {
+		return getItems(getItemsKeyIndex().indicesOfType(typeID));
+	}
+	
+	private List<DBPFItem> getItems(int[] indices) {
+		List<DBPFItem> result = new ArrayList<DBPFItem>(indices.length);
+		for (int index : indices) {
+			result.add(items.get(index));
 		}
+		return result;
 	}
 	
 	public void writeItems(StreamWriter stream, boolean isDBBF) throws IOException {
@@ -0,0 +1,297 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import sporemodder.LoggerManager;
+
+/**
+ * Keeps the parsed index of packages in a folder, so that opening a package that has not changed does not need to
+ * read and parse its index again. Every package has its own cache file, which stores the header, the index as a
+ * {@link DBPFIndexTable} and the content of the <code>sporemaster/names</code> file, if any.
+ * <p>
+ * A cache file is only used if the path, size and modification time of the package are the same as when it was written,
+ * and so is a checksum of the package header. The rest of the cache file, including the table, is only trusted if its own
+ * checksum is correct. Cache files are read with plain reads, never mapped, so they can always be replaced; they are
+ * replaced atomically, so multiple processes can share the same cache folder.
+ */
+public class DBPFIndexCache {
+
+	private static final Logger logger = LoggerManager.getLogger(DBPFIndexCache.class);
+
+	private static final int MAGIC = 0x43494244;  // DBIC
+	private static final int VERSION = 2;
+	/** How many bytes of the package are used for the header checksum; this covers both DBPF and DBBF headers. */
+	private static final int HEADER_SIZE = 128;
+	private static final String EXTENSION = ".dbpfidx";
+	/** The size of the prefix fields after the path: package size, modification time, header checksum, data size and data checksum. */
+	private static final int PREFIX_END_SIZE = 8 + 8 + 4 + 4 + 4;
+
+	/** The information of a package loaded from the cache. */
+	public static class Entry {
+		/** The header of the package; its index has the {@link DBPFIndex#table} already assigned. */
+		public final DatabasePackedFile header;
+		/** The items in the index of the package. */
+		public final DBPFIndexTable table;
+		/** The content of the <code>sporemaster/names</code> file of the package, or null if it doesn't have one. */
+		public final byte[] namesData;
+
+		private Entry(DatabasePackedFile header, DBPFIndexTable table, byte[] namesData) {
+			this.header = header;
+			this.table = table;
+			this.namesData = namesData;
+		}
+	}
+
+	private final File folder;
+
+	/**
+	 * @param folder The folder where cache files are stored; it is created if it doesn't exist.
+	 */
+	public DBPFIndexCache(File folder) {
+		this.folder = folder;
+	}
+
+	/** Returns the folder where cache files are stored. */
+	public File getFolder() {
+		return folder;
+	}
+
+	private static String getCanonicalPath(File packageFile) throws IOException {
+		return packageFile.getCanonicalPath();
+	}
+
+	/** Returns the cache file used for the given package; the name is a 64-bit FNV-1a hash of its path. */
+	private File getCacheFile(String path) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return new File(folder, String.format("%016x", hash) + EXTENSION);
+	}
+
+	/** Returns a checksum of the header of the package. */
+	private static int getHeaderChecksum(File packageFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(packageFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) != -1) {
+				// Keep reading until the header is complete or the file ends
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), 0, buffer.position());
+			return (int) crc.getValue();
+		}
+	}
+
+	/**
+	 * Reads bytes from the channel at the given position until the buffer is full, then flips it.
+	 * @throws EOFException If the channel ends before the buffer is full.
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException("The cache file is truncated");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int getChecksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns the cached index of the given package, or null if there is no valid cache file for it.
+	 * Errors reading the cache are not thrown, the package is just considered to not be in the cache.
+	 */
+	public Entry load(File packageFile) {
+		try {
+			String path = getCanonicalPath(packageFile);
+			File cacheFile = getCacheFile(path);
+			if (!cacheFile.isFile()) {
+				return null;
+			}
+
+			// The prefix is checked first, so the rest of the file is only read if it belongs to this version of the package
+			ByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				long fileSize = channel.size();
+				if (fileSize < 12) {
+					return null;
+				}
+				buffer = readFully(channel, 0, 12);
+				if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+					return null;
+				}
+				int pathLength = buffer.getInt();
+				if (pathLength < 0 || 12L + pathLength + PREFIX_END_SIZE > fileSize) {
+					return null;
+				}
+				buffer = readFully(channel, 12, pathLength + PREFIX_END_SIZE);
+				byte[] pathBytes = new byte[pathLength];
+				buffer.get(pathBytes);
+				if (!Arrays.equals(pathBytes, path.getBytes(StandardCharsets.UTF_8))
+						|| buffer.getLong() != packageFile.length()
+						|| buffer.getLong() != packageFile.lastModified()
+						|| buffer.getInt() != getHeaderChecksum(packageFile)) {
+					logger.fine("Index cache is outdated for " + path);
+					return null;
+				}
+				int dataLength = buffer.getInt();
+				int dataChecksum = buffer.getInt();
+				long dataOffset = 12L + pathLength + PREFIX_END_SIZE;
+				if (dataLength < 0 || dataOffset + dataLength != fileSize) {
+					logger.warning("Index cache of " + path + " has an invalid size");
+					return null;
+				}
+				buffer = readFully(channel, dataOffset, dataLength);
+				if (getChecksum(buffer) != dataChecksum) {
+					logger.warning("Index cache of " + path + " is corrupt");
+					return null;
+				}
+			}
+
+			DatabasePackedFile header = new DatabasePackedFile();
+			header.isDBBF = buffer.get() != 0;
+			header.majorVersion = buffer.getInt();
+			header.minVersion = buffer.getInt();
+			header.indexMajorVersion = buffer.getInt();
+			header.indexMinorVersion = buffer.getInt();
+			header.indexCount = buffer.getInt();
+			header.indexOffset = buffer.getLong();
+			header.indexSize = buffer.getLong();
+			header.index.groupID = buffer.getInt();
+			header.index.typeID = buffer.getInt();
+
+			DBPFIndexTable table = DBPFIndexTable.read(buffer);
+			header.index.table = table;
+
+			byte[] namesData = null;
+			int namesLength = buffer.getInt();
+			if (namesLength != -1) {
+				namesData = new byte[namesLength];
+				buffer.get(namesData);
+			}
+
+			logger.fine("Loaded index of " + path + " from the cache");
+			return new Entry(header, table, namesData);
+		}
+		catch (IOException | RuntimeException e) {
+			logger.warning("Could not read index cache for " + packageFile.getAbsolutePath() + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index of the given package into the cache, replacing the previous cache file if there was one.
+	 * @param packageFile The package the index belongs to.
+	 * @param header The header of the package, with its index already read.
+	 * @param table The items of the index.
+	 * @param namesData The content of the <code>sporemaster/names</code> file of the package, or null if it doesn't have one.
+	 * @throws IOException If the cache file could not be written.
+	 */
+	public void store(File packageFile, DatabasePackedFile header, DBPFIndexTable table, byte[] namesData) throws IOException {
+		String path = getCanonicalPath(packageFile);
+		byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+
+		int prefixSize = 4 + 4 + 4 + pathBytes.length + PREFIX_END_SIZE;
+		int dataSize = 1 + 5 * 4 + 8 + 8 + 4 + 4
+				+ table.getSerializedSize()
+				+ 4 + (namesData == null ? 0 : namesData.length);
+		ByteBuffer buffer = ByteBuffer.allocate(prefixSize + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+
+		// The data goes after the prefix, which ends with its size and checksum
+		buffer.position(prefixSize);
+		buffer.put((byte) (header.isDBBF ? 1 : 0));
+		buffer.putInt(header.majorVersion);
+		buffer.putInt(header.minVersion);
+		buffer.putInt(header.indexMajorVersion);
+		buffer.putInt(header.indexMinorVersion);
+		buffer.putInt(header.indexCount);
+		buffer.putLong(header.indexOffset);
+		buffer.putLong(header.indexSize);
+		buffer.putInt(header.index.groupID);
+		buffer.putInt(header.index.typeID);
+
+		table.write(buffer);
+
+		if (namesData == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(namesData.length);
+			buffer.put(namesData);
+		}
+
+		buffer.position(prefixSize);
+		int dataChecksum = getChecksum(buffer);
+		buffer.position(0);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(pathBytes.length);
+		buffer.put(pathBytes);
+		buffer.putLong(packageFile.length());
+		buffer.putLong(packageFile.lastModified());
+		buffer.putInt(getHeaderChecksum(packageFile));
+		buffer.putInt(dataSize);
+		buffer.putInt(dataChecksum);
+		buffer.position(0);
+
+		// Write into a temporary file first, so other processes never see an incomplete cache file
+		Files.createDirectories(folder.toPath());
+		Path cachePath = getCacheFile(path).toPath();
+		Path tempPath = Files.createTempFile(folder.toPath(), cachePath.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			try {
+				Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(tempPath);
+		}
+		logger.fine("Stored index of " + path + " in the cache");
+	}
+}
@@ -0,0 +1,278 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import sporemodder.HashManager;
+
+/**
+ * Decides which items of a package are unpacked, testing the columns of the {@link DBPFIndexTable} directly,
+ * so items that are not selected are never created nor read. A filter is a list of conditions that must all be true;
+ * conditions that only compare IDs are tested first, and the ones that need the names of the item last.
+ * <p>
+ * Filters can be built with the methods of this class or parsed from text with {@link #parse(String)}. The text
+ * is a list of conditions separated by spaces:
+ * <li><code>group=animations|0x40404000</code>: the group is one of the given names or hashes.
+ * <li><code>type=prop|rw4</code>: the type is one of the given names or hashes.
+ * <li><code>instance=ce_*</code>: the instance name matches the glob, where <code>*</code> is any text and <code>?</code> any character;
+ * it is not case sensitive, and if there are no wildcards only the hash is compared.
+ * <li><code>name~regex</code>: the unpacked path of the item, <code>group/instance.type</code>, contains a match of the regular expression.
+ * <li><code>size=min..max</code>: the uncompressed size is in the range; either limit can be omitted, and a single number is an exact size.
+ * <li><code>compressed=true</code> or <code>compressed=false</code>: whether the item is compressed.
+ * <p>
+ * Names are resolved with the current {@link HashManager}, which must be initialized before parsing.
+ */
+public class DBPFIndexFilter {
+
+	/** A condition tested on an item of the index. */
+	@FunctionalInterface
+	public static interface IndexPredicate {
+		public boolean test(DBPFIndexTable table, int index);
+	}
+
+	/** Conditions that only read the columns of the table. */
+	private final List<IndexPredicate> columnPredicates = new ArrayList<IndexPredicate>();
+	/** Conditions that need the names of the item, which are slower. */
+	private final List<IndexPredicate> namePredicates = new ArrayList<IndexPredicate>();
+	/** All the conditions in the order they are tested. */
+	private IndexPredicate[] predicates = new IndexPredicate[0];
+
+	/**
+	 * Parses the conditions of the given text into a new filter.
+	 * @throws IllegalArgumentException If the text is not a valid filter.
+	 */
+	public static DBPFIndexFilter parse(String text) {
+		DBPFIndexFilter filter = new DBPFIndexFilter();
+		filter.add(text);
+		return filter;
+	}
+
+	/**
+	 * Parses the conditions of the given text and adds them to this filter.
+	 * @throws IllegalArgumentException If the text is not a valid filter.
+	 */
+	public DBPFIndexFilter add(String text) {
+		HashManager hasher = HashManager.get();
+		for (String condition : text.trim().split("\\s+")) {
+			if (condition.isEmpty()) {
+				continue;
+			}
+			int operator = condition.indexOf('=');
+			int regexOperator = condition.indexOf('~');
+			if (regexOperator != -1 && (operator == -1 || regexOperator < operator)) {
+				if (!condition.substring(0, regexOperator).equals("name")) {
+					throw new IllegalArgumentException("Only names can be matched with '~': " + condition);
+				}
+				nameRegex(condition.substring(regexOperator + 1));
+				continue;
+			}
+			if (operator == -1) {
+				throw new IllegalArgumentException("Invalid filter condition, expected key=value: " + condition);
+			}
+
+			String key = condition.substring(0, operator);
+			String value = condition.substring(operator + 1);
+			if (value.isEmpty()) {
+				throw new IllegalArgumentException("Missing value in filter condition: " + condition);
+			}
+			switch (key) {
+			case "group":
+				groups(parseHashes(value, false, hasher));
+				break;
+			case "type":
+				types(parseHashes(value, true, hasher));
+				break;
+			case "instance":
+				instanceGlob(value);
+				break;
+			case "size":
+				parseSize(value);
+				break;
+			case "compressed":
+				if (!value.equals("true") && !value.equals("false")) {
+					throw new IllegalArgumentException("Compressed must be true or false: " + condition);
+				}
+				compressed(value.equals("true"));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown filter key: " + key);
+			}
+		}
+		return this;
+	}
+
+	private static int[] parseHashes(String value, boolean isType, HashManager hasher) {
+		String[] names = value.split("\\|");
+		int[] hashes = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			try {
+				hashes[i] = isType ? hasher.getTypeHash(names[i]) : hasher.getFileHash(names[i]);
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid hash: " + names[i]);
+			}
+		}
+		return hashes;
+	}
+
+	private void parseSize(String value) {
+		try {
+			int separator = value.indexOf("..");
+			if (separator == -1) {
+				long size = Long.parseLong(value);
+				sizeRange(size, size);
+			}
+			else {
+				String min = value.substring(0, separator);
+				String max = value.substring(separator + 2);
+				sizeRange(min.isEmpty() ? 0 : Long.parseLong(min), max.isEmpty() ? Long.MAX_VALUE : Long.parseLong(max));
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size range: " + value);
+		}
+	}
+
+	private DBPFIndexFilter addColumnPredicate(IndexPredicate predicate) {
+		columnPredicates.add(predicate);
+		updatePredicates();
+		return this;
+	}
+
+	private DBPFIndexFilter addNamePredicate(IndexPredicate predicate) {
+		namePredicates.add(predicate);
+		updatePredicates();
+		return this;
+	}
+
+	private void updatePredicates() {
+		List<IndexPredicate> all = new ArrayList<IndexPredicate>(columnPredicates);
+		all.addAll(namePredicates);
+		predicates = all.toArray(new IndexPredicate[all.size()]);
+	}
+
+	private static boolean contains(int[] values, int value) {
+		for (int v : values) {
+			if (v == value) return true;
+		}
+		return false;
+	}
+
+	/** Only accepts items whose group ID is one of the given ones. */
+	public DBPFIndexFilter groups(int... groupIDs) {
+		int[] values = groupIDs.clone();
+		return addColumnPredicate((table, index) -> contains(values, table.getGroupID(index)));
+	}
+
+	/** Only accepts items whose type ID is one of the given ones. */
+	public DBPFIndexFilter types(int... typeIDs) {
+		int[] values = typeIDs.clone();
+		return addColumnPredicate((table, index) -> contains(values, table.getTypeID(index)));
+	}
+
+	/** Only accepts items whose instance ID is one of the given ones. */
+	public DBPFIndexFilter instances(int... instanceIDs) {
+		int[] values = instanceIDs.clone();
+		return addColumnPredicate((table, index) -> contains(values, table.getInstanceID(index)));
+	}
+
+	/**
+	 * Only accepts items whose instance name matches the glob, ignoring case. If the glob has no wildcards,
+	 * it is compared as a hash.
+	 */
+	public DBPFIndexFilter instanceGlob(String glob) {
+		if (glob.indexOf('*') == -1 && glob.indexOf('?') == -1) {
+			return instances(HashManager.get().getFileHash(glob));
+		}
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > start) regex.append(Pattern.quote(glob.substring(start, i)));
+				regex.append(c == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < glob.length()) regex.append(Pattern.quote(glob.substring(start)));
+
+		Pattern pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+		return addNamePredicate((table, index) ->
+				pattern.matcher(HashManager.get().getFileName(table.getInstanceID(index))).matches());
+	}
+
+	/**
+	 * Only accepts items whose unpacked path, <code>group/instance.type</code>, contains a match of the regular expression.
+	 * @throws IllegalArgumentException If the regular expression is not valid.
+	 */
+	public DBPFIndexFilter nameRegex(String regex) {
+		Pattern pattern;
+		try {
+			pattern = Pattern.compile(regex);
+		}
+		catch (PatternSyntaxException e) {
+			throw new IllegalArgumentException("Invalid name regular expression: " + e.getMessage());
+		}
+		return addNamePredicate((table, index) -> {
+			HashManager hasher = HashManager.get();
+			String path = hasher.getFileName(table.getGroupID(index)) + "/" + hasher.getFileName(table.getInstanceID(index))
+					+ "." + hasher.getTypeName(table.getTypeID(index));
+			return pattern.matcher(path).find();
+		});
+	}
+
+	/** Only accepts items whose uncompressed size is between the given limits, both included. */
+	public DBPFIndexFilter sizeRange(long minSize, long maxSize) {
+		return addColumnPredicate((table, index) -> {
+			long size = table.getMemSize(index) & 0xFFFFFFFFL;
+			return size >= minSize && size <= maxSize;
+		});
+	}
+
+	/** Only accepts items that are compressed (if true) or not compressed (if false). */
+	public DBPFIndexFilter compressed(boolean isCompressed) {
+		return addColumnPredicate((table, index) -> table.isCompressed(index) == isCompressed);
+	}
+
+	/** Adds a custom condition; it is tested after the conditions on IDs and sizes. */
+	public DBPFIndexFilter add(IndexPredicate predicate) {
+		return addNamePredicate(predicate);
+	}
+
+	/**
+	 * Returns whether the item at the given position of the index passes all the conditions of the filter.
+	 */
+	public boolean matches(DBPFIndexTable table, int index) {
+		for (IndexPredicate predicate : predicates) {
+			if (!predicate.test(table, index)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns whether the filter has no conditions, so it accepts every item. */
+	public boolean isEmpty() {
+		return predicates.length == 0;
+	}
+}
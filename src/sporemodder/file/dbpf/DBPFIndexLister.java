@@ -0,0 +1,251 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import sporemodder.HashManager;
+
+/**
+ * Writes the items of a package index as text, one line per item, without reading any of their data. Lines can be
+ * written as CSV or as newline-delimited JSON objects, with the names of the group, instance and type resolved
+ * through the {@link HashManager}, followed by the chunk offset, compressed size, memory size and compressed flag.
+ * <p>
+ * Every line is built in a reused character buffer, so listing an index barely creates any objects; the writer
+ * should be buffered, as the lines are written one by one.
+ */
+public class DBPFIndexLister {
+
+	/** The output formats of the lister. */
+	public static enum Format {
+		/** Comma-separated values, with a header line. */
+		CSV,
+		/** One JSON object per line. */
+		JSON
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final String[] COLUMNS = {"group", "instance", "type", "chunkOffset", "compressedSize", "memSize", "isCompressed"};
+
+	private final Writer out;
+	private final Format format;
+	private final HashManager hasher;
+
+	/** The line being written. */
+	private char[] line = new char[256];
+	private int length;
+
+	// Items are usually sorted by group and type, so the last name of each is kept instead of looking it up every time
+	private boolean hasLastGroup;
+	private int lastGroupID;
+	private String lastGroupName;
+	private boolean hasLastType;
+	private int lastTypeID;
+	private String lastTypeName;
+
+	/**
+	 * @param out Where the lines are written; it should be buffered.
+	 * @param format The format of the lines.
+	 */
+	public DBPFIndexLister(Writer out, Format format) {
+		this.out = out;
+		this.format = format;
+		this.hasher = HashManager.get();
+	}
+
+	/**
+	 * Writes the line with the column names, only if the format is CSV.
+	 */
+	public void writeHeader() throws IOException {
+		if (format == Format.CSV) {
+			out.write(String.join(",", COLUMNS));
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Writes a line for every item of the given index, in the order they are in the index.
+	 */
+	public void write(DBPFIndexTable table) throws IOException {
+		for (int i = 0; i < table.size(); i++) {
+			write(table, i);
+		}
+	}
+
+	/**
+	 * Writes the line of the item at the given position of the index.
+	 */
+	public void write(DBPFIndexTable table, int index) throws IOException {
+		length = 0;
+		int groupID = table.getGroupID(index);
+		int typeID = table.getTypeID(index);
+
+		if (!hasLastGroup || lastGroupID != groupID) {
+			lastGroupID = groupID;
+			lastGroupName = hasher.getFileNameOptional(groupID);
+			hasLastGroup = true;
+		}
+		if (!hasLastType || lastTypeID != typeID) {
+			lastTypeID = typeID;
+			lastTypeName = hasher.getTypeNameOptional(typeID);
+			hasLastType = true;
+		}
+
+		if (format == Format.JSON) {
+			append('{');
+		}
+		appendName(0, lastGroupName, groupID);
+		appendName(1, hasher.getFileNameOptional(table.getInstanceID(index)), table.getInstanceID(index));
+		appendName(2, lastTypeName, typeID);
+		appendNumber(3, table.getChunkOffset(index));
+		appendNumber(4, table.getCompressedSize(index));
+		appendNumber(5, table.getMemSize(index));
+		appendKey(6);
+		append(table.isCompressed(index) ? "true" : "false");
+		if (format == Format.JSON) {
+			append('}');
+		}
+		append('\n');
+
+		out.write(line, 0, length);
+	}
+
+	/**
+	 * Flushes the writer.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > line.length) {
+			line = Arrays.copyOf(line, Math.max(line.length * 2, length + extra));
+		}
+	}
+
+	private void append(char c) {
+		ensureCapacity(1);
+		line[length++] = c;
+	}
+
+	private void append(String str) {
+		ensureCapacity(str.length());
+		str.getChars(0, str.length(), line, length);
+		length += str.length();
+	}
+
+	/** Writes the separator of the given column and, in JSON, its key. */
+	private void appendKey(int column) {
+		if (format == Format.JSON) {
+			if (column != 0) {
+				append(',');
+			}
+			append('"');
+			append(COLUMNS[column]);
+			append("\":");
+		}
+		else if (column != 0) {
+			append(',');
+		}
+	}
+
+	/** Writes the name of a hash, or the hash in hexadecimal (like {@link HashManager#hexToStringUC(int)}) if it has no name. */
+	private void appendName(int column, String name, int hash) {
+		appendKey(column);
+		if (name == null) {
+			boolean isJSON = format == Format.JSON;
+			ensureCapacity(12);
+			if (isJSON) line[length++] = '"';
+			line[length++] = '0';
+			line[length++] = 'x';
+			for (int shift = 28; shift >= 0; shift -= 4) {
+				line[length++] = HEX_DIGITS[(hash >>> shift) & 0xF];
+			}
+			if (isJSON) line[length++] = '"';
+		}
+		else if (format == Format.JSON) {
+			appendJSONString(name);
+		}
+		else {
+			appendCSVString(name);
+		}
+	}
+
+	private void appendNumber(int column, long value) {
+		appendKey(column);
+		if (value < 0) {
+			// Never happens in valid packages; not worth optimizing
+			append(Long.toString(value));
+			return;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		ensureCapacity(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			line[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void appendJSONString(String str) {
+		append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				append('\\');
+				append(c);
+			}
+			else if (c < 0x20) {
+				append("\\u00");
+				append(HEX_DIGITS[c >>> 4]);
+				append(HEX_DIGITS[c & 0xF]);
+			}
+			else {
+				append(c);
+			}
+		}
+		append('"');
+	}
+
+	private void appendCSVString(String str) {
+		boolean needsQuotes = false;
+		for (int i = 0; i < str.length() && !needsQuotes; i++) {
+			char c = str.charAt(i);
+			needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!needsQuotes) {
+			append(str);
+			return;
+		}
+		append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"') {
+				append('"');
+			}
+			append(c);
+		}
+		append('"');
+	}
+}
@@ -0,0 +1,464 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sporemodder.file.ResourceKey;
+import sporemodder.file.filestructures.ByteArrayPool;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * The items of a {@link DBPFIndex} stored as columns of primitive arrays, one entry per item, instead of one {@link DBPFItem}
+ * object per item. This uses a fraction of the memory of a list of items, and looping over a single column (for example,
+ * searching a group ID) only touches the memory it needs.
+ * <p>
+ * The table is read with a single bulk read of the index. Items can still be accessed as {@link DBPFItem} objects
+ * with {@link #getItem(int)}, or by reusing a single object with {@link #fillItem(int, DBPFItem)}.
+ */
+public class DBPFIndexTable {
+
+	/** Indices with at least this many items are decoded on multiple threads. */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+	/** The maximum amount of items decoded by a single thread; it must be a multiple of 64. */
+	private static final int ITEMS_PER_TASK = 1 << 14;
+
+	private final int[] typeIDs;
+	private final int[] groupIDs;
+	private final int[] instanceIDs;
+	private final long[] chunkOffsets;
+	private final int[] compressedSizes;
+	private final int[] memSizes;
+	/** Which items are compressed. */
+	private final BitSet compressed;
+	/** Which items are not saved; this is almost never used, so the set is usually empty. */
+	private final BitSet unsaved;
+	/** Finds items by their IDs, created on the first lookup. */
+	private volatile DBPFKeyIndex keyIndex;
+
+	private DBPFIndexTable(int numItems) {
+		typeIDs = new int[numItems];
+		groupIDs = new int[numItems];
+		instanceIDs = new int[numItems];
+		chunkOffsets = new long[numItems];
+		compressedSizes = new int[numItems];
+		memSizes = new int[numItems];
+		compressed = new BitSet(numItems);
+		unsaved = new BitSet();
+	}
+
+	/**
+	 * Returns the amount of bytes used by {@link #write(ByteBuffer)}.
+	 */
+	int getSerializedSize() {
+		int numItems = size();
+		return 4 + numItems * (5 * 4 + 8) + 4 + 8 * compressed.toLongArray().length + 4 + 8 * unsaved.toLongArray().length;
+	}
+
+	/**
+	 * Writes the columns of this table into a little-endian buffer, in a format that can be loaded back with
+	 * {@link #read(ByteBuffer)} without parsing every item.
+	 */
+	void write(ByteBuffer buffer) {
+		buffer.putInt(size());
+		putInts(buffer, typeIDs);
+		putInts(buffer, groupIDs);
+		putInts(buffer, instanceIDs);
+		putLongs(buffer, chunkOffsets);
+		putInts(buffer, compressedSizes);
+		putInts(buffer, memSizes);
+		long[] words = compressed.toLongArray();
+		buffer.putInt(words.length);
+		putLongs(buffer, words);
+		words = unsaved.toLongArray();
+		buffer.putInt(words.length);
+		putLongs(buffer, words);
+	}
+
+	/**
+	 * Loads a table that was written with {@link #write(ByteBuffer)} from a little-endian buffer.
+	 */
+	static DBPFIndexTable read(ByteBuffer buffer) {
+		DBPFIndexTable table = new DBPFIndexTable(buffer.getInt());
+		getInts(buffer, table.typeIDs);
+		getInts(buffer, table.groupIDs);
+		getInts(buffer, table.instanceIDs);
+		getLongs(buffer, table.chunkOffsets);
+		getInts(buffer, table.compressedSizes);
+		getInts(buffer, table.memSizes);
+		table.compressed.or(BitSet.valueOf(getLongs(buffer, new long[buffer.getInt()])));
+		table.unsaved.or(BitSet.valueOf(getLongs(buffer, new long[buffer.getInt()])));
+		return table;
+	}
+
+	private static void putInts(ByteBuffer buffer, int[] values) {
+		buffer.asIntBuffer().put(values);
+		buffer.position(buffer.position() + values.length * 4);
+	}
+
+	private static void putLongs(ByteBuffer buffer, long[] values) {
+		buffer.asLongBuffer().put(values);
+		buffer.position(buffer.position() + values.length * 8);
+	}
+
+	private static int[] getInts(ByteBuffer buffer, int[] values) {
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + values.length * 4);
+		return values;
+	}
+
+	private static long[] getLongs(ByteBuffer buffer, long[] values) {
+		buffer.asLongBuffer().get(values);
+		buffer.position(buffer.position() + values.length * 8);
+		return values;
+	}
+
+	/**
+	 * Returns the amount of bytes a single item uses in the index.
+	 * @param isDBBF Whether the package is a big DBPF, which uses 64-bit offsets.
+	 * @param readType Whether every item has its own type ID.
+	 * @param readGroup Whether every item has its own group ID.
+	 */
+	public static int getItemSize(boolean isDBBF, boolean readType, boolean readGroup) {
+		return (readType ? 4 : 0) + (readGroup ? 4 : 0) + 4 + (isDBBF ? 8 : 4) + 4 + 4 + 2 + 1 + 1;
+	}
+
+	/**
+	 * Reads the items of the index from the current position of the stream, all of them in a single read.
+	 * Indices with at least {@link #PARALLEL_THRESHOLD} items are decoded on multiple threads.
+	 * @param stream The stream to read from, already positioned at the first item.
+	 * @param numItems The amount of items in the index.
+	 * @param isDBBF Whether the package is a big DBPF, which uses 64-bit offsets.
+	 * @param typeID The type ID shared by all the items, or -1 if every item has its own.
+	 * @param groupID The group ID shared by all the items, or -1 if every item has its own.
+	 */
+	public static DBPFIndexTable read(StreamReader stream, int numItems, boolean isDBBF, int typeID, int groupID) throws IOException {
+		int itemSize = getItemSize(isDBBF, typeID == -1, groupID == -1);
+		long totalSize = (long) itemSize * numItems;
+		if (numItems < 0 || totalSize > Integer.MAX_VALUE) {
+			throw new IOException("Invalid amount of items in the index: " + numItems);
+		}
+
+		long baseOffset = stream.getFilePointer();
+		byte[] data = ByteArrayPool.acquire((int) totalSize);
+		try {
+			stream.read(data, 0, (int) totalSize);
+
+			DBPFIndexTable table = new DBPFIndexTable(numItems);
+			// The flags are decoded into plain words, as BitSet cannot be modified from multiple threads
+			long[] compressedWords = new long[(numItems + 63) >>> 6];
+			long[] unsavedWords = new long[compressedWords.length];
+			DecodeAction action = new DecodeAction(table, ByteBuffer.wrap(data, 0, (int) totalSize).order(ByteOrder.LITTLE_ENDIAN),
+					baseOffset, isDBBF, typeID, groupID, compressedWords, unsavedWords, 0, numItems);
+
+			if (numItems >= PARALLEL_THRESHOLD) {
+				try {
+					ForkJoinPool.commonPool().invoke(action);
+				}
+				catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			} else {
+				action.decode();
+			}
+
+			table.compressed.or(BitSet.valueOf(compressedWords));
+			table.unsaved.or(BitSet.valueOf(unsavedWords));
+			return table;
+		}
+		finally {
+			ByteArrayPool.release(data);
+		}
+	}
+
+	/**
+	 * Decodes a range of items. Big ranges are split in two halves that are decoded in parallel; every range starts
+	 * at a multiple of 64, so no two ranges write to the same word of the flags.
+	 */
+	private static class DecodeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final DBPFIndexTable table;
+		/** The data of the whole index; only absolute methods are used, so it can be shared by all threads. */
+		private final ByteBuffer data;
+		private final long baseOffset;
+		private final boolean isDBBF;
+		private final int typeID;
+		private final int groupID;
+		private final long[] compressedWords;
+		private final long[] unsavedWords;
+		private final int start;
+		private final int end;
+
+		DecodeAction(DBPFIndexTable table, ByteBuffer data, long baseOffset, boolean isDBBF, int typeID, int groupID,
+				long[] compressedWords, long[] unsavedWords, int start, int end) {
+			this.table = table;
+			this.data = data;
+			this.baseOffset = baseOffset;
+			this.isDBBF = isDBBF;
+			this.typeID = typeID;
+			this.groupID = groupID;
+			this.compressedWords = compressedWords;
+			this.unsavedWords = unsavedWords;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= ITEMS_PER_TASK) {
+				try {
+					decode();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			else {
+				int middle = ((start + end) >>> 1) & ~63;
+				invokeAll(new DecodeAction(table, data, baseOffset, isDBBF, typeID, groupID, compressedWords, unsavedWords, start, middle),
+						new DecodeAction(table, data, baseOffset, isDBBF, typeID, groupID, compressedWords, unsavedWords, middle, end));
+			}
+		}
+
+		void decode() throws IOException {
+			boolean readType = typeID == -1;
+			boolean readGroup = groupID == -1;
+			int itemSize = getItemSize(isDBBF, readType, readGroup);
+			int position = start * itemSize;
+
+			for (int i = start; i < end; i++) {
+				if (readType) {
+					table.typeIDs[i] = data.getInt(position);
+					position += 4;
+				} else {
+					table.typeIDs[i] = typeID;
+				}
+				if (readGroup) {
+					table.groupIDs[i] = data.getInt(position);
+					position += 4;
+				} else {
+					table.groupIDs[i] = groupID;
+				}
+				table.instanceIDs[i] = data.getInt(position);
+				position += 4;
+				if (isDBBF) {
+					table.chunkOffsets[i] = data.getLong(position);
+					position += 8;
+				} else {
+					table.chunkOffsets[i] = data.getInt(position) & 0xFFFFFFFFL;
+					position += 4;
+				}
+				table.compressedSizes[i] = data.getInt(position) & 0x7FFFFFFF;
+				table.memSizes[i] = data.getInt(position + 4);
+				position += 8;
+
+				switch (data.getShort(position)) {
+				case 0:
+					break;
+				case -1:
+					compressedWords[i >>> 6] |= 1L << i;
+					break;
+				default:
+					throw new IOException("Unknown compression label on position " + (baseOffset + position + 2));
+				}
+				position += 2;
+
+				if (data.get(position) == 0) {
+					unsavedWords[i >>> 6] |= 1L << i;
+				}
+				// Saved flag and padding
+				position += 2;
+			}
+		}
+	}
+
+	/** Returns the amount of items in the table. */
+	public int size() {
+		return typeIDs.length;
+	}
+
+	/** Returns the type ID (extension) of the item at the given index. */
+	public int getTypeID(int index) {
+		return typeIDs[index];
+	}
+
+	/** Returns the group ID (folder name) of the item at the given index. */
+	public int getGroupID(int index) {
+		return groupIDs[index];
+	}
+
+	/** Returns the instance ID (file name) of the item at the given index. */
+	public int getInstanceID(int index) {
+		return instanceIDs[index];
+	}
+
+	/** Returns the position where the data of the item at the given index is stored. */
+	public long getChunkOffset(int index) {
+		return chunkOffsets[index];
+	}
+
+	/** Returns the amount of bytes used by the data of the item at the given index in the .package file. */
+	public int getCompressedSize(int index) {
+		return compressedSizes[index];
+	}
+
+	/** Returns the amount of bytes used by the data of the item at the given index once uncompressed. */
+	public int getMemSize(int index) {
+		return memSizes[index];
+	}
+
+	/** Returns whether the data of the item at the given index is compressed. */
+	public boolean isCompressed(int index) {
+		return compressed.get(index);
+	}
+
+	/** Returns the amount of bytes the data of the item at the given index uses in the package. */
+	public int getStoredSize(int index) {
+		return compressed.get(index) ? compressedSizes[index] : memSizes[index];
+	}
+
+	private DBPFKeyIndex getKeyIndex() {
+		DBPFKeyIndex index = keyIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = keyIndex;
+				if (index == null) {
+					index = new DBPFKeyIndex(typeIDs, groupIDs, instanceIDs);
+					keyIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the index of the first item with the given IDs, or -1 if there is none.
+	 * This uses a hash table that is built on the first lookup, so it takes constant time.
+	 */
+	public int indexOf(int groupID, int instanceID, int typeID) {
+		return getKeyIndex().indexOf(groupID, instanceID, typeID);
+	}
+
+	/**
+	 * Returns the index of the first item with the given resource key, or -1 if there is none.
+	 */
+	public int indexOf(ResourceKey key) {
+		return indexOf(key.getGroupID(), key.getInstanceID(), key.getTypeID());
+	}
+
+	/**
+	 * Returns the index of the first item with the same resource key as the item at the given index;
+	 * this is the given index unless the key is repeated.
+	 */
+	public int firstIndexOf(int index) {
+		return indexOf(groupIDs[index], instanceIDs[index], typeIDs[index]);
+	}
+
+	/**
+	 * Returns the index of the last item with the same resource key as the item at the given index;
+	 * this is the given index unless the key is repeated.
+	 */
+	public int lastIndexOf(int index) {
+		return getKeyIndex().lastIndexOf(index);
+	}
+
+	/**
+	 * Removes from the list the items whose resource key is also used by another item of the list, keeping only one item
+	 * of every key: the first one if <code>keepFirst</code> is true, otherwise the last one. Only the items of the list
+	 * are compared, so the item that is kept is always one of them even if other items of the index have the same key.
+	 * @param items The indices of the items, sorted in index order; the list is compacted in place, keeping that order.
+	 * @param count How many indices of the array are used.
+	 * @param keepFirst Whether the first item of every key is kept, instead of the last one.
+	 * @return How many indices are left in the array.
+	 */
+	public int removeRepeatedKeys(int[] items, int count, boolean keepFirst) {
+		// For every repeated key, indexed by the first item of the index with that key: the item that is kept, plus 1
+		int[] keptItems = null;
+		for (int k = 0; k < count; k++) {
+			int index = items[k];
+			int first = firstIndexOf(index);
+			if (first == index && lastIndexOf(index) == index) {
+				continue;
+			}
+			if (keptItems == null) {
+				keptItems = new int[size()];
+			}
+			if (!keepFirst || keptItems[first] == 0) {
+				keptItems[first] = index + 1;
+			}
+		}
+		if (keptItems == null) {
+			return count;
+		}
+		int newCount = 0;
+		for (int k = 0; k < count; k++) {
+			int index = items[k];
+			int kept = keptItems[firstIndexOf(index)];
+			if (kept == 0 || kept == index + 1) {
+				items[newCount++] = index;
+			}
+		}
+		return newCount;
+	}
+
+	/**
+	 * Returns the indices of all the items with the given group ID (folder name), in the order they are in the index.
+	 */
+	public int[] indicesOfGroup(int groupID) {
+		return getKeyIndex().indicesOfGroup(groupID);
+	}
+
+	/**
+	 * Returns the indices of all the items with the given type ID (extension), in the order they are in the index.
+	 */
+	public int[] indicesOfType(int typeID) {
+		return getKeyIndex().indicesOfType(typeID);
+	}
+
+	/**
+	 * Copies the information of the item at the given index into an existing item, so the same object can be reused
+	 * when looping over the table.
+	 * @return The given item.
+	 */
+	public DBPFItem fillItem(int index, DBPFItem item) {
+		item.name.setTypeID(typeIDs[index]);
+		item.name.setGroupID(groupIDs[index]);
+		item.name.setInstanceID(instanceIDs[index]);
+		item.chunkOffset = chunkOffsets[index];
+		item.compressedSize = compressedSizes[index];
+		item.memSize = memSizes[index];
+		item.isCompressed = compressed.get(index);
+		item.isSaved = !unsaved.get(index);
+		return item;
+	}
+
+	/**
+	 * Returns a new item with the information of the item at the given index.
+	 */
+	public DBPFItem getItem(int index) {
+		return fillItem(index, new DBPFItem());
+	}
+}
@@ -19,14 +19,28 @@
 
 package sporemodder.file.dbpf;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
+import sporemodder.file.filestructures.ByteArrayPool;
 import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.PositionalInputStream;
+import sporemodder.file.filestructures.PositionalReader;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
 import sporemodder.file.ResourceKey;
 
 public class DBPFItem {
+	
+	/**
+	 * The uncompressed size from which the unpackers write compressed items with {@link #writeToFile(PositionalReader, File)},
+	 * decompressing them while they are written instead of decompressing them into memory first, 4 MB.
+	 */
+	public static final int STREAMING_MIN_SIZE = 4 * 1024 * 1024;
 
 	/** Whether the data represented by this item is compressed or not. */
 	public boolean isCompressed;
@@ -93,22 +107,206 @@ public class DBPFItem {
 		stream.writePadding(1);
 	}
 	
+	/**
+	 * Reads the data of this item, decompressing it if necessary. The returned stream uses an array from the
+	 * {@link ByteArrayPool}, so it must be closed once it is not needed anymore.
+	 */
 	public MemoryStream processFile(StreamReader in) throws IOException {
+		if (in instanceof PositionalReader) {
+			// The data might be decompressed straight from the stream; the file pointer ends after the data all the same
+			MemoryStream data = processFileAt((PositionalReader) in);
+			in.seek(chunkOffset + (isCompressed ? compressedSize : memSize));
+			return data;
+		}
 		in.seek(chunkOffset);
 		
 		if (isCompressed) {
-			byte[] arr = new byte[compressedSize];
-			in.read(arr);
-			
-			byte[] out = new byte[memSize];
-			RefPackCompression.decompressFast(arr, out);
-			
-			return new MemoryStream(out);
+			byte[] arr = ByteArrayPool.acquire(compressedSize);
+			byte[] out = ByteArrayPool.acquire(memSize);
+			try {
+				in.read(arr, 0, compressedSize);
+				RefPackCompression.decompressFast(arr, out);
+			}
+			catch (IOException | RuntimeException e) {
+				ByteArrayPool.release(out);
+				throw e;
+			}
+			finally {
+				ByteArrayPool.release(arr);
+			}
+			return MemoryStream.fromPool(out, memSize);
 		}
 		else {
-			byte[] arr = new byte[memSize];
-			in.read(arr);
-			return new MemoryStream(arr);
+			byte[] arr = ByteArrayPool.acquire(memSize);
+			try {
+				in.read(arr, 0, memSize);
+			}
+			catch (IOException | RuntimeException e) {
+				ByteArrayPool.release(arr);
+				throw e;
+			}
+			return MemoryStream.fromPool(arr, memSize);
+		}
+	}
+	
+	/**
+	 * Same as {@link #processFile(StreamReader)}, but it uses positional reads: it does not move any file pointer,
+	 * so it can be called from multiple threads at the same time on the same reader. If the reader has the data in memory,
+	 * like memory-mapped packages, compressed data is decompressed directly from it.
+	 */
+	public MemoryStream processFileAt(PositionalReader in) throws IOException {
+		return processFileAt(in, false);
+	}
+	
+	/**
+	 * Same as {@link #processFileAt(PositionalReader)}, but if <code>isValidated</code> is true the compressed data is not trusted:
+	 * it is checked while it is decompressed, and corrupt data throws a {@link CorruptResourceException}.
+	 * @param in The package that contains this item.
+	 * @param isValidated Whether the compressed data must be checked, with {@link RefPackCompression#decompressValidated(ByteBuffer, int, int, byte[], int, int)}.
+	 */
+	public MemoryStream processFileAt(PositionalReader in, boolean isValidated) throws IOException {
+		if (isCompressed) {
+			byte[] arr = null;
+			byte[] out = ByteArrayPool.acquire(memSize);
+			try {
+				ByteBuffer view = in.view(chunkOffset, compressedSize);
+				if (view != null) {
+					// Decompress straight from the package data (usually memory-mapped), without copying it first
+					if (isValidated) {
+						RefPackCompression.decompressValidated(view, 0, compressedSize, out, 0, memSize);
+					}
+					else {
+						RefPackCompression.decompress(view, 0, compressedSize, out, 0);
+					}
+				}
+				else {
+					arr = ByteArrayPool.acquire(compressedSize);
+					in.readAt(chunkOffset, arr, 0, compressedSize);
+					if (isValidated) {
+						RefPackCompression.decompressValidated(arr, 0, compressedSize, out, 0, memSize);
+					}
+					else {
+						RefPackCompression.decompressFast(arr, out);
+					}
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				ByteArrayPool.release(out);
+				throw e;
+			}
+			finally {
+				if (arr != null) ByteArrayPool.release(arr);
+			}
+			return MemoryStream.fromPool(out, memSize);
+		}
+		else {
+			byte[] arr = ByteArrayPool.acquire(memSize);
+			try {
+				in.readAt(chunkOffset, arr, 0, memSize);
+			}
+			catch (IOException | RuntimeException e) {
+				ByteArrayPool.release(arr);
+				throw e;
+			}
+			return MemoryStream.fromPool(arr, memSize);
+		}
+	}
+	
+	/**
+	 * Same as {@link #processFile(StreamReader)}, but the raw data of this item (as stored in the package) has already been read.
+	 * @param raw The array that contains the data of this item, starting at index 0.
+	 * @param length The amount of bytes of the raw data.
+	 */
+	public MemoryStream processFile(byte[] raw, int length) throws IOException {
+		return processFile(raw, 0, length);
+	}
+	
+	/**
+	 * Same as {@link #processFile(byte[], int)}, but the raw data of this item starts at the given position of the array.
+	 * This is used when the data of multiple items has been read at once.
+	 * @param raw The array that contains the data of this item.
+	 * @param offset The position of the array where the data of this item starts.
+	 * @param length The amount of bytes of the raw data.
+	 */
+	public MemoryStream processFile(byte[] raw, int offset, int length) throws IOException {
+		return processFile(raw, offset, length, false);
+	}
+	
+	/**
+	 * Same as {@link #processFile(byte[], int, int)}, but if <code>isValidated</code> is true the compressed data is not trusted:
+	 * it is checked while it is decompressed, and corrupt data throws a {@link CorruptResourceException}.
+	 * @param raw The array that contains the data of this item.
+	 * @param offset The position of the array where the data of this item starts.
+	 * @param length The amount of bytes of the raw data.
+	 * @param isValidated Whether the compressed data must be checked, with {@link RefPackCompression#decompressValidated(byte[], int, int, byte[], int, int)}.
+	 */
+	public MemoryStream processFile(byte[] raw, int offset, int length, boolean isValidated) throws IOException {
+		if (isCompressed) {
+			byte[] out = ByteArrayPool.acquire(memSize);
+			try {
+				if (isValidated) {
+					RefPackCompression.decompressValidated(raw, offset, length, out, 0, memSize);
+				}
+				else {
+					RefPackCompression.decompressFast(raw, offset, out);
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				ByteArrayPool.release(out);
+				throw e;
+			}
+			return MemoryStream.fromPool(out, memSize);
+		}
+		else {
+			byte[] arr = ByteArrayPool.acquire(length);
+			System.arraycopy(raw, offset, arr, 0, length);
+			return MemoryStream.fromPool(arr, length);
+		}
+	}
+	
+	/**
+	 * Returns a stream with the data of this item, decompressing it while it is read if necessary. Only a small,
+	 * constant amount of memory is used, no matter how big the item is. The stream uses positional reads, so it can be
+	 * used at the same time as other streams on the same reader.
+	 * @param in The package that contains this item; closing the stream doesn't close it.
+	 */
+	public InputStream openStream(PositionalReader in) throws IOException {
+		if (isCompressed) {
+			return new RefPackInputStream(new PositionalInputStream(in, chunkOffset, compressedSize));
+		}
+		else {
+			return new PositionalInputStream(in, chunkOffset, memSize);
+		}
+	}
+	
+	/**
+	 * Writes the data of this item directly into the given file. Uncompressed bytes are transferred from the package
+	 * to the file without being copied into memory; compressed ones are decompressed while they are written,
+	 * with a {@link RefPackInputStream}. If the file doesn't exist, it will create it.
+	 * @param in The package that contains this item.
+	 * @param file The File where the data will be written.
+	 * @throws IOException If there is an error while reading, decompressing or writing the data.
+	 */
+	public void writeToFile(PositionalReader in, File file) throws IOException {
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (!isCompressed) {
+				in.transferTo(chunkOffset, memSize, out);
+				return;
+			}
+			try (RefPackInputStream data = new RefPackInputStream(new PositionalInputStream(in, chunkOffset, compressedSize))) {
+				if (data.getDecompressedSize() != memSize) {
+					throw new CorruptResourceException("The size in the header (" + data.getDecompressedSize()
+							+ " bytes) is not the size in the index (" + memSize + " bytes)", 2);
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(RefPackInputStream.WINDOW_SIZE);
+				while (data.read(buffer) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+				}
+			}
 		}
 	}
 }
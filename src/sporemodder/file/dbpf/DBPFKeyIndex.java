@@ -0,0 +1,248 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.util.Arrays;
+
+/**
+ * Hash tables to find the items of an index by their resource key, by their group ID or by their type ID in constant time.
+ * The tables use open addressing over arrays of longs, so no objects are created per item. Every table is built
+ * the first time it is used, and lookups can be done from multiple threads.
+ * <p>
+ * If there are multiple items with the same resource key, exact lookups return the first one; the last one
+ * can be found with {@link #lastIndexOf(int)}.
+ */
+final class DBPFKeyIndex {
+
+	/** An empty slot; used slots are never 0 because the lower half always stores an index plus 1. */
+	private static final long EMPTY = 0;
+	private static final int[] NO_ITEMS = new int[0];
+
+	private final int[] typeIDs;
+	private final int[] groupIDs;
+	private final int[] instanceIDs;
+
+	/** Slots for exact lookups: the upper 32 bits are the key hash, the lower 32 bits the item index plus 1. */
+	private volatile long[] keySlots;
+	/**
+	 * Parallel to the columns: for the first item of a key used by more than one item, the index of the last one plus 1;
+	 * 0 for any other item. It is null if no key is repeated, which is the usual case.
+	 */
+	private int[] lastDuplicates;
+	private volatile Postings groupPostings;
+	private volatile Postings typePostings;
+
+	/**
+	 * The items that share the same value of a column: <code>order</code> has the item indices sorted by value,
+	 * and every slot stores a value in the upper 32 bits and the position of its first item in <code>order</code>, plus 1.
+	 */
+	private static class Postings {
+		private final int[] column;
+		private final long[] slots;
+		private final int[] order;
+
+		private Postings(int[] column) {
+			this.column = column;
+			slots = new long[getCapacity(column.length)];
+			order = new int[column.length];
+
+			// First count how many items use every value, then assign consecutive ranges of 'order' to the values
+			int[] counts = new int[slots.length];
+			for (int value : column) {
+				int pos = findSlot(slots, value);
+				if (slots[pos] == EMPTY) {
+					slots[pos] = ((long) value << 32) | 1;
+				}
+				counts[pos]++;
+			}
+			int start = 0;
+			for (int pos = 0; pos < slots.length; pos++) {
+				if (slots[pos] != EMPTY) {
+					int count = counts[pos];
+					counts[pos] = start;
+					slots[pos] = (slots[pos] & 0xFFFFFFFF00000000L) | (start + 1);
+					start += count;
+				}
+			}
+			// Items are added in index order, so every range is sorted
+			for (int i = 0; i < column.length; i++) {
+				order[counts[findSlot(slots, column[i])]++] = i;
+			}
+		}
+
+		private static int findSlot(long[] slots, int value) {
+			int mask = slots.length - 1;
+			int pos = mix(value) & mask;
+			while (slots[pos] != EMPTY && (int) (slots[pos] >>> 32) != value) {
+				pos = (pos + 1) & mask;
+			}
+			return pos;
+		}
+
+		private int[] get(int value) {
+			long slot = slots[findSlot(slots, value)];
+			if (slot == EMPTY) {
+				return NO_ITEMS;
+			}
+			int start = (int) slot - 1;
+			int end = start + 1;
+			while (end < order.length && column[order[end]] == value) {
+				end++;
+			}
+			return Arrays.copyOfRange(order, start, end);
+		}
+	}
+
+	/**
+	 * Creates the index over the given columns, which must have the same length and must not be modified afterwards.
+	 */
+	DBPFKeyIndex(int[] typeIDs, int[] groupIDs, int[] instanceIDs) {
+		this.typeIDs = typeIDs;
+		this.groupIDs = groupIDs;
+		this.instanceIDs = instanceIDs;
+	}
+
+	/** Returns a power of two big enough to keep the table at most half full. */
+	private static int getCapacity(int numItems) {
+		return Integer.highestOneBit(Math.max(2, numItems) * 2 - 1) << 1;
+	}
+
+	/** The finalizer of MurmurHash3, so that similar IDs end up in different slots. */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int hash(int groupID, int instanceID, int typeID) {
+		return mix(instanceID * 31 * 31 + groupID * 31 + typeID);
+	}
+
+	private boolean matches(int index, int groupID, int instanceID, int typeID) {
+		return instanceIDs[index] == instanceID && groupIDs[index] == groupID && typeIDs[index] == typeID;
+	}
+
+	private long[] getKeySlots() {
+		long[] slots = keySlots;
+		if (slots == null) {
+			synchronized (this) {
+				slots = keySlots;
+				if (slots == null) {
+					slots = buildKeySlots();
+					keySlots = slots;
+				}
+			}
+		}
+		return slots;
+	}
+
+	private long[] buildKeySlots() {
+		// Duplicated keys are rare, so they are kept apart instead of making every slot bigger
+		int[] duplicates = null;
+		long[] slots = new long[getCapacity(instanceIDs.length)];
+		int mask = slots.length - 1;
+		for (int i = 0; i < instanceIDs.length; i++) {
+			int hash = hash(groupIDs[i], instanceIDs[i], typeIDs[i]);
+			int pos = hash & mask;
+			while (slots[pos] != EMPTY) {
+				int other = (int) slots[pos] - 1;
+				if ((int) (slots[pos] >>> 32) == hash && matches(other, groupIDs[i], instanceIDs[i], typeIDs[i])) {
+					// Keep the first item with this key
+					if (duplicates == null) {
+						duplicates = new int[instanceIDs.length];
+					}
+					duplicates[other] = i + 1;
+					break;
+				}
+				pos = (pos + 1) & mask;
+			}
+			if (slots[pos] == EMPTY) {
+				slots[pos] = ((long) hash << 32) | (i + 1);
+			}
+		}
+		// Published together with the slots, which are volatile
+		lastDuplicates = duplicates;
+		return slots;
+	}
+
+	/**
+	 * Returns the index of the first item with the given resource key, or -1 if there is none.
+	 */
+	int indexOf(int groupID, int instanceID, int typeID) {
+		long[] slots = getKeySlots();
+		int mask = slots.length - 1;
+		int hash = hash(groupID, instanceID, typeID);
+		int pos = hash & mask;
+		long slot;
+		while ((slot = slots[pos]) != EMPTY) {
+			int index = (int) slot - 1;
+			if ((int) (slot >>> 32) == hash && matches(index, groupID, instanceID, typeID)) {
+				return index;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the last item that has the same resource key as the given item.
+	 */
+	int lastIndexOf(int index) {
+		int first = indexOf(groupIDs[index], instanceIDs[index], typeIDs[index]);
+		int[] duplicates = lastDuplicates;
+		return duplicates == null || duplicates[first] == 0 ? first : duplicates[first] - 1;
+	}
+
+	/**
+	 * Returns the indices of all the items that have the given group ID, in the order they are in the index.
+	 */
+	int[] indicesOfGroup(int groupID) {
+		Postings postings = groupPostings;
+		if (postings == null) {
+			synchronized (this) {
+				postings = groupPostings;
+				if (postings == null) {
+					postings = new Postings(groupIDs);
+					groupPostings = postings;
+				}
+			}
+		}
+		return postings.get(groupID);
+	}
+
+	/**
+	 * Returns the indices of all the items that have the given type ID, in the order they are in the index.
+	 */
+	int[] indicesOfType(int typeID) {
+		Postings postings = typePostings;
+		if (postings == null) {
+			synchronized (this) {
+				postings = typePostings;
+				if (postings == null) {
+					postings = new Postings(typeIDs);
+					typePostings = postings;
+				}
+			}
+		}
+		return postings.get(typeID);
+	}
+}
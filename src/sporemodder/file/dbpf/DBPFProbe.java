@@ -0,0 +1,262 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import sporemodder.LoggerManager;
+import sporemodder.file.filestructures.ByteBufferStream;
+
+/**
+ * Finds out whether files are packages by reading only their header, without reading the index. Every file needs a single
+ * small read at the start, so whole folders of packages can be checked at about the speed the file system lists them.
+ * <p>
+ * Folders are walked in parallel: every subfolder is a separate task, and files are probed by the task of their folder.
+ */
+public class DBPFProbe {
+
+	private static final Logger logger = LoggerManager.getLogger(DBPFProbe.class);
+
+	/** How many bytes are read from every file; this covers both DBPF and DBBF headers. */
+	public static final int HEADER_SIZE = 128;
+	/** The default amount of threads used to walk folders; probing is bound by I/O, so it uses more threads than processors. */
+	public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	/** The result of probing a single file. */
+	public static class Result {
+		/** The file that was probed. */
+		public final File file;
+		/** The size of the file, in bytes. */
+		public final long fileSize;
+		/** The header of the package, without the index read, or null if the file is not a package. */
+		public final DatabasePackedFile header;
+		/** Why the package is not valid, or null if the header is correct. It is always null if the file is not a package. */
+		public final String error;
+
+		private Result(File file, long fileSize, DatabasePackedFile header, String error) {
+			this.file = file;
+			this.fileSize = fileSize;
+			this.header = header;
+			this.error = error;
+		}
+
+		/** Returns whether the file starts with the DBPF or DBBF magic, even if the rest of its header is not valid. */
+		public boolean isPackage() {
+			return header != null;
+		}
+
+		/** Returns whether the file is a package with a valid header. */
+		public boolean isValid() {
+			return header != null && error == null;
+		}
+
+		/** Returns "DBPF" or "DBBF", or null if the file is not a package. */
+		public String getMagic() {
+			return header == null ? null : (header.isDBBF ? "DBBF" : "DBPF");
+		}
+	}
+
+	/**
+	 * Reads the header of the given file. Files that are not packages are not an error: the result just has no header.
+	 * @param file The file to probe.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static Result probe(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return probe(file, channel, channel.size());
+		}
+	}
+
+	private static Result probe(File file, FileChannel channel, long fileSize) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) != -1) {
+			// Short reads are rare, but possible
+		}
+		buffer.flip();
+
+		if (buffer.remaining() < 4) {
+			return new Result(file, fileSize, null, null);
+		}
+		int magic = buffer.getInt(0);
+		if (magic != DatabasePackedFile.TYPE_DBPF && magic != DatabasePackedFile.TYPE_DBBF) {
+			return new Result(file, fileSize, null, null);
+		}
+
+		DatabasePackedFile header = new DatabasePackedFile();
+		try {
+			header.readHeader(new ByteBufferStream(buffer));
+		}
+		catch (IOException e) {
+			header.isDBBF = magic == DatabasePackedFile.TYPE_DBBF;
+			return new Result(file, fileSize, header, "the header is truncated");
+		}
+
+		String error = null;
+		if (header.indexCount < 0) {
+			error = "negative index count: " + header.indexCount;
+		}
+		else if (header.indexOffset < 0 || header.indexSize < 0 || header.indexOffset + header.indexSize > fileSize) {
+			error = "the index is out of the file bounds";
+		}
+		return new Result(file, fileSize, header, error);
+	}
+
+	/**
+	 * Probes every file in the given folder and its subfolders, in parallel. Links to folders are not followed.
+	 * The consumer receives a result for every file that could be read, packages or not, and it is called from
+	 * multiple threads at the same time. Files that cannot be read are logged and skipped.
+	 * @param folder The folder to walk; it can also be a single file.
+	 * @param threads How many threads are used.
+	 * @param consumer Receives the results, in no particular order.
+	 * @throws IOException If the folder cannot be listed.
+	 */
+	public static void probeAll(File folder, int threads, Consumer<Result> consumer) throws IOException {
+		Path root = folder.toPath();
+		BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class);
+		if (!attributes.isDirectory()) {
+			consumer.accept(probe(folder, attributes.size()));
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new FolderAction(root, consumer, true));
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Probes every file in the given folder and its subfolders, and returns the results of the packages sorted by path.
+	 * @see #probeAll(File, int, Consumer)
+	 */
+	public static List<Result> probePackages(File folder, int threads) throws IOException {
+		List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+		probeAll(folder, threads, result -> {
+			if (result.isPackage()) {
+				results.add(result);
+			}
+		});
+		List<Result> sorted = new ArrayList<Result>(results);
+		sorted.sort(Comparator.comparing(result -> result.file.getPath()));
+		return sorted;
+	}
+
+	private static Result probe(File file, long fileSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return probe(file, channel, fileSize);
+		}
+	}
+
+	private static class FolderAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path folder;
+		private final Consumer<Result> consumer;
+		/** Whether this is the folder given to probeAll; only errors listing it are thrown, the rest are logged. */
+		private final boolean isRoot;
+
+		private FolderAction(Path folder, Consumer<Result> consumer, boolean isRoot) {
+			this.folder = folder;
+			this.consumer = consumer;
+			this.isRoot = isRoot;
+		}
+
+		@Override
+		protected void compute() {
+			List<FolderAction> subfolders = new ArrayList<FolderAction>();
+
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+				for (Path path : entries) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if (attributes.isSymbolicLink()) {
+							// Links are only probed if they point to files
+							if (!Files.isRegularFile(path)) {
+								continue;
+							}
+							attributes = Files.readAttributes(path, BasicFileAttributes.class);
+						}
+					}
+					catch (IOException e) {
+						// An entry that cannot be read must not stop the rest of the folder
+						logger.warning("Could not read attributes of " + path + ": " + e);
+						continue;
+					}
+
+					if (attributes.isDirectory()) {
+						FolderAction action = new FolderAction(path, consumer, false);
+						action.fork();
+						subfolders.add(action);
+					}
+					else if (attributes.isRegularFile()) {
+						try {
+							consumer.accept(probe(path.toFile(), attributes.size()));
+						}
+						catch (IOException e) {
+							logger.warning("Could not probe " + path + ": " + e);
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				listingFailed(e);
+			}
+			catch (DirectoryIteratorException e) {
+				listingFailed(e.getCause());
+			}
+
+			for (FolderAction action : subfolders) {
+				action.join();
+			}
+		}
+
+		private void listingFailed(IOException e) {
+			if (isRoot) {
+				throw new UncheckedIOException(e);
+			}
+			logger.warning("Could not list folder " + folder + ": " + e);
+		}
+	}
+}
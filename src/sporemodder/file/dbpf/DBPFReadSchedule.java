@@ -0,0 +1,203 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import sporemodder.file.filestructures.ByteArrayPool;
+import sporemodder.file.filestructures.PositionalReader;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * The order in which the data of a set of items is read from a package. Items are sorted by their position in the package,
+ * so the file is read from start to end instead of jumping back and forth, and items that are close to each other are
+ * grouped in runs that can be read with a single sequential read.
+ * <p>
+ * A run covers the data of all its items and the gaps between them. Runs never exceed the maximum run size,
+ * unless they only have a single item bigger than that.
+ */
+public class DBPFReadSchedule {
+
+	/** The default maximum amount of unused bytes between two items of the same run, 64 KB. */
+	public static final int DEFAULT_MAX_GAP = 64 * 1024;
+	/** The default maximum size of a run, 8 MB. */
+	public static final int DEFAULT_MAX_RUN_SIZE = 8 * 1024 * 1024;
+
+	private final DBPFIndexTable table;
+	/** The index in the table of every item, sorted by their position in the package. */
+	private final int[] order;
+	/** The position in <code>order</code> of the first item of every run, plus the total amount of items at the end. */
+	private final int[] runStarts;
+	private final long[] runOffsets;
+	private final int[] runSizes;
+	private final int runCount;
+
+	/**
+	 * Creates the schedule using the default gap and run size.
+	 * @param table The index of the package.
+	 * @param items The indices in the table of the items that will be read, in any order.
+	 * @param count How many values of <code>items</code> are used.
+	 */
+	public DBPFReadSchedule(DBPFIndexTable table, int[] items, int count) {
+		this(table, items, count, DEFAULT_MAX_GAP, DEFAULT_MAX_RUN_SIZE);
+	}
+
+	/**
+	 * @param table The index of the package.
+	 * @param items The indices in the table of the items that will be read, in any order.
+	 * @param count How many values of <code>items</code> are used.
+	 * @param maxGap The maximum amount of unused bytes between two consecutive items of the same run.
+	 * @param maxRunSize The maximum amount of bytes of a run.
+	 */
+	public DBPFReadSchedule(DBPFIndexTable table, int[] items, int count, int maxGap, int maxRunSize) {
+		this.table = table;
+		order = sortByOffset(table, items, count);
+
+		int[] runStarts = new int[count + 1];
+		long[] runOffsets = new long[count];
+		int[] runSizes = new int[count];
+		int runs = 0;
+		long runEnd = 0;
+
+		for (int i = 0; i < count; i++) {
+			int item = order[i];
+			long offset = table.getChunkOffset(item);
+			long end = offset + table.getStoredSize(item);
+
+			if (runs == 0 || offset > runEnd + maxGap || Math.max(end, runEnd) - runOffsets[runs - 1] > maxRunSize) {
+				runStarts[runs] = i;
+				runOffsets[runs] = offset;
+				runs++;
+				runEnd = end;
+			}
+			else {
+				runEnd = Math.max(end, runEnd);
+			}
+			runSizes[runs - 1] = (int) (runEnd - runOffsets[runs - 1]);
+		}
+		runStarts[runs] = count;
+
+		this.runStarts = runStarts;
+		this.runOffsets = runOffsets;
+		this.runSizes = runSizes;
+		this.runCount = runs;
+	}
+
+	/**
+	 * Returns the given items sorted by their chunk offset; items with the same offset keep their order in the index.
+	 */
+	private static int[] sortByOffset(DBPFIndexTable table, int[] items, int count) {
+		int[] sorted = Arrays.copyOf(items, count);
+
+		// If possible, sort the offset and the item together as primitive longs, which is much faster than using a comparator
+		int indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, table.size()));
+		long maxOffset = 0;
+		for (int item : sorted) {
+			maxOffset = Math.max(maxOffset, table.getChunkOffset(item));
+		}
+
+		if (maxOffset >>> (63 - indexBits) == 0) {
+			long[] keys = new long[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = (table.getChunkOffset(sorted[i]) << indexBits) | sorted[i];
+			}
+			Arrays.sort(keys);
+			long mask = (1L << indexBits) - 1;
+			for (int i = 0; i < count; i++) {
+				sorted[i] = (int) (keys[i] & mask);
+			}
+			return sorted;
+		}
+		else {
+			Arrays.sort(sorted);
+			return Arrays.stream(sorted).boxed()
+					.sorted((a, b) -> Long.compare(table.getChunkOffset(a), table.getChunkOffset(b)))
+					.mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	/** Returns the table the items belong to. */
+	public DBPFIndexTable getTable() {
+		return table;
+	}
+
+	/** Returns the amount of items in the schedule. */
+	public int getItemCount() {
+		return order.length;
+	}
+
+	/** Returns the index in the table of the item at the given position of the schedule. */
+	public int getItem(int position) {
+		return order[position];
+	}
+
+	/** Returns the amount of runs in the schedule. */
+	public int getRunCount() {
+		return runCount;
+	}
+
+	/** Returns the position in the schedule of the first item of the given run. */
+	public int getRunStart(int run) {
+		return runStarts[run];
+	}
+
+	/** Returns the position in the schedule after the last item of the given run. */
+	public int getRunEnd(int run) {
+		return runStarts[run + 1];
+	}
+
+	/** Returns the position in the package where the given run starts. */
+	public long getRunOffset(int run) {
+		return runOffsets[run];
+	}
+
+	/** Returns the amount of bytes that must be read for the given run. */
+	public int getRunSize(int run) {
+		return runSizes[run];
+	}
+
+	/** Returns the position of the data of the item at the given position of the schedule, relative to the start of its run. */
+	public int getOffsetInRun(int run, int position) {
+		return (int) (table.getChunkOffset(order[position]) - runOffsets[run]);
+	}
+
+	/**
+	 * Reads the data of a whole run with a single read. The returned array comes from the {@link ByteArrayPool},
+	 * so it must be released once it is not needed anymore. Positional reads are used if the stream supports them.
+	 */
+	public byte[] readRun(StreamReader stream, int run) throws IOException {
+		int size = runSizes[run];
+		byte[] data = ByteArrayPool.acquire(size);
+		try {
+			if (stream instanceof PositionalReader) {
+				((PositionalReader) stream).readAt(runOffsets[run], data, 0, size);
+			}
+			else {
+				stream.seek(runOffsets[run]);
+				stream.read(data, 0, size);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			ByteArrayPool.release(data);
+			throw e;
+		}
+		return data;
+	}
+}
@@ -23,23 +23,35 @@ import java.io.ByteArrayInputStream;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import sporemodder.LoggerManager;
+import sporemodder.file.filestructures.ByteArrayPool;
+import sporemodder.file.filestructures.ByteBufferStream;
 import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.PositionalReader;
+import sporemodder.file.filestructures.PrefetchingReader;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.HashManager;
+import sporemodder.file.AsyncFileWriter;
 import sporemodder.file.Converter;
 import sporemodder.file.ResourceKey;
+import sporemodder.util.NameRegistry;
 
 public class DBPFUnpacker {
 	private static final Logger logger = LoggerManager.getLogger(DBPFUnpackingTask.class);
@@ -55,9 +67,23 @@ public class DBPFUnpacker {
 	private final StreamReader inputStream;
 	private final List<File> failedDBPFs = new ArrayList<File>();
 	private File outputFolder;
-	private final HashMap<DBPFItem, Exception> exceptions = new HashMap<DBPFItem, Exception>();
+	private final Map<DBPFItem, Exception> exceptions = new ConcurrentHashMap<DBPFItem, Exception>();
 	private final List<Converter> converters;
 	private DBPFItemFilter itemFilter;
+	/** An optional filter tested on the index, before the items are created or read. */
+	private DBPFIndexFilter indexFilter;
+	/** Whether input packages are read through memory-mapped windows instead of a buffered FileStream. */
+	private boolean isMemoryMapped = true;
+	/** Whether compressed data is checked while it is decompressed, instead of being trusted. */
+	private boolean isValidating;
+	/** Whether the data of the items is read ahead on a separate thread, see {@link PrefetchingReader}. */
+	private boolean isPrefetching = false;
+	/** How many threads write the output files, which is also the maximum amount of files open at once. */
+	private int writerThreads = AsyncFileWriter.DEFAULT_THREADS;
+	/** Writes the files that are not converted, only used while unpacking. */
+	private AsyncFileWriter writer;
+	/** An optional cache of package indices, so they don't need to be parsed on every run. */
+	private DBPFIndexCache indexCache;
 
 	public DBPFUnpacker(File inputFile, File outputFolder, List<Converter> converters) {
 		logger.fine("Initializing DBPFUnpacker with input file: " + inputFile.getAbsolutePath());
@@ -67,23 +93,97 @@ public class DBPFUnpacker {
 		this.inputStream = null;
 	}
 
-	private static void findNamesFile(List<DBPFItem> items, StreamReader in, HashManager hasher) throws IOException {
+	/**
+	 * Sets whether the input packages are read through memory-mapped windows (the default) or with buffered file reads.
+	 * Memory mapping is faster on local disks, but might be unwanted on network filesystems.
+	 */
+	public void setMemoryMapped(boolean isMemoryMapped) {
+		this.isMemoryMapped = isMemoryMapped;
+	}
+
+	/**
+	 * Sets whether the data of the items is read ahead on a separate thread while the previous items are being decompressed
+	 * and written. This is disabled by default; it helps with slow storage, like hard disks and network filesystems.
+	 * Items that are written straight from the package to their file are not read ahead.
+	 */
+	public void setPrefetching(boolean isPrefetching) {
+		this.isPrefetching = isPrefetching;
+	}
+
+	/**
+	 * Sets whether the compressed data of the items is checked while it is decompressed (false by default). Corrupt items
+	 * are then reported with a {@link CorruptResourceException} in {@link #getExceptions()}, instead of failing in unexpected ways.
+	 * It is a bit slower, so it is meant for packages that don't come from a trusted source.
+	 */
+	public void setValidating(boolean isValidating) {
+		this.isValidating = isValidating;
+	}
+
+	/**
+	 * Returns the errors of the items that could not be unpacked. It is only complete once the unpacking has finished.
+	 */
+	public Map<DBPFItem, Exception> getExceptions() {
+		return exceptions;
+	}
+
+	/**
+	 * Sets how many threads write the output files; this is also the maximum amount of output files open at once.
+	 * Converted files are still written by the converters themselves.
+	 */
+	public void setWriterThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+	}
+
+	/**
+	 * Sets the cache where the indices of the input packages are kept, so packages that were already unpacked
+	 * before don't need their index to be read again. By default no cache is used.
+	 */
+	public void setIndexCache(DBPFIndexCache indexCache) {
+		this.indexCache = indexCache;
+	}
+
+	/**
+	 * Sets a filter that decides which items are unpacked (true) and which aren't (false). The item given to the filter
+	 * might be reused for other items afterwards, so filters must not keep it.
+	 */
+	public void setItemFilter(DBPFItemFilter itemFilter) {
+		this.itemFilter = itemFilter;
+	}
+
+	/**
+	 * Sets a filter that decides which items are unpacked, tested directly on the index; the items that don't pass it
+	 * are never created nor read. If there is also an item filter, both must accept the item.
+	 */
+	public void setIndexFilter(DBPFIndexFilter indexFilter) {
+		this.indexFilter = indexFilter;
+	}
+
+	/**
+	 * Returns the content of the <code>sporemaster/names</code> file of the package, or null if it doesn't have one.
+	 */
+	private static byte[] findNamesFile(DBPFIndexTable table, StreamReader in, HashManager hasher) throws IOException {
 		logger.fine("Searching for names file...");
 		int group = hasher.getFileHash("sporemaster");
 		int name = hasher.getFileHash("names");
 
-		for (DBPFItem item : items) {
-			if (item.name.getGroupID() == group && item.name.getInstanceID() == name) {
-				logger.fine("Names file found. Reading project registry...");
-				try (ByteArrayInputStream arrayStream = new ByteArrayInputStream(item.processFile(in).getRawData());
-					 BufferedReader reader = new BufferedReader(new InputStreamReader(arrayStream))) {
-					hasher.getProjectRegistry().read(reader);
+		for (int i : table.indicesOfGroup(group)) {
+			if (table.getInstanceID(i) == name) {
+				logger.fine("Names file found.");
+				try (MemoryStream dataStream = table.getItem(i).processFile(in)) {
+					return Arrays.copyOf(dataStream.getRawData(), (int) dataStream.length());
 				}
-				logger.fine("Project registry read successfully.");
-				return;
 			}
 		}
 		logger.fine("Names file not found.");
+		return null;
+	}
+
+	private static void readNamesFile(byte[] namesData, NameRegistry registry) throws IOException {
+		logger.fine("Reading names file...");
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(namesData)))) {
+			registry.read(reader);
+		}
+		logger.fine("Names file read successfully.");
 	}
 
 	private void loadRegistry(HashManager hasher) {
@@ -116,7 +216,12 @@ public class DBPFUnpacker {
 		}
 	}
 
-	private void unpackStream(StreamReader packageStream, HashMap<Integer, List<ResourceKey>> writtenFiles) throws IOException, InterruptedException {
+	/**
+	 * @param packageStream The stream the package is read from.
+	 * @param packageFile The file of the package, used for the index cache; null if the package is not a file.
+	 * @param writtenFiles The files that have already been written by other packages, or null if they are not checked.
+	 */
+	private void unpackStream(StreamReader packageStream, File packageFile, HashMap<Integer, List<ResourceKey>> writtenFiles) throws IOException, InterruptedException {
 		logger.fine("Starting to unpack stream...");
 		HashManager hasher = new HashManager();
 		hasher.initialize();
@@ -125,12 +230,33 @@ public class DBPFUnpacker {
 
 		logger.fine("Reading file index...");
 
-		DatabasePackedFile header = new DatabasePackedFile();
-		header.readHeader(packageStream);
-		header.readIndex(packageStream);
+		DBPFIndexCache.Entry cached = indexCache != null && packageFile != null ? indexCache.load(packageFile) : null;
+		DatabasePackedFile header;
+		// The items are only created as they are unpacked, so the whole index is never kept as objects
+		DBPFIndexTable table;
+		byte[] namesData;
 
-		DBPFIndex index = header.index;
-		index.readItems(packageStream, header.indexCount, header.isDBBF);
+		if (cached != null) {
+			header = cached.header;
+			table = cached.table;
+			namesData = cached.namesData;
+		}
+		else {
+			header = new DatabasePackedFile();
+			header.readHeader(packageStream);
+			header.readIndex(packageStream);
+			table = header.index.readTable(packageStream, header.indexCount, header.isDBBF);
+			namesData = findNamesFile(table, packageStream, hasher);
+
+			if (indexCache != null && packageFile != null) {
+				try {
+					indexCache.store(packageFile, header, table, namesData);
+				}
+				catch (IOException e) {
+					logger.warning("Could not store the index in the cache: " + e.getMessage());
+				}
+			}
+		}
 
 		logger.fine("File index read. Total items: " + header.indexCount);
 		logger.fine("Unpacking files...");
@@ -138,86 +264,322 @@ public class DBPFUnpacker {
 		double inc = ((1.0 - INDEX_PROGRESS) / header.indexCount) / inputFiles.size();
 
 		hasher.getProjectRegistry().clear();
-		findNamesFile(index.items, packageStream, hasher);
+		if (namesData != null) {
+			readNamesFile(namesData, hasher.getProjectRegistry());
+		}
+
+		// Uncompressed files that are not converted can be transferred directly from the package
+		PositionalReader positionalStream = packageStream instanceof PositionalReader ? (PositionalReader) packageStream : null;
 
 		int processedItems = 0;
 		int convertedItems = 0;
 		int skippedItems = 0;
 
-		for (DBPFItem item : index.items) {
+		DBPFItem filterItem = new DBPFItem();
+
+		// First decide which items are unpacked, in index order so the priority of repeated keys doesn't change
+		int[] selectedItems = new int[table.size()];
+		int selectedCount = 0;
+		for (int i = 0; i < table.size(); i++) {
 			processedItems++;
 
-			if (itemFilter != null && !itemFilter.filter(item)) {
+			if (indexFilter != null && !indexFilter.matches(table, i)) {
 				skippedItems++;
 				continue;
 			}
 
-			int groupID = item.name.getGroupID();
-			int instanceID = item.name.getInstanceID();
-
-			if (writtenFiles != null) {
-				List<ResourceKey> list = writtenFiles.get(groupID);
-				if (list != null && list.stream().anyMatch(key -> key.isEquivalent(item.name))) {
-					skippedItems++;
-					continue;
-				}
+			if (itemFilter != null && !itemFilter.filter(table.fillItem(i, filterItem))) {
+				skippedItems++;
+				continue;
 			}
 
-			String fileName = hasher.getFileName(instanceID);
+			if (isWrittenFile(table.fillItem(i, filterItem), writtenFiles)) {
+				skippedItems++;
+				continue;
+			}
 
-			if (groupID == 0x02FABF01 && fileName.startsWith("auto_")) {
+			if (table.getGroupID(i) == 0x02FABF01 && hasher.getFileName(table.getInstanceID(i)).startsWith("auto_")) {
 				skippedItems++;
 				continue;
 			}
 
-			File folder = new File(outputFolder, hasher.getFileName(groupID));
-			folder.mkdir();
+			selectedItems[selectedCount++] = i;
+		}
+
+		// If files are checked the first item with a key wins, otherwise the last one would overwrite the others;
+		// the winner is chosen among the items that passed the filters
+		int uniqueCount = table.removeRepeatedKeys(selectedItems, selectedCount, writtenFiles != null);
+		skippedItems += selectedCount - uniqueCount;
+		selectedCount = uniqueCount;
+
+		// Then read them in the order they are stored, so the package is read sequentially
+		DBPFReadSchedule schedule = new DBPFReadSchedule(table, selectedItems, selectedCount);
+		logger.fine("Reading " + selectedCount + " items in " + schedule.getRunCount() + " runs");
+
+		// Runs whose only item is written straight from the package to its file are never read into memory
+		boolean[] isDirectRun = new boolean[schedule.getRunCount()];
+		int readRuns = 0;
+		for (int run = 0; run < isDirectRun.length; run++) {
+			isDirectRun[run] = schedule.getRunEnd(run) - schedule.getRunStart(run) == 1
+					&& isWrittenDirectly(table.fillItem(schedule.getItem(schedule.getRunStart(run)), filterItem), positionalStream);
+			if (!isDirectRun[run]) readRuns++;
+		}
 
-			try (MemoryStream dataStream = item.processFile(packageStream)) {
-				boolean isConverted = false;
-
-				if (groupID != 0x40404000 || item.name.getTypeID() != 0x00B1B104) {
-					for (Converter converter : converters) {
-						if (converter.isDecoder(item.name)) {
-							logger.fine("Using converter: " + converter.getClass().getSimpleName() + " for item: " + item.name);
-							if (converter.decode(dataStream, folder, item.name)) {
-								isConverted = true;
-								convertedItems++;
-								logger.fine("Converted file: " + item.name);
-								break;
+		PrefetchingReader prefetcher = null;
+		if (isPrefetching && positionalStream != null) {
+			logger.fine("Prefetching " + readRuns + " runs");
+			long[] offsets = new long[readRuns];
+			int[] sizes = new int[readRuns];
+			for (int run = 0, index = 0; run < isDirectRun.length; run++) {
+				if (!isDirectRun[run]) {
+					offsets[index] = schedule.getRunOffset(run);
+					sizes[index] = schedule.getRunSize(run);
+					index++;
+				}
+			}
+			prefetcher = new PrefetchingReader(positionalStream, offsets, sizes, PrefetchingReader.DEFAULT_BUFFER_SIZE);
+		}
+
+		try {
+			for (int run = 0; run < schedule.getRunCount(); run++) {
+				// The prefetched chunks are returned in the same order as the runs that are read
+				PrefetchingReader.Chunk chunk = prefetcher != null && !isDirectRun[run] ? prefetcher.next() : null;
+				byte[] runData = null;
+				try {
+					for (int position = schedule.getRunStart(run); position < schedule.getRunEnd(run); position++) {
+						DBPFItem item = table.getItem(schedule.getItem(position));
+						int groupID = item.name.getGroupID();
+
+						File folder = new File(outputFolder, hasher.getFileName(groupID));
+						folder.mkdir();
+
+						boolean useConverters = groupID != 0x40404000 || item.name.getTypeID() != 0x00B1B104;
+						String name = hasher.getFileName(item.name.getInstanceID()) + "." + hasher.getTypeName(item.name.getTypeID());
+						File outputFile = new File(folder, name);
+
+						try {
+							if (isDirectRun[run]) {
+								// The data doesn't need to be converted, so it goes straight from the package to the file (decompressed on the way if needed)
+								addWrittenFile(item, writtenFiles);
+								writer.write(outputFile, file -> item.writeToFile(positionalStream, file), onWriteComplete(item, outputFile, writtenFiles));
 							}
+							else {
+								if (runData == null) {
+									runData = chunk != null ? chunk.getData() : schedule.readRun(packageStream, run);
+								}
+								int length = item.isCompressed ? item.compressedSize : item.memSize;
+								MemoryStream dataStream = item.processFile(runData, schedule.getOffsetInRun(run, position), length, isValidating);
+								try {
+									boolean isConverted = false;
+
+									if (useConverters && isNestedPackage(item)) {
+										// Nested packages are unpacked here, so their files go through the same writer as the rest
+										unpackNestedPackage(dataStream, new File(outputFile.getPath() + ".unpacked"), hasher);
+										isConverted = true;
+										convertedItems++;
+									}
+									else if (useConverters) {
+										for (Converter converter : converters) {
+											if (converter.isDecoder(item.name)) {
+												logger.fine("Using converter: " + converter.getClass().getSimpleName() + " for item: " + item.name);
+												if (converter.decode(dataStream, folder, item.name)) {
+													isConverted = true;
+													convertedItems++;
+													logger.fine("Converted file: " + item.name);
+													break;
+												}
+											}
+										}
+									}
+
+									if (isConverted) {
+										addWrittenFile(item, writtenFiles);
+									}
+									else {
+										// The writer takes care of closing the stream
+										MemoryStream data = dataStream;
+										dataStream = null;
+										addWrittenFile(item, writtenFiles);
+										writer.write(outputFile, data, onWriteComplete(item, outputFile, writtenFiles));
+									}
+								}
+								finally {
+									if (dataStream != null) dataStream.close();
+								}
+							}
+						}
+						catch (Exception e) {
+							logger.warning("Error processing item: " + item.name + ". Error: " + e.getMessage());
+							exceptions.put(item, e);
+						}
+
+						if ((position + 1) % 100 == 0) {
+							logger.fine("Progress: " + (position + 1) + " / " + selectedCount + " items unpacked");
 						}
 					}
 				}
-
-				if (!isConverted) {
-					String name = hasher.getFileName(item.name.getInstanceID()) + "." + hasher.getTypeName(item.name.getTypeID());
-					File outputFile = new File(folder, name);
-					dataStream.writeToFile(outputFile);
-					logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+				finally {
+					// The array of a prefetched chunk is released when the chunk is closed
+					if (chunk != null) chunk.close();
+					else ByteArrayPool.release(runData);
 				}
+			}
+		}
+		finally {
+			if (prefetcher != null) prefetcher.close();
+		}
 
-				if (writtenFiles != null) {
-					writtenFiles.computeIfAbsent(groupID, k -> new ArrayList<>()).add(item.name);
+		// The package must stay open until all its files are written
+		writer.flush();
+
+		logger.fine("Unpacking completed. Total items: " + header.indexCount +
+				", Processed: " + processedItems +
+				", Converted: " + convertedItems +
+				", Skipped: " + skippedItems +
+				", Errors: " + exceptions.size());
+
+		hasher.getProjectRegistry().clear();
+	}
+
+	/**
+	 * Unpacks a package stored in an item of the package being unpacked. Its files are written by the same writer as the
+	 * files of the parent package, and the errors of its items are added to {@link #getExceptions()}; only the errors that
+	 * prevent reading the nested package at all are thrown. Packages nested inside it are unpacked as well.
+	 * @param data The data of the nested package.
+	 * @param outputFolder The folder where its files are written.
+	 * @param hasher Used to name the files; the names file of the nested package is used before the project registry.
+	 */
+	private void unpackNestedPackage(MemoryStream data, File outputFolder, HashManager hasher) throws IOException {
+		ByteBufferStream stream = new ByteBufferStream(ByteBuffer.wrap(data.getRawData(), 0, (int) data.length()));
+		DatabasePackedFile header = new DatabasePackedFile();
+		header.readHeader(stream);
+		header.readIndex(stream);
+		DBPFIndexTable table = header.index.readTable(stream, header.indexCount, header.isDBBF);
+
+		// The names of the nested package must not replace the ones of the package that contains it
+		NameRegistry names = null;
+		byte[] namesData = findNamesFile(table, stream, hasher);
+		if (namesData != null) {
+			names = new NameRegistry(hasher, "Names used by the package", "names.txt");
+			readNamesFile(namesData, names);
+		}
+
+		DBPFConverter.clearOutputFolder(outputFolder);
+
+		int[] selectedItems = new int[table.size()];
+		int selectedCount = 0;
+		for (int i = 0; i < table.size(); i++) {
+			// Same rules as the parent package: the last repeated key wins, and autolocale files are skipped
+			if (table.lastIndexOf(i) != i) {
+				continue;
+			}
+			if (table.getGroupID(i) == 0x02FABF01 && hasher.getFileName(table.getInstanceID(i), names).startsWith("auto_")) {
+				continue;
+			}
+			selectedItems[selectedCount++] = i;
+		}
+
+		DBPFReadSchedule schedule = new DBPFReadSchedule(table, selectedItems, selectedCount);
+		logger.fine("Unpacking " + selectedCount + " items of nested package into " + outputFolder.getName());
+		for (int position = 0; position < schedule.getItemCount(); position++) {
+			DBPFItem item = table.getItem(schedule.getItem(position));
+
+			File folder = new File(outputFolder, hasher.getFileName(item.name.getGroupID(), names));
+			folder.mkdir();
+			File outputFile = new File(folder, hasher.getFileName(item.name.getInstanceID(), names) + "." + hasher.getTypeName(item.name.getTypeID()));
+
+			MemoryStream dataStream = null;
+			try {
+				dataStream = item.processFileAt(stream, isValidating);
+				if (isNestedPackage(item)) {
+					unpackNestedPackage(dataStream, new File(outputFile.getPath() + ".unpacked"), hasher);
+				}
+				else {
+					// The writer takes care of closing the stream
+					MemoryStream itemData = dataStream;
+					dataStream = null;
+					writer.write(outputFile, itemData, onWriteComplete(item, outputFile, null));
 				}
 			}
 			catch (Exception e) {
-				logger.warning("Error processing item: " + item.name + ". Error: " + e.getMessage());
+				logger.warning("Error processing item: " + item.name + " of nested package. Error: " + e.getMessage());
 				exceptions.put(item, e);
 			}
+			finally {
+				if (dataStream != null) dataStream.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the item is a package that is unpacked into its own folder, instead of being written as a file.
+	 */
+	private boolean isNestedPackage(DBPFItem item) {
+		for (Converter converter : converters) {
+			if (converter instanceof DBPFConverter && converter.isDecoder(item.name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Files are written asynchronously, so items are marked as written as soon as they are sent to the writer,
+	 * and unmarked if writing them fails; the writer threads and the unpacking thread use these methods.
+	 */
+
+	private static boolean isWrittenFile(DBPFItem item, HashMap<Integer, List<ResourceKey>> writtenFiles) {
+		if (writtenFiles == null) {
+			return false;
+		}
+		synchronized (writtenFiles) {
+			List<ResourceKey> list = writtenFiles.get(item.name.getGroupID());
+			return list != null && list.stream().anyMatch(key -> key.isEquivalent(item.name));
+		}
+	}
 
-			if (processedItems % 100 == 0) {
-				logger.fine("Progress: " + processedItems + " / " + header.indexCount + " items processed");
+	private static void addWrittenFile(DBPFItem item, HashMap<Integer, List<ResourceKey>> writtenFiles) {
+		if (writtenFiles != null) {
+			synchronized (writtenFiles) {
+				writtenFiles.computeIfAbsent(item.name.getGroupID(), k -> new ArrayList<>()).add(item.name);
 			}
 		}
+	}
 
-		logger.fine("Unpacking completed. Total items: " + header.indexCount +
-				", Processed: " + processedItems +
-				", Converted: " + convertedItems +
-				", Skipped: " + skippedItems +
-				", Errors: " + exceptions.size());
+	private Consumer<Exception> onWriteComplete(DBPFItem item, File outputFile, HashMap<Integer, List<ResourceKey>> writtenFiles) {
+		return error -> {
+			if (error == null) {
+				logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+			}
+			else {
+				logger.warning("Error writing item: " + item.name + ". Error: " + error.getMessage());
+				exceptions.put(item, error);
+				if (writtenFiles != null) {
+					synchronized (writtenFiles) {
+						writtenFiles.get(item.name.getGroupID()).remove(item.name);
+					}
+				}
+			}
+		};
+	}
 
-		hasher.getProjectRegistry().clear();
+	/**
+	 * Returns whether the item doesn't need to be converted, so it can be written straight from the package to its file
+	 * (decompressed on the way if needed) when it is the only item of its run.
+	 */
+	private boolean isWrittenDirectly(DBPFItem item, PositionalReader positionalStream) {
+		boolean useConverters = item.name.getGroupID() != 0x40404000 || item.name.getTypeID() != 0x00B1B104;
+		return (!item.isCompressed || item.memSize >= DBPFItem.STREAMING_MIN_SIZE)
+				&& positionalStream != null && !(useConverters && hasDecoder(item));
+	}
+
+	private boolean hasDecoder(DBPFItem item) {
+		for (Converter converter : converters) {
+			if (converter.isDecoder(item.name)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public Exception call() throws Exception {
@@ -226,7 +588,13 @@ public class DBPFUnpacker {
 
 		if (inputStream != null) {
 			logger.fine("Unpacking from input stream");
-			unpackStream(inputStream, null);
+			try (AsyncFileWriter writer = new AsyncFileWriter(writerThreads, AsyncFileWriter.DEFAULT_MAX_PENDING)) {
+				this.writer = writer;
+				unpackStream(inputStream, null, null);
+			}
+			finally {
+				this.writer = null;
+			}
 		}
 		else {
 			logger.fine("Unpacking from " + inputFiles.size() + " input files");
@@ -243,13 +611,18 @@ public class DBPFUnpacker {
 				logger.fine("Processing file: " + inputFile.getAbsolutePath());
 				for (Converter converter : converters) converter.reset();
 
-				try (StreamReader packageStream = new FileStream(inputFile, "r"))  {
-					unpackStream(packageStream, checkFiles ? writtenFiles : null);
+				try (StreamReader packageStream = isMemoryMapped ? new MappedFileStream(inputFile) : new FileStream(inputFile, FileStream.DEFAULT_BLOCK_SIZE, FileStream.DEFAULT_READ_AHEAD);
+						AsyncFileWriter writer = new AsyncFileWriter(writerThreads, AsyncFileWriter.DEFAULT_MAX_PENDING))  {
+					this.writer = writer;
+					unpackStream(packageStream, inputFile, checkFiles ? writtenFiles : null);
 				}
 				catch (Exception e) {
 					logger.severe("Error unpacking file: " + inputFile.getAbsolutePath() + ". Error: " + e.getMessage());
 					return e;
 				}
+				finally {
+					this.writer = null;
+				}
 			}
 		}
 
@@ -20,9 +20,11 @@ package sporemodder.file.dbpf;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -31,23 +33,36 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import sporemodder.LoggerManager;
+import sporemodder.file.AsyncFileWriter;
 import sporemodder.file.Converter;
 
 import sporemodder.HashManager;
 import sporemodder.file.ResourceKey;
+import sporemodder.file.filestructures.ByteArrayPool;
+import sporemodder.file.filestructures.ByteBufferStream;
 import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.PositionalReader;
+import sporemodder.file.filestructures.PrefetchingReader;
 import sporemodder.file.filestructures.StreamReader;
+import sporemodder.util.NameRegistry;
 
 public class DBPFUnpackingTask {
 	
+	/**
+	 * Decides which items are unpacked. The item given to the filter might be reused for other items afterwards,
+	 * so filters must not keep it.
+	 */
 	@FunctionalInterface
 	public static interface DBPFItemFilter {
 		public boolean filter(DBPFItem item);
@@ -79,18 +94,42 @@ public class DBPFUnpackingTask {
 
 
 	/** We will keep all files that couldn't be converted here, so that we can keep unpacking the DBPF. */
-	private final Map<DBPFItem, Exception> exceptions = new HashMap<>();
+	private final Map<DBPFItem, Exception> exceptions = new ConcurrentHashMap<>();
 	
 	/** How much time the operation took, in milliseconds. */
 	private long ellapsedTime;
 	
 	/** An optional filter that defines which items should be unpacked (true) and which shouldn't (false). */
 	private DBPFItemFilter itemFilter;
+	
+	/** An optional filter tested on the index, before the items are created or read. */
+	private DBPFIndexFilter indexFilter;
 
 	
 	//TODO it's faster, but apparently it causes problems; I can't reproduce the bug
 	private boolean isParallel = true;
 	
+	/** Whether input packages are read through memory-mapped windows instead of a buffered FileStream. */
+	private boolean isMemoryMapped = true;
+	
+	/** Whether compressed data is checked while it is decompressed, instead of being trusted. */
+	private boolean isValidating;
+	
+	/** Whether the data of the items is read ahead on a separate thread, see {@link PrefetchingReader}. */
+	private boolean isPrefetching = false;
+	
+	/** How many threads write the output files, which is also the maximum amount of files open at once. */
+	private int writerThreads = AsyncFileWriter.DEFAULT_THREADS;
+	
+	/** Writes the unpacked files, only used while the task is running. */
+	private AsyncFileWriter writer;
+	
+	/** An optional cache of package indices, so they don't need to be parsed every time a package is unpacked. */
+	private DBPFIndexCache indexCache;
+	
+	/** Whether the input stream is a package nested in another one, whose names must be kept in the project registry. */
+	private boolean isNested;
+	
 	private boolean noJavaFX = false;
 	private Consumer<Double> noJavaFXProgressListener;
 
@@ -147,6 +186,80 @@ public class DBPFUnpackingTask {
 	}
 
 
+	/**
+	 * Sets whether the input packages are read through memory-mapped windows (the default) or with buffered file reads.
+	 * Memory mapping is faster on local disks, but might be unwanted on network filesystems.
+	 */
+	public void setMemoryMapped(boolean isMemoryMapped) {
+		this.isMemoryMapped = isMemoryMapped;
+	}
+	
+	/**
+	 * Sets whether the compressed data of the items is checked while it is decompressed (false by default). Corrupt items
+	 * then fail with a {@link CorruptResourceException}, instead of failing in unexpected ways. Nested packages and the items
+	 * inside them are validated as well.
+	 */
+	public void setValidating(boolean isValidating) {
+		this.isValidating = isValidating;
+	}
+	
+	/**
+	 * Sets whether the data of the items is read ahead on a separate thread while the previous items are being decompressed
+	 * and written. This is disabled by default; it helps with slow storage, like hard disks and network filesystems.
+	 */
+	public void setPrefetching(boolean isPrefetching) {
+		this.isPrefetching = isPrefetching;
+	}
+	
+	/**
+	 * Sets how many threads write the output files, so the workers can keep decompressing while the files are written.
+	 * This is also the maximum amount of output files open at once.
+	 */
+	public void setWriterThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+	}
+	
+	/**
+	 * Sets the cache where the indices of the input packages are kept, so packages that were already unpacked
+	 * before don't need their index to be read again. By default no cache is used.
+	 */
+	public void setIndexCache(DBPFIndexCache indexCache) {
+		this.indexCache = indexCache;
+	}
+	
+	/**
+	 * Sets whether the input stream is a package nested inside another package that is being unpacked. Nested packages
+	 * keep the names of their <code>sporemaster/names</code> file apart, instead of replacing the project registry.
+	 */
+	void setNested(boolean isNested) {
+		this.isNested = isNested;
+	}
+	
+	/**
+	 * Sets a filter that decides which items are unpacked (true) and which aren't (false). The item given to the filter
+	 * might be reused for other items afterwards, so filters must not keep it.
+	 */
+	public void setItemFilter(DBPFItemFilter itemFilter) {
+		this.itemFilter = itemFilter;
+	}
+	
+	/**
+	 * Sets a filter that decides which items are unpacked, tested directly on the index; the items that don't pass it
+	 * are never created nor read. If there is also an item filter, both must accept the item. Filters are not applied
+	 * to the items of nested packages.
+	 */
+	public void setIndexFilter(DBPFIndexFilter indexFilter) {
+		this.indexFilter = indexFilter;
+	}
+
+
+	/**
+	 * Returns the errors of the items that could not be unpacked. It is only complete once the task has finished.
+	 */
+	public Map<DBPFItem, Exception> getExceptions() {
+		return exceptions;
+	}
+	
 	/**
 
 	 * Returns a list of all the converters that will be used when unpacking files.
@@ -203,58 +316,159 @@ public class DBPFUnpackingTask {
 	}
 
 
-	private static void findNamesFile(List<DBPFItem> items, StreamReader in) throws IOException {
+	/**
+	 * Returns the content of the <code>sporemaster/names</code> files of the package, one after the other,
+	 * or null if it doesn't have any.
+	 */
+	private static byte[] findNamesFile(DBPFIndexTable table, StreamReader in) throws IOException {
 		HashManager hasher = HashManager.get();
 		int group = hasher.getFileHash("sporemaster");
 		int name = hasher.getFileHash("names");
 		
-		for (DBPFItem item : items) {
-			if (item.name.getGroupID() == group && item.name.getInstanceID() == name) {
-				try (ByteArrayInputStream arrayStream = new ByteArrayInputStream(item.processFile(in).getRawData());
-						BufferedReader reader = new BufferedReader(new InputStreamReader(arrayStream))) {
-					hasher.getProjectRegistry().read(reader);
+		ByteArrayOutputStream namesData = null;
+		for (int i : table.indicesOfGroup(group)) {
+			if (table.getInstanceID(i) == name) {
+				try (MemoryStream dataStream = table.getItem(i).processFile(in)) {
+					if (namesData == null) {
+						namesData = new ByteArrayOutputStream();
+					} else {
+						namesData.write('\n');
+					}
+					namesData.write(dataStream.getRawData(), 0, (int) dataStream.length());
 				}
 			}
 		}
+		return namesData == null ? null : namesData.toByteArray();
+	}
+	
+	private static void readNamesFile(byte[] namesData, NameRegistry registry) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(namesData)))) {
+			registry.read(reader);
+		}
+	}
+	
+	/**
+	 * Returns the names of a nested package in their own registry, or null if it doesn't have a names file.
+	 */
+	private static NameRegistry readPackageNames(byte[] namesData) throws IOException {
+		if (namesData == null) {
+			return null;
+		}
+		NameRegistry registry = new NameRegistry(HashManager.get(), "Names used by the package", "names.txt");
+		readNamesFile(namesData, registry);
+		return registry;
+	}
+	
+	/**
+	 * Returns the file where the given item is unpacked, creating its group folder if necessary.
+	 * @param names The names of the package the item belongs to, only used for nested packages; it can be null.
+	 */
+	private static File getOutputFile(DBPFItem item, File outputFolder, NameRegistry names) {
+		HashManager hasher = HashManager.get();
+		File folder = new File(outputFolder, hasher.getFileName(item.name.getGroupID(), names));
+		folder.mkdir();
+		return new File(folder, hasher.getFileName(item.name.getInstanceID(), names) + "." + hasher.getTypeName(item.name.getTypeID()));
+	}
+	
+	/**
+	 * Returns whether the item is a package that is unpacked into its own folder, instead of being written as a file.
+	 */
+	private boolean isNestedPackage(DBPFItem item) {
+		for (Converter converter : converters) {
+			if (converter instanceof DBPFConverter && converter.isDecoder(item.name)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	private void unpackStream(StreamReader packageStream, Map<Integer, Set<ResourceKey>> writtenFiles, double progressFraction) throws IOException, InterruptedException {
+	/**
+	 * @param packageStream The stream the package is read from.
+	 * @param packageFile The file of the package, used for the index cache; null if the package is not a file.
+	 * @param writtenFiles The files that have already been written by other packages, or null if they are not checked.
+	 * @param progressFraction The fraction of the total progress that corresponds to this package.
+	 */
+	private void unpackStream(StreamReader packageStream, File packageFile, Map<Integer, Set<ResourceKey>> writtenFiles, double progressFraction) throws IOException, InterruptedException {
 		logger.fine("Starting to unpack stream");
 		HashManager hasher = HashManager.get();
 
-		DatabasePackedFile header = new DatabasePackedFile();
-		logger.fine("Reading DBPF header");
-		header.readHeader(packageStream);
-		logger.fine("Reading DBPF index");
-		header.readIndex(packageStream);
-
-		DBPFIndex index = header.index;
-		logger.fine("Reading " + header.indexCount + " items from index");
-		index.readItems(packageStream, header.indexCount, header.isDBBF);
+		DBPFIndexCache.Entry cached = indexCache != null && packageFile != null ? indexCache.load(packageFile) : null;
+		DatabasePackedFile header;
+		// The items are only created for the files that are unpacked, so the whole index is never kept as objects
+		DBPFIndexTable table;
+		byte[] namesData;
+		
+		if (cached != null) {
+			logger.fine("Using cached index");
+			header = cached.header;
+			table = cached.table;
+			namesData = cached.namesData;
+		}
+		else {
+			header = new DatabasePackedFile();
+			logger.fine("Reading DBPF header");
+			header.readHeader(packageStream);
+			logger.fine("Reading DBPF index");
+			header.readIndex(packageStream);
+	
+			logger.fine("Reading " + header.indexCount + " items from index");
+			table = header.index.readTable(packageStream, header.indexCount, header.isDBBF);
+			
+			logger.fine("Searching for sporemaster/names.txt");
+			namesData = findNamesFile(table, packageStream);
+			
+			if (indexCache != null && packageFile != null) {
+				try {
+					indexCache.store(packageFile, header, table, namesData);
+				}
+				catch (IOException e) {
+					logger.warning("Could not store the index in the cache: " + e.getMessage());
+				}
+			}
+		}
 
 		incProgress(INDEX_PROGRESS * progressFraction);
 		double inc = (1.0 - INDEX_PROGRESS) * progressFraction / header.indexCount;
 
-		logger.fine("Searching for sporemaster/names.txt");
-		hasher.getProjectRegistry().clear();
-		findNamesFile(index.items, packageStream);
+		// Nested packages must not remove the names of the package that contains them
+		NameRegistry packageNames = null;
+		if (isNested) {
+			packageNames = readPackageNames(namesData);
+		}
+		else {
+			hasher.getProjectRegistry().clear();
+			if (namesData != null) {
+				readNamesFile(namesData, hasher.getProjectRegistry());
+			}
+		}
 
 		int maxTasks = ForkJoinPool.getCommonPoolParallelism();
 		logger.fine("Max parallel tasks: " + maxTasks);
+		
+		// If the stream supports positional reads, the workers read and decompress the items themselves
+		PositionalReader positionalStream = packageStream instanceof PositionalReader ? (PositionalReader) packageStream : null;
 
-		int itemIndex = -1;
-		CountDownLatch latch = new CountDownLatch(index.items.size());
-		logger.fine("Processing " + index.items.size() + " items");
-		for (DBPFItem item : index.items) {
-			++itemIndex;
-
-			if (itemFilter != null && !itemFilter.filter(item)) {
-				logger.fine("Skipping item due to filter: " + item.name);
+		CountDownLatch latch = new CountDownLatch(table.size());
+		
+		// First decide which items will be unpacked, in index order so the priority of repeated keys doesn't change
+		int[] selectedItems = new int[table.size()];
+		int selectedCount = 0;
+		DBPFItem filterItem = new DBPFItem();
+		for (int i = 0; i < table.size(); i++) {
+			if (indexFilter != null && !indexFilter.matches(table, i)) {
+				latch.countDown();
+				incProgress(inc);
+				continue;
+			}
+			
+			if (itemFilter != null && !itemFilter.filter(table.fillItem(i, filterItem))) {
+				logger.fine("Skipping item due to filter: " + filterItem.name);
 				latch.countDown();
 				incProgress(inc);
 				continue;
 			}
 			
+			DBPFItem item = table.getItem(i);
 			int groupID = item.name.getGroupID();
 			int instanceID = item.name.getInstanceID();
 			
@@ -270,7 +484,7 @@ public class DBPFUnpackingTask {
 				}
 			}
 			
-			String fileName = hasher.getFileName(instanceID);
+			String fileName = hasher.getFileName(instanceID, packageNames);
 			
 			// skip autolocale files
 			if (groupID == 0x02FABF01 && fileName.startsWith("auto_")) {
@@ -278,26 +492,8 @@ public class DBPFUnpackingTask {
 				incProgress(inc);
 				continue;
 			}
-
-
-			logger.fine("Processing item: " + item.name);
-			File folder = new File(outputFolder, hasher.getFileName(groupID));
-			folder.mkdir();
-
-			FileConvertAction action = new FileConvertAction(item, folder, item.processFile(packageStream), inc, latch);
-			if (isParallel) {
-				if (itemIndex == index.items.size() - 1 || ForkJoinPool.commonPool().getQueuedSubmissionCount() >= maxTasks) {
-					logger.fine("Executing item in same thread: " + item.name);
-					ForkJoinPool.commonPool().invoke(action);
-				}
-				else {
-					logger.fine("Submitting item to thread pool: " + item.name);
-					ForkJoinPool.commonPool().execute(action);
-				}
-			} else {
-				logger.fine("Processing item sequentially: " + item.name);
-				action.compute();
-			}
+			
+			selectedItems[selectedCount++] = i;
 				
 			if (writtenFiles != null) {
 				Set<ResourceKey> groupSet = writtenFiles.get(groupID);
@@ -308,12 +504,96 @@ public class DBPFUnpackingTask {
 				groupSet.add(item.name);
 			}
 		}
+		
+		// Repeated keys in the same package overwrite each other, so only one of the items that passed the filters is unpacked:
+		// the first one if files are checked (like the keys written by higher priority packages), otherwise the last one
+		int uniqueCount = table.removeRepeatedKeys(selectedItems, selectedCount, writtenFiles != null);
+		for (int k = uniqueCount; k < selectedCount; k++) {
+			latch.countDown();
+			incProgress(inc);
+		}
+		selectedCount = uniqueCount;
+		
+		// Then read them in the order they are stored, so the package is read sequentially
+		DBPFReadSchedule schedule = new DBPFReadSchedule(table, selectedItems, selectedCount);
+		
+		PrefetchingReader prefetcher = null;
+		if (isPrefetching && positionalStream != null) {
+			logger.fine("Prefetching data of " + selectedCount + " items in " + schedule.getRunCount() + " runs");
+			long[] offsets = new long[schedule.getRunCount()];
+			int[] sizes = new int[schedule.getRunCount()];
+			for (int run = 0; run < offsets.length; run++) {
+				offsets[run] = schedule.getRunOffset(run);
+				sizes[run] = schedule.getRunSize(run);
+			}
+			prefetcher = new PrefetchingReader(positionalStream, offsets, sizes, PrefetchingReader.DEFAULT_BUFFER_SIZE);
+		}
+		
+		logger.fine("Processing " + selectedCount + " items");
+		try {
+			for (int run = 0; run < schedule.getRunCount(); run++) {
+				int runStart = schedule.getRunStart(run);
+				int runEnd = schedule.getRunEnd(run);
+				
+				// With positional reads the workers read every item themselves; otherwise the whole run is read at once
+				SharedChunk sharedChunk = prefetcher != null ? new SharedChunk(prefetcher.next(), runEnd - runStart) : null;
+				byte[] runData = prefetcher == null && positionalStream == null ? schedule.readRun(packageStream, run) : null;
+				int position = runStart;
+				try {
+					for (; position < runEnd; position++) {
+						DBPFItem item = table.getItem(schedule.getItem(position));
+						int offsetInRun = schedule.getOffsetInRun(run, position);
+			
+						logger.fine("Processing item: " + item.name);
+						File outputFile = getOutputFile(item, outputFolder, packageNames);
+			
+						FileConvertAction action;
+						if (sharedChunk != null) {
+							action = new FileConvertAction(item, outputFile, sharedChunk, offsetInRun, inc, latch::countDown);
+						}
+						else if (positionalStream != null) {
+							action = new FileConvertAction(item, outputFile, positionalStream, inc, latch::countDown);
+						}
+						else {
+							int length = item.isCompressed ? item.compressedSize : item.memSize;
+							action = new FileConvertAction(item, outputFile, item.processFile(runData, offsetInRun, length, isValidating), inc, latch::countDown);
+						}
+						
+						if (isParallel) {
+							if (position == selectedCount - 1 || ForkJoinPool.commonPool().getQueuedSubmissionCount() >= maxTasks) {
+								logger.fine("Executing item in same thread: " + item.name);
+								ForkJoinPool.commonPool().invoke(action);
+							}
+							else {
+								logger.fine("Submitting item to thread pool: " + item.name);
+								ForkJoinPool.commonPool().execute(action);
+							}
+						} else {
+							logger.fine("Processing item sequentially: " + item.name);
+							action.compute();
+						}
+					}
+				}
+				finally {
+					// If something failed, the chunk must not wait for the actions that were never created
+					if (sharedChunk != null && position < runEnd) sharedChunk.release(runEnd - position);
+					ByteArrayPool.release(runData);
+				}
+			}
+		}
+		finally {
+			if (prefetcher != null) prefetcher.close();
+		}
 
 		logger.fine("Waiting for all files to finish writing");
 		latch.await();
+		// The latch is counted down before the writer releases its permit, so make sure the package is not used anymore
+		writer.flush();
 
-		logger.fine("Clearing extra names from registry");
-		hasher.getProjectRegistry().clear();
+		if (!isNested) {
+			logger.fine("Clearing extra names from registry");
+			hasher.getProjectRegistry().clear();
+		}
 	}
 
 	public Exception call() throws Exception {
@@ -322,7 +602,13 @@ public class DBPFUnpackingTask {
 
 		if (inputStream != null) {
 			logger.fine("Unpacking from input stream");
-			unpackStream(inputStream, null, 1.0);
+			try (AsyncFileWriter writer = new AsyncFileWriter(writerThreads, AsyncFileWriter.DEFAULT_MAX_PENDING)) {
+				this.writer = writer;
+				unpackStream(inputStream, null, null, 1.0);
+			}
+			finally {
+				this.writer = null;
+			}
 		}
 		else {
 			logger.fine("Unpacking from " + inputFiles.size() + " input files");
@@ -351,14 +637,19 @@ public class DBPFUnpackingTask {
 					continue;
 				}
 
-				try (StreamReader packageStream = new FileStream(inputFile, "r"))  {
-					unpackStream(packageStream, checkFiles ? writtenFiles : null, projectProgress);
+				try (StreamReader packageStream = isMemoryMapped ? new MappedFileStream(inputFile) : new FileStream(inputFile, FileStream.DEFAULT_BLOCK_SIZE, FileStream.DEFAULT_READ_AHEAD);
+						AsyncFileWriter writer = new AsyncFileWriter(writerThreads, AsyncFileWriter.DEFAULT_MAX_PENDING))  {
+					this.writer = writer;
+					unpackStream(packageStream, inputFile, checkFiles ? writtenFiles : null, projectProgress);
 				}
 				catch (Exception e) {
 					logger.severe("Error unpacking file: " + inputFile.getAbsolutePath());
 					logger.severe(e.toString());
 					return e;
 				}
+				finally {
+					this.writer = null;
+				}
 				++i;
 			}
 		}
@@ -373,36 +664,219 @@ public class DBPFUnpackingTask {
 		progress += increment;
 	}
 
+	/**
+	 * A chunk read by the prefetcher that contains the data of multiple items. It is closed once all the items have used it.
+	 */
+	private static class SharedChunk {
+		final PrefetchingReader.Chunk chunk;
+		final AtomicInteger references;
+		
+		SharedChunk(PrefetchingReader.Chunk chunk, int references) {
+			this.chunk = chunk;
+			this.references = new AtomicInteger(references);
+		}
+		
+		void release(int count) {
+			if (references.addAndGet(-count) == 0) {
+				chunk.close();
+			}
+		}
+	}
+
 	private class FileConvertAction extends RecursiveAction {
 		final DBPFItem item;
-		final File folder;
-		final MemoryStream dataStream;
+		final File outputFile;
+		/** The package the item data is read from, only used if the data has not been read yet. */
+		final PositionalReader source;
+		/** The raw data of the run that contains this item, read by the prefetcher; only used if the data has not been processed yet. */
+		SharedChunk chunk;
+		/** The position of the item data in the chunk. */
+		final int offsetInChunk;
+		MemoryStream dataStream;
 		final double inc;
-		final CountDownLatch latch;
+		/** Called once the item has been completely unpacked, whether it failed or not. */
+		final Runnable onFinish;
 		
-		FileConvertAction(DBPFItem item, File folder, MemoryStream dataStream, double inc, CountDownLatch latch) {
+		FileConvertAction(DBPFItem item, File outputFile, MemoryStream dataStream, double inc, Runnable onFinish) {
 			this.item = item;
-			this.folder = folder;
+			this.outputFile = outputFile;
+			this.source = null;
+			this.chunk = null;
+			this.offsetInChunk = 0;
 			this.dataStream = dataStream;
 			this.inc = inc;
-			this.latch = latch;
+			this.onFinish = onFinish;
+		}
+		
+		FileConvertAction(DBPFItem item, File outputFile, PositionalReader source, double inc, Runnable onFinish) {
+			this.item = item;
+			this.outputFile = outputFile;
+			this.source = source;
+			this.chunk = null;
+			this.offsetInChunk = 0;
+			this.inc = inc;
+			this.onFinish = onFinish;
+		}
+		
+		FileConvertAction(DBPFItem item, File outputFile, SharedChunk chunk, int offsetInChunk, double inc, Runnable onFinish) {
+			this.item = item;
+			this.outputFile = outputFile;
+			this.source = null;
+			this.chunk = chunk;
+			this.offsetInChunk = offsetInChunk;
+			this.inc = inc;
+			this.onFinish = onFinish;
 		}
 
 		@Override public void compute() {
+			// Once the file is given to the writer (or the nested package is opened), they are responsible for finishing the action
 			try {
+				logger.fine("Writing file: " + outputFile.getName());
+
+				if (dataStream == null && chunk != null) {
+					int length = item.isCompressed ? item.compressedSize : item.memSize;
+					dataStream = item.processFile(chunk.chunk.getData(), offsetInChunk, length, isValidating);
+					chunk.release(1);
+					chunk = null;
+				}
+				
+				if (isNestedPackage(item)) {
+					openNestedPackage().unpack();
+				}
+				else if (dataStream == null && (!item.isCompressed || item.memSize >= DBPFItem.STREAMING_MIN_SIZE)) {
+					// Uncompressed data goes straight from the package to the file, and big compressed data is decompressed on the way
+					writer.write(outputFile, file -> item.writeToFile(source, file), this::finish);
+				}
+				else {
+					if (dataStream == null) {
+						dataStream = item.processFileAt(source, isValidating);
+					}
+					// The writer takes care of closing the stream
+					MemoryStream data = dataStream;
+					dataStream = null;
+					writer.write(outputFile, data, this::finish);
+				}
+			}
+			catch (Exception e) {
+				finish(e);
+			}
+			finally {
+				if (dataStream != null) dataStream.close();
+				if (chunk != null) {
+					chunk.release(1);
+					chunk = null;
+				}
+			}
+		}
+		
+		/**
+		 * Opens the package stored in this item. Uncompressed packages are read through a slice of the package that contains them,
+		 * compressed ones are decompressed into memory.
+		 */
+		private NestedPackage openNestedPackage() throws IOException {
+			if (dataStream == null && !item.isCompressed && source instanceof StreamReader) {
+				StreamReader stream = ((StreamReader) source).slice(item.chunkOffset, item.memSize);
+				return new NestedPackage(this, stream, null);
+			}
+			if (dataStream == null) {
+				dataStream = item.processFileAt(source, isValidating);
+			}
+			MemoryStream data = dataStream;
+			dataStream = null;
+			return new NestedPackage(this, new ByteBufferStream(ByteBuffer.wrap(data.getRawData(), 0, (int) data.length())), data);
+		}
+		
+		private void finish(Exception error) {
+			if (error != null) {
+				logger.warning("Error converting file: " + item.name + " - " + error.toString());
+				exceptions.put(item, error);
+			}
+			incProgress(inc);
+			onFinish.run();
+		}
+	}
+	
+	/**
+	 * A package stored inside another package. Its items are unpacked by the same pool as the items of the parent package,
+	 * and the item that contains the package is finished once all of them have been written.
+	 */
+	private class NestedPackage {
+		final FileConvertAction packageAction;
+		/** The data of the package; it is positional, so all the items can be read at the same time. */
+		final StreamReader stream;
+		/** The decompressed data of the package, released once all the items are written; null if the package is a slice. */
+		final MemoryStream data;
+		/** The items that are not finished yet, plus one while they are being submitted. */
+		final AtomicInteger pendingItems = new AtomicInteger(1);
+		/** The error that prevented unpacking the package, if any. */
+		Exception error;
+		
+		NestedPackage(FileConvertAction packageAction, StreamReader stream, MemoryStream data) {
+			this.packageAction = packageAction;
+			this.stream = stream;
+			this.data = data;
+		}
+		
+		/**
+		 * Reads the index of the package and submits all its items. This never throws: errors finish the package item instead.
+		 */
+		void unpack() {
+			try {
+				DatabasePackedFile header = new DatabasePackedFile();
+				header.readHeader(stream);
+				header.readIndex(stream);
+				DBPFIndexTable table = header.index.readTable(stream, header.indexCount, header.isDBBF);
+				NameRegistry names = readPackageNames(findNamesFile(table, stream));
 				HashManager hasher = HashManager.get();
-				String name = hasher.getFileName(item.name.getInstanceID()) + "." + hasher.getTypeName(item.name.getTypeID());
-				logger.fine("Writing file: " + name);
-				dataStream.writeToFile(new File(folder, name));
+				
+				File outputFolder = new File(packageAction.outputFile.getPath() + ".unpacked");
+				DBPFConverter.clearOutputFolder(outputFolder);
+				
+				int[] selectedItems = new int[table.size()];
+				int selectedCount = 0;
+				for (int i = 0; i < table.size(); i++) {
+					// Same rules as the parent package: the last repeated key wins, and autolocale files are skipped
+					if (table.lastIndexOf(i) != i) {
+						continue;
+					}
+					if (table.getGroupID(i) == 0x02FABF01 && hasher.getFileName(table.getInstanceID(i), names).startsWith("auto_")) {
+						continue;
+					}
+					selectedItems[selectedCount++] = i;
+				}
+				
+				DBPFReadSchedule schedule = new DBPFReadSchedule(table, selectedItems, selectedCount);
+				logger.fine("Unpacking " + selectedCount + " items of nested package " + packageAction.item.name);
+				for (int position = 0; position < schedule.getItemCount(); position++) {
+					DBPFItem item = table.getItem(schedule.getItem(position));
+					FileConvertAction action = new FileConvertAction(item, getOutputFile(item, outputFolder, names),
+							(PositionalReader) stream, 0, this::itemFinished);
+					pendingItems.incrementAndGet();
+					if (isParallel) {
+						action.fork();
+					} else {
+						action.compute();
+					}
+				}
 			}
 			catch (Exception e) {
-				logger.warning("Error converting file: " + item.name + " - " + e.toString());
-				exceptions.put(item, e);
+				error = e;
 			}
 			finally {
-				dataStream.close();
-				incProgress(inc);
-				latch.countDown();
+				itemFinished();
+			}
+		}
+		
+		private void itemFinished() {
+			if (pendingItems.decrementAndGet() == 0) {
+				try {
+					stream.close();
+				}
+				catch (IOException e) {
+					if (error == null) error = e;
+				}
+				if (data != null) data.close();
+				packageAction.finish(error);
 			}
 		}
 	}
@@ -27,8 +27,8 @@ import sporemodder.file.ResourceKey;
 
 public class DatabasePackedFile {
 	
-	private static final int TYPE_DBPF = 0x46504244;
-	private static final int TYPE_DBBF = 0x46424244;
+	static final int TYPE_DBPF = 0x46504244;
+	static final int TYPE_DBBF = 0x46424244;
 	
 	public int majorVersion = 3;
 	public int minVersion = 0;
@@ -81,10 +81,10 @@ public class DatabasePackedFile {
 		in.skip(20);
 		indexMajorVersion = in.readLEInt();
 		indexCount = in.readLEInt();
-		indexSize = in.readLEInt();
-		in.skip(8);
+		indexSize = in.readLELong();
+		in.skip(4);
 		indexMinorVersion = in.readLEInt();
-		indexOffset = in.readLEInt();
+		indexOffset = in.readLELong();
 	}
 	
 	private void writeDBBF(StreamWriter stream) throws IOException {
@@ -137,13 +137,16 @@ public class DatabasePackedFile {
 		index.readItems(stream, indexCount, isDBBF);
 	}
 	
+	/**
+	 * Returns the first item with the given resource key, or null if there is none. The lookup takes constant time;
+	 * if the index was read as a {@link DBPFIndexTable}, a new item is returned on every call.
+	 */
 	public DBPFItem getItem(ResourceKey key) {
-		for (DBPFItem item : index.items) {
-			if (item.name.equals(key)) {
-				return item;
-			}
+		if (index.items.isEmpty() && index.table != null) {
+			int i = index.table.indexOf(key);
+			return i == -1 ? null : index.table.getItem(i);
 		}
-		return null;
+		return index.getItem(key);
 	}
 	
 	public void print() {
@@ -0,0 +1,260 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import sporemodder.HashManager;
+import sporemodder.file.ResourceKey;
+import sporemodder.file.filestructures.ByteArrayPool;
+import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
+import sporemodder.file.filestructures.PositionalReader;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * Reads single resources from a package without unpacking it. The package is opened once and its index is kept in memory,
+ * so every resource can be found in constant time and only its own data is read (and decompressed, if necessary).
+ * <p>
+ * The reader is thread-safe: any number of threads can read resources at the same time. It must not be closed
+ * while there are reads in progress.
+ */
+public class PackageReader implements Closeable {
+
+	private final File file;
+	private final StreamReader stream;
+	private final PositionalReader reader;
+	private final DatabasePackedFile header;
+	private final DBPFIndexTable table;
+	/** The content of the <code>sporemaster/names</code> files, only valid if {@link #hasNamesData} is true. */
+	private byte[] namesData;
+	private boolean hasNamesData;
+	private volatile boolean isClosed;
+
+	/**
+	 * Opens the given package, reading it through memory-mapped windows.
+	 * @param file The package file.
+	 * @throws IOException If the file cannot be opened or it is not a valid package.
+	 */
+	public PackageReader(File file) throws IOException {
+		this(file, true, null);
+	}
+
+	/**
+	 * Opens the given package.
+	 * @param file The package file.
+	 * @param isMemoryMapped Whether the package is read through memory-mapped windows or with buffered file reads.
+	 * @param indexCache An optional cache the index is taken from if the package is there; it can be null.
+	 * The reader doesn't store the index in the cache, as it doesn't read the names file.
+	 * @throws IOException If the file cannot be opened or it is not a valid package.
+	 */
+	public PackageReader(File file, boolean isMemoryMapped, DBPFIndexCache indexCache) throws IOException {
+		this.file = file;
+		StreamReader stream = isMemoryMapped ? new MappedFileStream(file) : new FileStream(file, FileStream.DEFAULT_BLOCK_SIZE, FileStream.DEFAULT_READ_AHEAD);
+		try {
+			DBPFIndexCache.Entry cached = indexCache != null ? indexCache.load(file) : null;
+			if (cached != null) {
+				header = cached.header;
+				table = cached.table;
+				namesData = cached.namesData;
+				hasNamesData = true;
+			}
+			else {
+				header = new DatabasePackedFile();
+				header.readHeader(stream);
+				header.readIndex(stream);
+				table = header.index.readTable(stream, header.indexCount, header.isDBBF);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			stream.close();
+			throw e;
+		}
+		this.stream = stream;
+		this.reader = (PositionalReader) stream;
+	}
+
+	/** Returns the package file this reader reads from. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Returns the header of the package. */
+	public DatabasePackedFile getHeader() {
+		return header;
+	}
+
+	/** Returns the index of the package, which can be used to list or search its resources. */
+	public DBPFIndexTable getIndex() {
+		return table;
+	}
+
+	/**
+	 * Returns the content of the <code>sporemaster/names</code> files of the package, one after the other, or null if it
+	 * doesn't have any. These are the names used when the package is unpacked; they are read the first time this is called,
+	 * unless the index was taken from the cache. The {@link HashManager} must be initialized.
+	 * @throws IOException If the names files cannot be read.
+	 */
+	public synchronized byte[] getNamesData() throws IOException {
+		if (!hasNamesData) {
+			HashManager hasher = HashManager.get();
+			int group = hasher.getFileHash("sporemaster");
+			int name = hasher.getFileHash("names");
+			
+			ByteArrayOutputStream data = null;
+			for (int i : table.indicesOfGroup(group)) {
+				if (table.getInstanceID(i) == name) {
+					if (data == null) {
+						data = new ByteArrayOutputStream();
+					} else {
+						data.write('\n');
+					}
+					ByteBuffer buffer = read(i);
+					data.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+				}
+			}
+			namesData = data == null ? null : data.toByteArray();
+			hasNamesData = true;
+		}
+		return namesData;
+	}
+
+	/** Returns whether the package contains a resource with the given key. */
+	public boolean contains(ResourceKey key) {
+		return table.indexOf(key) != -1;
+	}
+
+	/**
+	 * Returns the information of the resource with the given key, or null if the package does not contain it.
+	 * If there are multiple resources with the same key, the first one is returned.
+	 */
+	public DBPFItem getItem(ResourceKey key) {
+		int index = table.indexOf(key);
+		return index == -1 ? null : table.getItem(index);
+	}
+
+	private void checkOpen() throws IOException {
+		if (isClosed) {
+			throw new IOException("The package reader is closed");
+		}
+	}
+
+	/**
+	 * Returns the data of the resource with the given key, decompressing it if necessary, or null if the package
+	 * does not contain it. The buffer is positioned at 0 and its limit is the size of the data; it uses the default
+	 * big-endian order, so change it if needed.
+	 * @throws IOException If the data cannot be read or decompressed.
+	 */
+	public ByteBuffer read(ResourceKey key) throws IOException {
+		int index = table.indexOf(key);
+		return index == -1 ? null : read(index);
+	}
+
+	/**
+	 * Returns the data of the resource at the given position of the index, decompressing it if necessary.
+	 * @see #read(ResourceKey)
+	 */
+	public ByteBuffer read(int index) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(table.getMemSize(index));
+		read(index, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads the data of the resource at the given position of the index into the given buffer, which can be a heap
+	 * or a direct buffer. The data is written at the position of the buffer, which is then moved after it.
+	 * Compressed data is decompressed straight from the package when it is memory-mapped, without any intermediate copy.
+	 * @return The size of the data, in bytes.
+	 * @throws IOException If the data cannot be read or decompressed.
+	 * @throws BufferOverflowException If the data doesn't fit in the remaining space of the buffer.
+	 */
+	public int read(int index, ByteBuffer dst) throws IOException {
+		checkOpen();
+		long offset = table.getChunkOffset(index);
+		int memSize = table.getMemSize(index);
+		if (dst.remaining() < memSize) {
+			throw new BufferOverflowException();
+		}
+
+		if (table.isCompressed(index)) {
+			int compressedSize = table.getCompressedSize(index);
+			// The decompressor uses absolute indices up to the capacity, so this keeps it from writing past the limit
+			ByteBuffer target = dst.slice();
+			ByteBuffer view = reader.view(offset, compressedSize);
+			if (view != null) {
+				RefPackCompression.decompress(view, 0, compressedSize, target, 0);
+			}
+			else {
+				byte[] compressed = ByteArrayPool.acquire(compressedSize);
+				try {
+					reader.readAt(offset, compressed, 0, compressedSize);
+					RefPackCompression.decompress(ByteBuffer.wrap(compressed), 0, compressedSize, target, 0);
+				}
+				finally {
+					ByteArrayPool.release(compressed);
+				}
+			}
+			dst.position(dst.position() + memSize);
+		}
+		else {
+			ByteBuffer data = dst.duplicate();
+			data.limit(data.position() + memSize);
+			reader.readAt(offset, data);
+			dst.position(data.position());
+		}
+		return memSize;
+	}
+
+	/**
+	 * Returns a stream with the data of the resource with the given key, or null if the package does not contain it.
+	 * The data is read from the package as the stream is read, and compressed data is decompressed on the way
+	 * with a {@link RefPackInputStream}, so resources of any size can be read with little memory. Uncompressed data is not
+	 * buffered, so it is better to read it in big blocks. The stream must be closed before the package reader is.
+	 * @throws IOException If the data cannot be read or the compressed data is not valid.
+	 */
+	public InputStream openStream(ResourceKey key) throws IOException {
+		int index = table.indexOf(key);
+		return index == -1 ? null : openStream(index);
+	}
+
+	/**
+	 * Returns a stream with the data of the resource at the given position of the index.
+	 * @see #openStream(ResourceKey)
+	 */
+	public InputStream openStream(int index) throws IOException {
+		checkOpen();
+		return table.getItem(index).openStream(reader);
+	}
+
+	/**
+	 * Closes the package. Resources cannot be read afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		isClosed = true;
+		stream.close();
+	}
+}
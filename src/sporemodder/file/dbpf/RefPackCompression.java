@@ -18,16 +18,68 @@
 ****************************************************************************/
 package sporemodder.file.dbpf;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import sporemodder.file.filestructures.ByteArrayPool;
 import sporemodder.file.filestructures.StreamReader;
 
 public class RefPackCompression {
+	
+	/** The maximum size of a token: a control byte followed by 112 literals. */
+	static final int MAX_TOKEN_SIZE = 1 + 112;
+	/** How many compressed bytes are copied at once from buffers that are not backed by an array, 16 KB. */
+	private static final int STAGING_SIZE = 16 * 1024;
 
 	public static class CompressorOutput {
 		byte[] data;
 		int lengthInBytes;
 	}
+	
+	/**
+	 * How hard the compressor looks for matches. Every level produces standard RefPack data that the game can decompress;
+	 * higher levels usually produce smaller data, but take more time.
+	 */
+	public static enum CompressionLevel {
+		/** Takes the best of the 16 most recent matches. */
+		FAST(16, false, false),
+		/** Takes the best of the 256 most recent matches, unless the next byte starts a better one (lazy matching). */
+		DEFAULT(256, true, false),
+		/**
+		 * Finds the matches of every position among the 256 most recent ones, and chooses the tokens that need the fewest bytes in total
+		 * (optimal parsing). As it can also choose every match {@link #DEFAULT} would, the data is almost always smaller, but it takes 3 to 5 times longer.
+		 */
+		MAX(256, false, true);
+		
+		/** How many previous positions with the same hash are compared, at most. */
+		final int maxChainDepth;
+		/** Whether the match of the next position is checked before taking a match. */
+		final boolean isLazy;
+		/** Whether the tokens are chosen by comparing the size of the whole output instead of one match at a time. */
+		final boolean isOptimal;
+		
+		private CompressionLevel(int maxChainDepth, boolean isLazy, boolean isOptimal) {
+			this.maxChainDepth = maxChainDepth;
+			this.isLazy = isLazy;
+			this.isOptimal = isOptimal;
+		}
+	}
+	
+	/** A match found by the compressor: how many bytes it copies, how many bytes its token uses, and its offset minus 1. */
+	private static class Match {
+		int length;
+		int cost;
+		int offset;
+	}
+	
+	/** With lazy matching, matches of this length or longer are always taken, as a better one is unlikely. */
+	private static final int LAZY_MAX_LENGTH = 32;
+	/** With optimal parsing, how many positions are compared at once; matches do not cross the end of a block. */
+	private static final int OPTIMAL_BLOCK_SIZE = 64 * 1024;
+	/** With optimal parsing, matches of this length or longer are always taken, which avoids comparing every length of long repetitions. */
+	private static final int OPTIMAL_MAX_LENGTH = 256;
+	
 	private static final int[] crctab = new int[] // size 256
 		{
 			0x0000, 0xc0c1, 0xc181, 0x0140, 0xc301, 0x03c0, 0x0280, 0xc241,
@@ -87,174 +139,570 @@ public class RefPackCompression {
 	}
 	
 	public static void decompressFast(byte[] in, byte[] out) throws IOException {
-		int pin = 0;
-//		int pout = 0;
+		decompressFast(in, 0, out);
+	}
+	
+	/**
+	 * Same as {@link #decompressFast(byte[], byte[])}, but the compressed data starts at the given position of the input array.
+	 * <p>
+	 * Control tokens are decoded straight from the input, without creating any objects. Literals are copied in bulk, and
+	 * matches that overlap the bytes they are writing are copied in chunks that double in size every time, since after each
+	 * copy the repeated pattern is twice as long.
+	 */
+	public static void decompressFast(byte[] in, int inOffset, byte[] out) throws IOException {
+		int pin = inOffset;
 		byte cType = in[pin++];
 		pin++;
 		
 		// 10FB & 1FFF
 		// We somehow extract the decompSize length from that operation
 		
-		if (cType == 0x10 || cType == 0x50) {
-			int decompSize = (in[pin++] & 0xFF) << 16 | (in[pin++] & 0xFF) << 8 | (in[pin++] & 0xFF);//bb.getInt();
-			int size = 0;
-			
-			while(size < decompSize) {
-				int numPlainData = 0;
-				int numToCopy = 0;
-				int copyOffset = 0;
+		if (cType != 0x10 && cType != 0x50) {
+			throw new IOException("Unknown compression type at position " + pin);
+		}
+		
+		int decompSize = (in[pin++] & 0xFF) << 16 | (in[pin++] & 0xFF) << 8 | (in[pin++] & 0xFF);
+		checkDecodedSize(decode(in, pin, in.length, in.length, out, 0, decompSize), decompSize);
+	}
+	
+	/**
+	 * Decompresses the data of the input array into the output array, starting at the given positions.
+	 * @param in The array that contains the compressed data.
+	 * @param inOffset The position of the input array where the compressed data starts.
+	 * @param inLength The amount of bytes of compressed data.
+	 * @param out The array where the decompressed data is written.
+	 * @param outOffset The position of the output array where the decompressed data starts.
+	 * @return The amount of decompressed bytes.
+	 * @throws IOException If the data is not RefPack compressed, it doesn't fit in the output, or the tokens don't fit
+	 * in the input range or in the size of the header.
+	 */
+	public static int decompress(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws IOException {
+		int decompSize = readHeader(ByteBuffer.wrap(in), inOffset, inLength, out.length - outOffset);
+		int inEnd = inOffset + inLength;
+		checkDecodedSize(decode(in, inOffset + 5, inEnd, inEnd, out, outOffset, outOffset + decompSize), outOffset + decompSize);
+		return decompSize;
+	}
+	
+	/**
+	 * Decompresses the data of a buffer into the given array. The buffer can be a heap, direct or memory-mapped buffer.
+	 * Offsets are absolute: the position and limit of the buffer are not used nor modified.
+	 * <p>
+	 * Heap buffers are decompressed directly from their array. The other ones are copied in small blocks to a pooled array,
+	 * which uses the same memory for any size of data and is faster than reading them byte by byte.
+	 * @param in The buffer that contains the compressed data.
+	 * @param inOffset The position of the buffer where the compressed data starts.
+	 * @param inLength The amount of bytes of compressed data.
+	 * @param out The array where the decompressed data is written.
+	 * @param outOffset The position of the array where the decompressed data starts.
+	 * @return The amount of decompressed bytes.
+	 * @throws IOException If the data is not RefPack compressed, or it doesn't fit in the output.
+	 */
+	public static int decompress(ByteBuffer in, int inOffset, int inLength, byte[] out, int outOffset) throws IOException {
+		if (in.hasArray()) {
+			return decompress(in.array(), in.arrayOffset() + inOffset, inLength, out, outOffset);
+		}
+		// Absolute gets are bound by the limit, so use a view without one
+		ByteBuffer source = in.duplicate();
+		source.clear();
+		int decompSize = readHeader(source, inOffset, inLength, out.length - outOffset);
+		decodeStaged(source, inOffset + 5, inOffset + inLength, out, outOffset, outOffset + decompSize);
+		return decompSize;
+	}
+	
+	/**
+	 * Same as {@link #decompress(ByteBuffer, int, int, byte[], int)}, but the decompressed data is written into a buffer,
+	 * which can also be direct. The position and limit of the output buffer are not used nor modified either.
+	 * <p>
+	 * Matches copy bytes that were already decompressed, which is much faster in an array than in a direct buffer,
+	 * so the data for direct buffers is decompressed into a pooled array and then copied into the buffer at once.
+	 */
+	public static int decompress(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset) throws IOException {
+		if (out.hasArray()) {
+			return decompress(in, inOffset, inLength, out.array(), out.arrayOffset() + outOffset);
+		}
+		ByteBuffer source = in.duplicate();
+		ByteBuffer target = out.duplicate();
+		source.clear();
+		target.clear();
+		int decompSize = readHeader(source, inOffset, inLength, target.capacity() - outOffset);
+		byte[] data = ByteArrayPool.acquire(decompSize);
+		try {
+			decompress(in, inOffset, inLength, data, 0);
+			target.position(outOffset);
+			target.put(data, 0, decompSize);
+		}
+		finally {
+			ByteArrayPool.release(data);
+		}
+		return decompSize;
+	}
+	
+	/**
+	 * Same as {@link #decompress(byte[], int, int, byte[], int)}, but the compressed data is not trusted: it is checked while
+	 * it is decoded, and any problem is reported with a {@link CorruptResourceException} that says where it is, instead of
+	 * failing anywhere else or writing past the data. The size in the header must be the expected one, so data that doesn't
+	 * belong to the resource is rejected before anything is decoded.
+	 * <p>
+	 * Checks are done once per token, never per byte: the input only needs to be checked near its end, where a token might
+	 * not fit, and every token checks that its output fits and that its match doesn't start before the data. Trusted data,
+	 * like the packages of the game, should still use {@link #decompressFast(byte[], byte[])}.
+	 * @param expectedSize The size the decompressed data must have, usually the {@link DBPFItem#memSize} of the item.
+	 * @return The amount of decompressed bytes, which is always the expected size.
+	 * @throws CorruptResourceException If the compressed data is not valid.
+	 * @throws IllegalArgumentException If the input range is outside the array, or the expected size doesn't fit in the output.
+	 */
+	public static int decompressValidated(byte[] in, int inOffset, int inLength, byte[] out, int outOffset, int expectedSize) throws CorruptResourceException {
+		checkRanges(in.length, inOffset, inLength, out.length, outOffset, expectedSize);
+		checkHeader(ByteBuffer.wrap(in), inOffset, inLength, expectedSize);
+		decodeValidated(in, inOffset, inOffset + 5, inOffset + inLength, out, outOffset, outOffset + expectedSize);
+		return expectedSize;
+	}
+	
+	/**
+	 * Same as {@link #decompressValidated(byte[], int, int, byte[], int, int)}, but the compressed data is read from a buffer.
+	 * The data of buffers that are not backed by an array is copied to a pooled array once the header has been checked.
+	 */
+	public static int decompressValidated(ByteBuffer in, int inOffset, int inLength, byte[] out, int outOffset, int expectedSize) throws CorruptResourceException {
+		if (in.hasArray()) {
+			return decompressValidated(in.array(), in.arrayOffset() + inOffset, inLength, out, outOffset, expectedSize);
+		}
+		ByteBuffer source = in.duplicate();
+		source.clear();
+		checkRanges(source.capacity(), inOffset, inLength, out.length, outOffset, expectedSize);
+		checkHeader(source, inOffset, inLength, expectedSize);
+		
+		byte[] data = ByteArrayPool.acquire(inLength);
+		try {
+			source.position(inOffset);
+			source.get(data, 0, inLength);
+			decodeValidated(data, 0, 5, inLength, out, outOffset, outOffset + expectedSize);
+		}
+		finally {
+			ByteArrayPool.release(data);
+		}
+		return expectedSize;
+	}
+	
+	private static void checkRanges(int inCapacity, int inOffset, int inLength, int outCapacity, int outOffset, int expectedSize) {
+		if (inOffset < 0 || inLength < 0 || inOffset + inLength > inCapacity) {
+			throw new IllegalArgumentException("Cannot read " + inLength + " bytes of compressed data at position " + inOffset);
+		}
+		if (outOffset < 0 || expectedSize < 0 || expectedSize > outCapacity - outOffset) {
+			throw new IllegalArgumentException("The expected size (" + expectedSize + " bytes) doesn't fit in the output");
+		}
+	}
+	
+	/**
+	 * Checks that the compressed data has a valid header with the expected size. The limit of the buffer must be its capacity.
+	 */
+	private static void checkHeader(ByteBuffer in, int inOffset, int inLength, int expectedSize) throws CorruptResourceException {
+		if (inLength < 5) {
+			throw new CorruptResourceException("The compressed data is too short for its header", 0);
+		}
+		int cType = in.get(inOffset) & 0xFF;
+		if (cType != 0x10 && cType != 0x50) {
+			throw new CorruptResourceException("Unknown compression type 0x" + Integer.toHexString(cType).toUpperCase(), 0);
+		}
+		int decompSize = (in.get(inOffset + 2) & 0xFF) << 16 | (in.get(inOffset + 3) & 0xFF) << 8 | (in.get(inOffset + 4) & 0xFF);
+		if (decompSize != expectedSize) {
+			throw new CorruptResourceException("The size in the header (" + decompSize + " bytes) is not the expected size (" + expectedSize + " bytes)", 2);
+		}
+	}
+	
+	/**
+	 * Checks the header of the compressed data and returns the decompressed size. The limit of the buffer must be its capacity.
+	 */
+	private static int readHeader(ByteBuffer in, int inOffset, int inLength, int outCapacity) throws IOException {
+		if (inLength < 5 || inOffset < 0 || inOffset + inLength > in.capacity()) {
+			throw new IOException("Cannot read " + inLength + " bytes of compressed data at position " + inOffset);
+		}
+		byte cType = in.get(inOffset);
+		if (cType != 0x10 && cType != 0x50) {
+			throw new IOException("Unknown compression type at position " + (inOffset + 2));
+		}
+		int decompSize = (in.get(inOffset + 2) & 0xFF) << 16 | (in.get(inOffset + 3) & 0xFF) << 8 | (in.get(inOffset + 4) & 0xFF);
+		if (decompSize > outCapacity) {
+			throw new IOException("The decompressed data (" + decompSize + " bytes) doesn't fit in the output (" + outCapacity + " bytes)");
+		}
+		return decompSize;
+	}
+	
+	/**
+	 * Copies the compressed data of the buffer in blocks of {@link #STAGING_SIZE} bytes, and decodes every block from the array.
+	 * The limit of the buffer must be its capacity.
+	 */
+	private static void decodeStaged(ByteBuffer in, int pin, int inEnd, byte[] out, int size, int sizeEnd) throws IOException {
+		byte[] block = ByteArrayPool.acquire(STAGING_SIZE);
+		try {
+			int blockLength = 0;
+			int blockPos = 0;
+			while (size < sizeEnd) {
+				// Keep the bytes of the block that were not decoded, and add as many new ones as fit
+				int remaining = blockLength - blockPos;
+				System.arraycopy(block, blockPos, block, 0, remaining);
+				int count = Math.min(STAGING_SIZE - remaining, inEnd - pin);
+				in.position(pin);
+				in.get(block, remaining, count);
+				pin += count;
+				blockLength = remaining + count;
 				
-				int controlChar = in[pin++] & 0xFF;
-				//Detects the control character
-				if (controlChar >= 252) {
-					numPlainData = controlChar & 0x03;
-				} else if (controlChar >= 224) {
-					numPlainData = ((controlChar & 0x1F) << 2 ) + 4;
-				} else if (controlChar >= 192) {
-					byte[] CCArray = {(byte)controlChar, in[pin++], in[pin++], in[pin++]};
-					numPlainData =  controlChar & 0x03;
-					numToCopy = ((controlChar & 0x0C) << 6 )  + Byte.toUnsignedInt(CCArray[3]) + 5;
-					copyOffset = ((controlChar & 0x10) << 12 ) + (Byte.toUnsignedInt(CCArray[1]) << 8 ) + Byte.toUnsignedInt(CCArray[2]) + 1;
-				} else if (controlChar >= 128) {
-					byte[] CCArray = {0, (byte)controlChar, in[pin++], in[pin++]};
-					numPlainData = ((Byte.toUnsignedInt(CCArray[2]) & 0xC0) >> 6) & 0x03;
-					numToCopy = (controlChar & 0x3F) + 4;
-					copyOffset = ((Byte.toUnsignedInt(CCArray[2]) & 0x3F) << 8) + Byte.toUnsignedInt(CCArray[3]) + 1;
-				} else {
-					byte[] CCArray = {(byte)controlChar, in[pin++]};
-					numPlainData = controlChar & 0x03;
-					numToCopy = ((controlChar & 0x1C) >> 2) + 3;
-					copyOffset = ((controlChar & 0x60) << 3) + Byte.toUnsignedInt(CCArray[1]) + 1;
-				}
+				// Tokens cannot be split between two blocks, so only start those that fit, unless there is no more data
+				boolean isLastBlock = pin == inEnd;
+				long state = decode(block, 0, isLastBlock ? blockLength : blockLength - MAX_TOKEN_SIZE, blockLength, out, size, sizeEnd);
+				blockPos = (int) (state >>> 32);
+				size = (int) state;
 				
-				//Writes data
-				if(numPlainData > 0) {
-					System.arraycopy(in, pin, out, size, numPlainData);  // use pout instead of size ?
-					pin += numPlainData;
-//					pout += numPlainData;
-					size += numPlainData;
+				if (isLastBlock && size < sizeEnd) {
+					throw new EOFException("The compressed data is truncated");
 				}
-				
-				if (numToCopy > copyOffset) {
-					for (int c = 0; c < numToCopy; c++) {
-						out[size] = out[size - copyOffset];
-						size++;
-					}
-				} else {
-					
-					System.arraycopy(out, size - copyOffset, out, size, numToCopy);
-					size += numToCopy;
+			}
+		}
+		finally {
+			ByteArrayPool.release(block);
+		}
+	}
+	
+	/**
+	 * Throws an exception if the data decoded by {@link #decode(byte[], int, int, int, byte[], int, int)} didn't reach the size in the header.
+	 */
+	private static void checkDecodedSize(long state, int sizeEnd) throws EOFException {
+		if ((int) state != sizeEnd) {
+			throw new EOFException("The compressed data is truncated");
+		}
+	}
+	
+	/**
+	 * Decodes the tokens that start at <code>pin</code> until the output reaches <code>sizeEnd</code>, or until a token
+	 * would start at or after <code>pinLimit</code>. Returns the position of the next token in the high 32 bits
+	 * and the size of the output in the low 32 bits.
+	 * <p>
+	 * Tokens are never read past <code>inEnd</code> nor written past <code>sizeEnd</code>: only the tokens near the end
+	 * of the input need to be checked, and the output is checked once per token.
+	 * @throws IOException If a token doesn't fit in the input or in the output.
+	 */
+	private static long decode(byte[] in, int pin, int pinLimit, int inEnd, byte[] out, int size, int sizeEnd) throws IOException {
+		// Tokens that start before this position always fit in the input
+		int safeEnd = inEnd - MAX_TOKEN_SIZE;
+		while (size < sizeEnd && pin < pinLimit) {
+			if (pin > safeEnd && getTokenLength(in, pin, inEnd) > inEnd - pin) {
+				throw new EOFException("The compressed data ends in the middle of a token");
+			}
+			int controlChar = in[pin++] & 0xFF;
+			int numPlainData;
+			int numToCopy;
+			int copyOffset;
+			
+			if (controlChar < 0x80) {
+				// 0OOLLLPP OOOOOOOO
+				int byte1 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x1C) >> 2) + 3;
+				copyOffset = ((controlChar & 0x60) << 3) + byte1 + 1;
+			}
+			else if (controlChar < 0xC0) {
+				// 10LLLLLL PPOOOOOO OOOOOOOO
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				numPlainData = byte1 >> 6;
+				numToCopy = (controlChar & 0x3F) + 4;
+				copyOffset = ((byte1 & 0x3F) << 8) + byte2 + 1;
+			}
+			else if (controlChar < 0xE0) {
+				// 110OLLPP OOOOOOOO OOOOOOOO LLLLLLLL
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				int byte3 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x0C) << 6) + byte3 + 5;
+				copyOffset = ((controlChar & 0x10) << 12) + (byte1 << 8) + byte2 + 1;
+			}
+			else {
+				// Only literals: 111PPPPP copies 4 to 112 bytes, 111111PP (the end of the stream) copies 0 to 3
+				numPlainData = controlChar >= 0xFC ? controlChar & 0x03 : ((controlChar & 0x1F) << 2) + 4;
+				if (numPlainData > sizeEnd - size) {
+					throw outputOverflow();
 				}
-				
+				System.arraycopy(in, pin, out, size, numPlainData);
+				pin += numPlainData;
+				size += numPlainData;
+				continue;
 			}
-		} else {
-			throw new IOException("Unknown compression type at position " + pin);
+			
+			if (numPlainData + numToCopy > sizeEnd - size) {
+				throw outputOverflow();
+			}
+			
+			copyLiterals(in, pin, out, size, numPlainData);
+			pin += numPlainData;
+			size += numPlainData;
+			
+			int src = size - copyOffset;
+			if (numToCopy <= copyOffset) {
+				System.arraycopy(out, src, out, size, numToCopy);
+				size += numToCopy;
+			}
+			else {
+				int end = size + numToCopy;
+				while (size < end) {
+					int n = Math.min(size - src, end - size);
+					System.arraycopy(out, src, out, size, n);
+					size += n;
+				}
+			}
+		}
+		return (long) pin << 32 | size;
+	}
+	
+	/**
+	 * Creates the exception for a token that would write past the size in the header; like {@link #tokenError}, it is kept out of the decoding loop.
+	 */
+	private static IOException outputOverflow() {
+		return new IOException("The compressed data is longer than the size in its header");
+	}
+	
+	/**
+	 * Copies the literals that come before a match. There are at most 3, so it is not worth a call to arraycopy.
+	 */
+	private static void copyLiterals(byte[] in, int pin, byte[] out, int size, int numPlainData) {
+		if (numPlainData != 0) {
+			out[size] = in[pin];
+			if (numPlainData != 1) {
+				out[size + 1] = in[pin + 1];
+				if (numPlainData != 2) {
+					out[size + 2] = in[pin + 2];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Same as {@link #decode(byte[], int, int, int, byte[], int, int)}, but every token is checked before it is decoded.
+	 * Offsets in the exceptions are counted from <code>start</code>, the position of the header.
+	 */
+	private static void decodeValidated(byte[] in, int start, int pin, int inEnd, byte[] out, int outStart, int sizeEnd) throws CorruptResourceException {
+		// Tokens that start before this position always fit in the input
+		int safeEnd = inEnd - MAX_TOKEN_SIZE;
+		int size = outStart;
+		
+		while (size < sizeEnd) {
+			int tokenStart = pin;
+			if (pin > safeEnd) {
+				checkTokenInput(in, pin, inEnd, start);
+			}
+			int controlChar = in[pin++] & 0xFF;
+			int numPlainData;
+			int numToCopy;
+			int copyOffset;
+			
+			if (controlChar < 0x80) {
+				int byte1 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x1C) >> 2) + 3;
+				copyOffset = ((controlChar & 0x60) << 3) + byte1 + 1;
+			}
+			else if (controlChar < 0xC0) {
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				numPlainData = byte1 >> 6;
+				numToCopy = (controlChar & 0x3F) + 4;
+				copyOffset = ((byte1 & 0x3F) << 8) + byte2 + 1;
+			}
+			else if (controlChar < 0xE0) {
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				int byte3 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x0C) << 6) + byte3 + 5;
+				copyOffset = ((controlChar & 0x10) << 12) + (byte1 << 8) + byte2 + 1;
+			}
+			else {
+				numPlainData = controlChar >= 0xFC ? controlChar & 0x03 : ((controlChar & 0x1F) << 2) + 4;
+				if (numPlainData > sizeEnd - size || (controlChar >= 0xFC && numPlainData != sizeEnd - size)) {
+					throw tokenError(controlChar, numPlainData, 0, 0, size - outStart, sizeEnd - size, tokenStart - start);
+				}
+				System.arraycopy(in, pin, out, size, numPlainData);
+				pin += numPlainData;
+				size += numPlainData;
+				continue;
+			}
+			
+			if (numPlainData + numToCopy > sizeEnd - size || copyOffset > size + numPlainData - outStart) {
+				throw tokenError(controlChar, numPlainData, numToCopy, copyOffset, size - outStart, sizeEnd - size, tokenStart - start);
+			}
+			
+			copyLiterals(in, pin, out, size, numPlainData);
+			pin += numPlainData;
+			size += numPlainData;
+			
+			int src = size - copyOffset;
+			if (numToCopy <= copyOffset) {
+				System.arraycopy(out, src, out, size, numToCopy);
+				size += numToCopy;
+			}
+			else {
+				int end = size + numToCopy;
+				while (size < end) {
+					int n = Math.min(size - src, end - size);
+					System.arraycopy(out, src, out, size, n);
+					size += n;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates the exception for a token that doesn't fit in the decompressed data. It is kept out of the decoding loop,
+	 * which is smaller and faster without the code that builds the messages.
+	 * @param size How many bytes had been decompressed before the token.
+	 * @param remaining How many bytes were left until the size in the header.
+	 */
+	private static CorruptResourceException tokenError(int controlChar, int numPlainData, int numToCopy, int copyOffset, int size, int remaining, int offset) {
+		if (numPlainData + numToCopy > remaining) {
+			return new CorruptResourceException("The compressed data is longer than the size in its header", offset);
+		}
+		if (controlChar >= 0xFC) {
+			return new CorruptResourceException("The compressed data ends before the size in its header", offset);
+		}
+		return new CorruptResourceException("A match copies from " + copyOffset + " bytes back, but only "
+				+ (size + numPlainData) + " bytes have been decompressed", offset);
+	}
+	
+	/**
+	 * Checks that the whole token at the given position, including its literals, is inside the input.
+	 */
+	private static void checkTokenInput(byte[] in, int pin, int inEnd, int start) throws CorruptResourceException {
+		if (pin >= inEnd) {
+			throw new CorruptResourceException("The compressed data ends before the size in its header", pin - start);
+		}
+		if (getTokenLength(in, pin, inEnd) > inEnd - pin) {
+			throw new CorruptResourceException("The compressed data ends in the middle of a token", pin - start);
+		}
+	}
+	
+	/**
+	 * Returns how many bytes the token at the given position uses, including its literals. No byte at or after <code>inEnd</code>
+	 * is read: if the control bytes of the token are not in the input, this returns a length that doesn't fit either.
+	 */
+	private static int getTokenLength(byte[] in, int pin, int inEnd) {
+		if (pin >= inEnd) {
+			return 1;
+		}
+		int controlChar = in[pin] & 0xFF;
+		int tokenSize = controlChar < 0x80 ? 2 : (controlChar < 0xC0 ? 3 : (controlChar < 0xE0 ? 4 : 1));
+		if (tokenSize > inEnd - pin) {
+			return tokenSize;
+		}
+		int numPlainData;
+		if (controlChar >= 0x80 && controlChar < 0xC0) {
+			numPlainData = (in[pin + 1] & 0xFF) >> 6;
+		}
+		else if (controlChar >= 0xE0 && controlChar < 0xFC) {
+			numPlainData = ((controlChar & 0x1F) << 2) + 4;
 		}
+		else {
+			numPlainData = controlChar & 0x03;
+		}
+		return tokenSize + numPlainData;
 	}
 	
+	/**
+	 * Compresses the data with the {@link CompressionLevel#DEFAULT} level.
+	 */
 	public static void compress(byte[] input, int inputLength, CompressorOutput out) throws IOException {
+		compress(input, inputLength, out, CompressionLevel.DEFAULT);
+	}
+	
+	/**
+	 * Compresses the first <code>inputLength</code> bytes of the input into RefPack data, which is stored in <code>out</code>.
+	 * @param level How hard the compressor looks for matches; every level can be decompressed by the game.
+	 */
+	public static void compress(byte[] input, int inputLength, CompressorOutput out, CompressionLevel level) throws IOException {
+		byte[] in = new byte[inputLength + 2]; //we need more size?
+		System.arraycopy(input, 0, in, 0, inputLength);
 		
+		byte[] data = new byte[inputLength * 2 + 8192];
+		int to = level.isOptimal ? encodeOptimal(in, inputLength, data, level.maxChainDepth) : encode(in, inputLength, data, level);
+		
+		out.lengthInBytes = to + 2;
+		//TODO Optimize this?
+		// We add 0x10FB here. This might no be the most efficient method, but the original code didn't add it at all, so maybe adding it
+		// at the beginning of the method causes some trouble.
+		out.data = new byte[out.lengthInBytes];
+		out.data[0] = 0x10;
+		out.data[1] = (byte) 0xFB;
+		System.arraycopy(data, 0, out.data, 2, to);
+	}
+	
+	/**
+	 * Writes the size of the data and the RefPack tokens into <code>output</code>, without the 0x10FB signature.
+	 * @param in The data to compress, followed by 2 more bytes.
+	 * @return How many bytes were written.
+	 */
+	private static int encode(byte[] in, int inputLength, byte[] output, CompressionLevel level) {
 		int len;
-		int tlen; //uint
-		int tcost; //uint
 		int run = 0; //uint
-		int toffset; //uint
-		int boffset; //uint
-		int blen; //uint
-		int bcost; //uint
-		int mlen; //uint
-		int tptr; // const u_int8*
 		int cptr = 0; // const u_int8*, pointer to input buffer
 		int rptr = 0; // const u_int8*, pointer to input buffer
 		int to = 0; // u_int8*. Pointer to outputBuffer
 		
-//		int countliterals = 0;
-//		int countshort = 0;
-//		int countlong = 0;
-//		int countvlong = 0;
 		int hash;
-		int hoffset;
-		long minhoffset;
 		int i; // offset in input
 		int[] link; // int32 *
 		int[] hashtbl; // int32 *
-		int hashptr = 0; // int32 *
 		
-		len = inputLength;
-		out.data = new byte[len * 2 + 8192]; 
+		// The best match of the current position, and the one of the next position when using lazy matching
+		Match match = new Match();
+		Match next = new Match();
+		// Whether 'match' was already found for the current position, while looking ahead from the previous one
+		boolean hasMatch = false;
+		// Whether the current position has already been added to the hash chains
+		boolean isInserted;
 		
-		byte[] in = new byte[len + 2]; //we need more size?
-		System.arraycopy(input, 0, in, 0, len);
+		len = inputLength;
 		
-		// Write size into the stream
-		for (i = 0; i < 3; i++, to++) {
-			out.data[to] = (byte)(len >> ((2-i) * 8) & 0xFF);
-		}
+		to = writeSize(output, len);
 		
-		hashtbl = new int[65536];
+		hashtbl = createHashTable();
 		link = new int[131072];
 		
-		for (i = 0; i < 65536/16; ++i) {
-			hashtbl[hashptr + 0] = hashtbl[hashptr + 1] = hashtbl[hashptr + 2] = hashtbl[hashptr + 3] =
-			hashtbl[hashptr + 4] = hashtbl[hashptr + 5] = hashtbl[hashptr + 6] = hashtbl[hashptr + 7] =
-			hashtbl[hashptr + 8] = hashtbl[hashptr + 9] = hashtbl[hashptr + 10] = hashtbl[hashptr + 11] =
-			hashtbl[hashptr + 12] = hashtbl[hashptr + 13] = hashtbl[hashptr + 14] = hashtbl[hashptr + 15] = -1;
-			hashptr += 16;
-		}
-		
 		while (len > 0)
 		{
-			boffset = 0;
-			blen = bcost = 2;
-			mlen = min(len, 1028);
-			tptr = cptr - 1;
-			hash = hash(in, cptr); // cptr points to input buffer
-			hoffset = hashtbl[hash];
-			minhoffset = max(cptr - 131071, 0);
+			if (!hasMatch) {
+				findMatch(in, hashtbl, link, cptr, len, level.maxChainDepth, match);
+			}
+			hasMatch = false;
+			isInserted = false;
 			
-			if (hoffset >= minhoffset)
+			if (match.cost < match.length && level.isLazy && match.length < LAZY_MAX_LENGTH && len > 1)
 			{
-				do
+				// Check if the next position starts a better match; if so, the current byte becomes a literal
+				hash = hash(in, cptr);
+				link[cptr & 131071] = hashtbl[hash];
+				hashtbl[hash] = cptr;
+				isInserted = true;
+				
+				findMatch(in, hashtbl, link, cptr + 1, len - 1, level.maxChainDepth, next);
+				if (next.length - next.cost > match.length - match.cost)
 				{
-					tptr = hoffset; // tptr points to input buffer
-					if (in[cptr + blen] == in[tptr + blen])
-					{
-						// cptr and tptr point to input buffer
-						tlen = matchlen(in, cptr, in, tptr, mlen);
-						if (tlen > blen)
-						{
-							toffset = (cptr-1)-tptr;
-							// two byte long form
-							if (toffset < 1024 && tlen <= 10) {
-								tcost = 2;
-							//three byte long form
-							} else if (toffset < 16384 && tlen <= 67) {
-								tcost = 3;
-							// four byte very long form
-							} else {
-								tcost = 4;
-							}
-							
-							if (tlen - tcost + 4 > blen - bcost + 4)
-							{
-								blen = tlen;
-								bcost = tcost;
-								boffset = toffset;
-								if (blen >= 1028) {
-									break;
-								}
-							}
-						}
-					}
+					Match temp = match;
+					match = next;
+					next = temp;
+					hasMatch = true;
 					
-				} while ((hoffset = link[hoffset & 131071]) >= minhoffset);
+					++run;
+					++cptr;
+					--len;
+					continue;
+				}
 			}
 			
-			if (bcost >= blen)
+			if (match.cost >= match.length)
 			{
-				hoffset = cptr;
-				link[hoffset & 131071] = hashtbl[hash];
-				hashtbl[hash] = hoffset;
+				if (!isInserted) {
+					hash = hash(in, cptr);
+					link[cptr & 131071] = hashtbl[hash];
+					hashtbl[hash] = cptr;
+				}
 				
 				++run;
 				++cptr;
@@ -262,100 +710,369 @@ public class RefPackCompression {
 			}
 			else
 			{
-				// literal block of data
-				while (run > 3)
-				{
-					tlen = min(112, run & ~3);
-					run -= tlen;
-					out.data[to++] = (byte)(0xE0 + (tlen >> 2) -1);
-					// memcpy(to, rptr, tlen)
-					System.arraycopy(in, rptr, out.data, to, tlen);
-					rptr += tlen;
-					to += tlen;
-//					++countliterals;
-				}
-				// two byte long form
-				if (bcost == 2)
-				{
-					out.data[to++] = (byte)(((boffset >> 8) << 5) + ((blen - 3) << 2) + run);
-					out.data[to++] = (byte)boffset;
-//					++countshort;
-				}
-				// three byte long form
-				else if (bcost == 3)
+				int blen = match.length;
+				to = writeMatch(in, rptr, run, output, to, blen, match.cost, match.offset);
+				run = 0;
+				
+				// Add all the positions of the match to the hash chains
+				for (i = 0; i < blen; ++i)
 				{
-					out.data[to++] = (byte) (0x80 + (blen - 4));
-					out.data[to++] = (byte) ((run<<6) + (boffset>>8));
-					out.data[to++] = (byte) boffset;
-//					++countlong;
+					if (i != 0 || !isInserted) {
+						hash = hash(in, cptr);
+						link[cptr & 131071] = hashtbl[hash];
+						hashtbl[hash] = cptr;
+					}
+					++cptr;
 				}
-				// four byte very long form
-				else
-				{
-					out.data[to++] = (byte) (0xC0 + ((boffset >> 16) << 4) + 
-							(((blen - 5) >> 8) << 2) + run);
-					out.data[to++] = (byte) (boffset >> 8);
-					out.data[to++] = (byte) (boffset);
-					out.data[to++] = (byte) (blen - 5);
-//					++countvlong;
+				
+				rptr = cptr;
+				len -= blen;
+			}
+		}
+		
+		return writeEnd(in, rptr, run, output, to);
+	}
+	
+	/**
+	 * Writes the size of the data and the RefPack tokens into <code>output</code>, without the 0x10FB signature.
+	 * Unlike {@link #encode(byte[], int, byte[], CompressionLevel)}, the tokens are not chosen one at a time: for each block of positions,
+	 * it computes the fewest bytes needed to reach every position (either with a literal byte or with any length of the matches found
+	 * before it), and then writes the tokens of the cheapest way to reach the end of the block.
+	 * @param in The data to compress, followed by 2 more bytes.
+	 * @return How many bytes were written.
+	 */
+	private static int encodeOptimal(byte[] in, int inputLength, byte[] output, int maxChainDepth) {
+		int to = writeSize(output, inputLength);
+		int[] hashtbl = createHashTable();
+		int[] link = new int[131072];
+		
+		// For each position of the block: the fewest bytes needed to reach it from the start of the block, how many literals are
+		// pending at that point, and the length and offset of the match that reaches it (length 0 if it is reached by a literal)
+		int[] price = new int[OPTIMAL_BLOCK_SIZE + 1];
+		int[] literalCount = new int[OPTIMAL_BLOCK_SIZE + 1];
+		int[] matchLength = new int[OPTIMAL_BLOCK_SIZE + 1];
+		int[] matchOffset = new int[OPTIMAL_BLOCK_SIZE + 1];
+		// The matches found for the current position, and the ends of the matches chosen in a block
+		int[] lengths = new int[1028];
+		int[] offsets = new int[1028];
+		int[] matchEnds = new int[OPTIMAL_BLOCK_SIZE / 3 + 1];
+		
+		int cptr = 0;  // current position in the input
+		int rptr = 0;  // first literal that has not been written yet
+		
+		while (cptr < inputLength) {
+			int blockStart = cptr;
+			int blockEnd = min(inputLength, blockStart + OPTIMAL_BLOCK_SIZE);
+			int longLength = 0;
+			int longOffset = 0;
+			// The prices after this position have not been computed yet; they are only reset when needed, as blocks can be short
+			int lastPrice = 0;
+			
+			price[0] = 0;
+			literalCount[0] = cptr - rptr;
+			
+			for (; cptr < blockEnd; ++cptr) {
+				int i = cptr - blockStart;
+				int count = findMatches(in, hashtbl, link, cptr, inputLength - cptr, maxChainDepth, lengths, offsets);
+				
+				if (count != 0 && lengths[count - 1] >= OPTIMAL_MAX_LENGTH) {
+					// Long matches are taken directly: the block ends here, and the match is written after it
+					longLength = lengths[count - 1];
+					longOffset = offsets[count - 1];
+					blockEnd = cptr;
+					break;
 				}
+				insert(in, hashtbl, link, cptr);
 				
-				if (run != 0)
-				{
-					// memcpy(to, rptr, run);
-					System.arraycopy(in, rptr, out.data, to, run);
-					to += run;
-					run = 0;
+				int maxLength = min(blockEnd - cptr, count != 0 ? lengths[count - 1] : 1);
+				while (lastPrice < i + maxLength) {
+					price[++lastPrice] = Integer.MAX_VALUE;
 				}
 				
-				//TODO quick?
+				// A literal byte; every 112 literals need one more byte, and the last 0 to 3 are stored in the next token
+				int literals = literalCount[i] + 1;
+				int cost = price[i] + 1 + (literals >= 4 && (literals - 4) % 112 == 0 ? 1 : 0);
+				if (cost < price[i + 1]) {
+					price[i + 1] = cost;
+					literalCount[i + 1] = literals;
+					matchLength[i + 1] = 0;
+				}
 				
-				{
-					for (i = 0; i < blen; ++i)
-					{
-						hash = hash(in, cptr);
-						// hoffset = (cptr-static_cast<u_int8 *>(input.buffer));
-						hoffset = cptr;
-						link[hoffset & 131071] = hashtbl[hash];
-						hashtbl[hash] = hoffset;
-						++cptr;
+				// Every length of the matches; each match is the closest one for the lengths after the previous match
+				for (int length = 3, m = 0; length <= maxLength; ++length) {
+					if (length > lengths[m]) {
+						++m;
+					}
+					int matchCost = getMatchCost(offsets[m], length);
+					if (matchCost != 0 && price[i] + matchCost < price[i + length]) {
+						price[i + length] = price[i] + matchCost;
+						literalCount[i + length] = 0;
+						matchLength[i + length] = length;
+						matchOffset[i + length] = offsets[m];
 					}
 				}
-				
+			}
+			
+			// Go back from the end of the block to find the chosen matches, then write them in order
+			int matchCount = 0;
+			for (int i = blockEnd - blockStart; i > 0; ) {
+				if (matchLength[i] == 0) {
+					--i;
+				} else {
+					matchEnds[matchCount++] = i;
+					i -= matchLength[i];
+				}
+			}
+			while (matchCount != 0) {
+				int i = matchEnds[--matchCount];
+				int length = matchLength[i];
+				int start = blockStart + i - length;
+				to = writeMatch(in, rptr, start - rptr, output, to, length, getMatchCost(matchOffset[i], length), matchOffset[i]);
+				rptr = start + length;
+			}
+			
+			if (longLength != 0) {
+				to = writeMatch(in, rptr, cptr - rptr, output, to, longLength, getMatchCost(longOffset, longLength), longOffset);
+				for (int i = 0; i < longLength; ++i, ++cptr) {
+					insert(in, hashtbl, link, cptr);
+				}
 				rptr = cptr;
-				len -= blen;
 			}
 		}
+		
+		return writeEnd(in, rptr, inputLength - rptr, output, to);
+	}
+	
+	/** Writes the size of the data in 3 bytes. @return How many bytes were written. */
+	private static int writeSize(byte[] output, int len) {
+		int to = 0;
+		for (int i = 0; i < 3; i++, to++) {
+			output[to] = (byte)(len >> ((2-i) * 8) & 0xFF);
+		}
+		return to;
+	}
+	
+	/** Creates the table with the last position of each hash, with no positions yet. */
+	private static int[] createHashTable() {
+		int[] hashtbl = new int[65536];
+		int hashptr = 0;
+		for (int i = 0; i < 65536/16; ++i) {
+			hashtbl[hashptr + 0] = hashtbl[hashptr + 1] = hashtbl[hashptr + 2] = hashtbl[hashptr + 3] =
+			hashtbl[hashptr + 4] = hashtbl[hashptr + 5] = hashtbl[hashptr + 6] = hashtbl[hashptr + 7] =
+			hashtbl[hashptr + 8] = hashtbl[hashptr + 9] = hashtbl[hashptr + 10] = hashtbl[hashptr + 11] =
+			hashtbl[hashptr + 12] = hashtbl[hashptr + 13] = hashtbl[hashptr + 14] = hashtbl[hashptr + 15] = -1;
+			hashptr += 16;
+		}
+		return hashtbl;
+	}
+	
+	/** Adds the position to the hash chains. */
+	private static void insert(byte[] in, int[] hashtbl, int[] link, int cptr) {
+		int hash = hash(in, cptr);
+		link[cptr & 131071] = hashtbl[hash];
+		hashtbl[hash] = cptr;
+	}
+	
+	/**
+	 * Returns how many bytes the token of a match uses, or 0 if the match cannot be encoded with that length and offset.
+	 * @param offset The distance of the match minus 1.
+	 */
+	private static int getMatchCost(int offset, int length) {
+		// two byte long form
+		if (offset < 1024 && length <= 10) {
+			return length >= 3 ? 2 : 0;
+		}
+		// three byte long form
+		else if (offset < 16384 && length <= 67) {
+			return length >= 4 ? 3 : 0;
+		}
+		// four byte very long form
+		else {
+			return length >= 5 ? 4 : 0;
+		}
+	}
+	
+	/**
+	 * Writes the <code>run</code> literals that start at <code>rptr</code>, followed by the token of a match.
+	 * @param cost How many bytes the token uses, which decides its form.
+	 * @param boffset The distance of the match minus 1.
+	 * @return The new position in the output.
+	 */
+	private static int writeMatch(byte[] in, int rptr, int run, byte[] output, int to, int blen, int cost, int boffset) {
+		int tlen; //uint
+		// literal block of data
+		while (run > 3)
+		{
+			tlen = min(112, run & ~3);
+			run -= tlen;
+			output[to++] = (byte)(0xE0 + (tlen >> 2) -1);
+			// memcpy(to, rptr, tlen)
+			System.arraycopy(in, rptr, output, to, tlen);
+			rptr += tlen;
+			to += tlen;
+		}
+		// two byte long form
+		if (cost == 2)
+		{
+			output[to++] = (byte)(((boffset >> 8) << 5) + ((blen - 3) << 2) + run);
+			output[to++] = (byte)boffset;
+		}
+		// three byte long form
+		else if (cost == 3)
+		{
+			output[to++] = (byte) (0x80 + (blen - 4));
+			output[to++] = (byte) ((run<<6) + (boffset>>8));
+			output[to++] = (byte) boffset;
+		}
+		// four byte very long form
+		else
+		{
+			output[to++] = (byte) (0xC0 + ((boffset >> 16) << 4) + 
+					(((blen - 5) >> 8) << 2) + run);
+			output[to++] = (byte) (boffset >> 8);
+			output[to++] = (byte) (boffset);
+			output[to++] = (byte) (blen - 5);
+		}
+		
+		if (run != 0)
+		{
+			// memcpy(to, rptr, run);
+			System.arraycopy(in, rptr, output, to, run);
+			to += run;
+		}
+		return to;
+	}
+	
+	/**
+	 * Writes the <code>run</code> literals that start at <code>rptr</code>, followed by the end of stream token.
+	 * @return The new position in the output.
+	 */
+	private static int writeEnd(byte[] in, int rptr, int run, byte[] output, int to) {
+		int tlen; //uint
 		// no match at end, use literal
 		while (run > 3)
 		{
 			tlen = min(112, run & ~3);
 			run -= tlen;
-			out.data[to++] = (byte) (0xE0 + (tlen >> 2) - 1);
+			output[to++] = (byte) (0xE0 + (tlen >> 2) - 1);
 			// memcpy(to,rptr,tlen);
-			System.arraycopy(in, rptr, out.data, to, tlen);
+			System.arraycopy(in, rptr, output, to, tlen);
 			rptr += tlen;
 			to += tlen;
 		}
 		
 		// end of stream command + 0..3 literal
-		out.data[to++] = (byte) (0xFC + run);
+		output[to++] = (byte) (0xFC + run);
 		if (run != 0)
 		{
 			// memcpy(to,rptr,run);
-			System.arraycopy(in, rptr, out.data, to, run);
+			System.arraycopy(in, rptr, output, to, run);
 			to += run;
 		}
+		return to;
+	}
+	
+	/**
+	 * Finds the best match for the data at <code>cptr</code> among the previous positions with the same hash,
+	 * comparing at most <code>maxChainDepth</code> of them. The position itself must not be in the hash chains yet.
+	 * If there is no match worth encoding, the cost of the result is not smaller than its length.
+	 * @param len How many bytes are left from <code>cptr</code>.
+	 */
+	private static void findMatch(byte[] in, int[] hashtbl, int[] link, int cptr, int len, int maxChainDepth, Match match) {
+		int tptr; // const u_int8*
+		int tlen; //uint
+		int tcost; //uint
+		int toffset; //uint
+		int blen = 2;
+		int bcost = 2;
+		int boffset = 0;
+		int mlen = min(len, 1028);
+		int hoffset = hashtbl[hash(in, cptr)];
+		int minhoffset = max(cptr - 131071, 0);
+		int depth = maxChainDepth;
+		
+		if (hoffset >= minhoffset)
+		{
+			do
+			{
+				tptr = hoffset; // tptr points to input buffer
+				if (in[cptr + blen] == in[tptr + blen])
+				{
+					// cptr and tptr point to input buffer
+					tlen = matchlen(in, cptr, in, tptr, mlen);
+					if (tlen > blen)
+					{
+						toffset = (cptr-1)-tptr;
+						// two byte long form
+						if (toffset < 1024 && tlen <= 10) {
+							tcost = 2;
+						//three byte long form
+						} else if (toffset < 16384 && tlen <= 67) {
+							tcost = 3;
+						// four byte very long form
+						} else {
+							tcost = 4;
+						}
+						
+						if (tlen - tcost + 4 > blen - bcost + 4)
+						{
+							blen = tlen;
+							bcost = tcost;
+							boffset = toffset;
+							if (blen >= 1028) {
+								break;
+							}
+						}
+					}
+				}
+				
+			} while (--depth > 0 && (hoffset = link[hoffset & 131071]) >= minhoffset);
+		}
 		
-		out.lengthInBytes = to + 2;
-		//TODO Optimize this?
-		// We add 0x10FB here. This might no be the most efficient method, but the original code didn't add it at all, so maybe adding it
-		// at the beginning of the method causes some trouble.
-		byte[] newData = new byte[out.lengthInBytes];
-		newData[0] = 0x10;
-		newData[1] = (byte) 0xFB;
-		System.arraycopy(out.data, 0, newData, 2, to);
-		out.data = newData;
+		match.length = blen;
+		match.cost = bcost;
+		match.offset = boffset;
+	}
+	
+	/**
+	 * Finds the matches for the data at <code>cptr</code> among the previous positions with the same hash, comparing at most
+	 * <code>maxChainDepth</code> of them. As the closest positions are compared first, a match is only kept if it is longer than
+	 * the previous ones: it is then the closest match for the lengths between the previous match and its own.
+	 * The position itself must not be in the hash chains yet.
+	 * @param len How many bytes are left from <code>cptr</code>.
+	 * @return How many matches were found; they are sorted by length, and their offsets (distance minus 1) are in the same order.
+	 */
+	private static int findMatches(byte[] in, int[] hashtbl, int[] link, int cptr, int len, int maxChainDepth, int[] lengths, int[] offsets) {
+		int count = 0;
+		int blen = 2;
+		int mlen = min(len, 1028);
+		int hoffset = hashtbl[hash(in, cptr)];
+		int minhoffset = max(cptr - 131071, 0);
+		int depth = maxChainDepth;
+		
+		if (hoffset >= minhoffset)
+		{
+			do
+			{
+				if (in[cptr + blen] == in[hoffset + blen])
+				{
+					int tlen = matchlen(in, cptr, in, hoffset, mlen);
+					if (tlen > blen)
+					{
+						blen = tlen;
+						lengths[count] = tlen;
+						offsets[count] = (cptr-1)-hoffset;
+						++count;
+						if (blen >= mlen) {
+							break;
+						}
+					}
+				}
+				
+			} while (--depth > 0 && (hoffset = link[hoffset & 131071]) >= minhoffset);
+		}
+		
+		return count;
 	}
 	
 	private static int min(int a, int b) {
@@ -366,23 +1083,20 @@ public class RefPackCompression {
 		return a > b ? a : b;
 	}
 	
-	static int counter = 0;
+	/**
+	 * Hashes the 3 bytes at the given position, the minimum length of a match; bytes past the end of the array count as 0.
+	 */
 	private static int hash(byte[] array, int ptr) {
 		int crc = 0;
 		
-		//System.out.println(counter);
-		
-		// What is this? We are getting bytes out of the file but it seems we don't care.
-		int var1 = ptr >= array.length ? 0xFD : array[ptr]; //0xFD is just a guess based on nothing
-		int var2 = ptr >= array.length ? 0xFD : array[ptr]; //0xFD is just a guess based on nothing
-		int var3 = ptr >= array.length ? 0xFD : array[ptr]; //0xFD is just a guess based on nothing
+		int var1 = ptr < array.length ? array[ptr] : 0;
+		int var2 = ptr + 1 < array.length ? array[ptr + 1] : 0;
+		int var3 = ptr + 2 < array.length ? array[ptr + 2] : 0;
 		
 		crc = crctab[var1 & 0xFF];
 		crc = crctab[(crc ^ var2) & 0xFF] ^ (crc >> 8);
 		crc = crctab[(crc ^ var3) & 0xFF] ^ (crc >> 8);
 		
-		counter++;
-		
 		return crc;
 	}
 	
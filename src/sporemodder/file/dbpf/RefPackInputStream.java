@@ -0,0 +1,326 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+import sporemodder.file.filestructures.ByteArrayPool;
+
+/**
+ * Decompresses RefPack data while it is read, so neither the compressed nor the decompressed data have to be in memory
+ * at once. The compressed data is read from another stream in blocks, and only the last {@link #WINDOW_SIZE} decompressed
+ * bytes are kept, as no back-reference can go further than that; the memory used is the same for any size of data.
+ * <p>
+ * The decoded data is the same as the one of {@link RefPackCompression#decompressFast(byte[], byte[])}. It can be read
+ * both as an {@link InputStream} and as a {@link ReadableByteChannel}. The buffers come from the {@link ByteArrayPool},
+ * so the stream must be closed once it is not needed anymore.
+ * <p>
+ * The data is checked while it is decoded, as the decoder cannot trust a stream it has not seen yet: data that is truncated,
+ * longer than the size in its header or with matches before its start throws a {@link CorruptResourceException}.
+ */
+public class RefPackInputStream extends InputStream implements ReadableByteChannel {
+
+	/** The maximum distance of a back-reference, 128 KB: how many decompressed bytes must be kept. */
+	public static final int WINDOW_SIZE = 128 * 1024;
+	/** How many decompressed bytes are kept: the window, and the same amount of new bytes that are decoded at once. */
+	private static final int BUFFER_SIZE = 2 * WINDOW_SIZE;
+	/** How many compressed bytes are read from the input stream at once. */
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+	/** The maximum amount of bytes a token decodes to: 3 literals followed by a match of 1028 bytes. */
+	private static final int MAX_TOKEN_OUTPUT = 3 + 1028;
+
+	private final InputStream in;
+	private byte[] input;
+	/** The position of the next compressed byte in <code>input</code>. */
+	private int inputPos;
+	/** How many bytes of <code>input</code> are valid. */
+	private int inputEnd;
+	/** The position in the compressed data of the first byte of <code>input</code>. */
+	private long inputBase;
+	private boolean isInputFinished;
+
+	/** The decompressed data: the window of previous bytes, followed by the bytes that haven't been read yet. */
+	private byte[] buffer;
+	/** The position of the next byte that will be read in <code>buffer</code>. */
+	private int readPos;
+	/** How many bytes of <code>buffer</code> have been decoded. */
+	private int end;
+	/** How many bytes have been decoded in total. */
+	private int decodedSize;
+	private final int decompressedSize;
+	private boolean isClosed;
+
+	/**
+	 * Reads the header of the compressed data; the rest is read as it is needed.
+	 * @param in The compressed data, starting at the RefPack header. It is closed when this stream is closed.
+	 * @throws IOException If the header cannot be read.
+	 * @throws CorruptResourceException If the data is not RefPack compressed.
+	 */
+	public RefPackInputStream(InputStream in) throws IOException {
+		this.in = in;
+		input = ByteArrayPool.acquire(INPUT_BUFFER_SIZE);
+		try {
+			if (!fillInput(5)) {
+				throw new CorruptResourceException("The compressed data is too short for its header", 0);
+			}
+			int cType = input[0] & 0xFF;
+			if (cType != 0x10 && cType != 0x50) {
+				throw new CorruptResourceException("Unknown compression type 0x" + Integer.toHexString(cType).toUpperCase(), 0);
+			}
+			decompressedSize = (input[2] & 0xFF) << 16 | (input[3] & 0xFF) << 8 | (input[4] & 0xFF);
+			inputPos = 5;
+			buffer = ByteArrayPool.acquire(BUFFER_SIZE);
+		}
+		catch (IOException | RuntimeException e) {
+			ByteArrayPool.release(input);
+			input = null;
+			throw e;
+		}
+	}
+
+	/** Returns the amount of bytes of the decompressed data, as stored in its header. */
+	public int getDecompressedSize() {
+		return decompressedSize;
+	}
+
+	/**
+	 * Makes sure there are at least the given amount of compressed bytes after <code>inputPos</code>, reading more if necessary.
+	 * Returns false if the input stream ends before that.
+	 */
+	private boolean fillInput(int count) throws IOException {
+		if (inputEnd - inputPos >= count) {
+			return true;
+		}
+		System.arraycopy(input, inputPos, input, 0, inputEnd - inputPos);
+		inputBase += inputPos;
+		inputEnd -= inputPos;
+		inputPos = 0;
+		while (inputEnd < count && !isInputFinished) {
+			int read = in.read(input, inputEnd, INPUT_BUFFER_SIZE - inputEnd);
+			if (read == -1) {
+				isInputFinished = true;
+			}
+			else {
+				inputEnd += read;
+			}
+		}
+		return inputEnd >= count;
+	}
+
+	/**
+	 * Makes sure there are decoded bytes that have not been read yet. Returns false if all the data has already been read.
+	 */
+	private boolean fill() throws IOException {
+		if (isClosed) {
+			throw new ClosedChannelException();
+		}
+		if (readPos < end) {
+			return true;
+		}
+		if (decodedSize == decompressedSize) {
+			return false;
+		}
+		decode();
+		return true;
+	}
+
+	/**
+	 * Decodes tokens until the buffer is full or the data is complete. All the previously decoded bytes must have been read.
+	 */
+	private void decode() throws IOException {
+		if (end > BUFFER_SIZE - MAX_TOKEN_OUTPUT) {
+			// Only keep the bytes that can still be referenced
+			System.arraycopy(buffer, end - WINDOW_SIZE, buffer, 0, WINDOW_SIZE);
+			end = WINDOW_SIZE;
+			readPos = end;
+		}
+
+		byte[] in = input;
+		byte[] out = buffer;
+		int start = end;
+		int size = end;
+		int sizeEnd = size + (decompressedSize - decodedSize);
+		int sizeLimit = BUFFER_SIZE - MAX_TOKEN_OUTPUT;
+
+		while (size < sizeEnd && size <= sizeLimit) {
+			if (inputEnd - inputPos < RefPackCompression.MAX_TOKEN_SIZE) {
+				fillInput(RefPackCompression.MAX_TOKEN_SIZE);
+			}
+			int pin = inputPos;
+			if (pin == inputEnd) {
+				throw corrupt("The compressed data ends before the size in its header");
+			}
+			int controlChar = in[pin++] & 0xFF;
+			int numPlainData;
+			int numToCopy;
+			int copyOffset;
+
+			// Only the end of the input can have fewer bytes than a whole token
+			int tokenSize = controlChar < 0x80 ? 2 : (controlChar < 0xC0 ? 3 : (controlChar < 0xE0 ? 4 : 1));
+			if (inputPos + tokenSize > inputEnd) {
+				throw corrupt("The compressed data ends in the middle of a token");
+			}
+
+			if (controlChar < 0x80) {
+				int byte1 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x1C) >> 2) + 3;
+				copyOffset = ((controlChar & 0x60) << 3) + byte1 + 1;
+			}
+			else if (controlChar < 0xC0) {
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				numPlainData = byte1 >> 6;
+				numToCopy = (controlChar & 0x3F) + 4;
+				copyOffset = ((byte1 & 0x3F) << 8) + byte2 + 1;
+			}
+			else if (controlChar < 0xE0) {
+				int byte1 = in[pin++] & 0xFF;
+				int byte2 = in[pin++] & 0xFF;
+				int byte3 = in[pin++] & 0xFF;
+				numPlainData = controlChar & 0x03;
+				numToCopy = ((controlChar & 0x0C) << 6) + byte3 + 5;
+				copyOffset = ((controlChar & 0x10) << 12) + (byte1 << 8) + byte2 + 1;
+			}
+			else {
+				numPlainData = controlChar >= 0xFC ? controlChar & 0x03 : ((controlChar & 0x1F) << 2) + 4;
+				numToCopy = 0;
+				copyOffset = 0;
+			}
+
+			if (pin + numPlainData > inputEnd) {
+				throw corrupt("The compressed data ends in the middle of a token");
+			}
+			if (numPlainData + numToCopy > sizeEnd - size) {
+				throw corrupt("The compressed data is longer than the size in its header");
+			}
+			if (controlChar >= 0xFC && numPlainData != sizeEnd - size) {
+				throw corrupt("The compressed data ends before the size in its header");
+			}
+			System.arraycopy(in, pin, out, size, numPlainData);
+			pin += numPlainData;
+			size += numPlainData;
+			inputPos = pin;
+
+			if (numToCopy != 0) {
+				if (copyOffset > decodedSize + (size - start)) {
+					throw new CorruptResourceException("A match copies from " + copyOffset + " bytes back, but only "
+							+ (decodedSize + (size - start)) + " bytes have been decompressed", inputBase + pin - numPlainData - tokenSize);
+				}
+				int src = size - copyOffset;
+				if (numToCopy <= copyOffset) {
+					System.arraycopy(out, src, out, size, numToCopy);
+					size += numToCopy;
+				}
+				else {
+					int copyEnd = size + numToCopy;
+					while (size < copyEnd) {
+						int n = Math.min(size - src, copyEnd - size);
+						System.arraycopy(out, src, out, size, n);
+						size += n;
+					}
+				}
+			}
+		}
+
+		decodedSize += size - start;
+		end = size;
+	}
+
+	/** Creates an exception for a problem found in the token that starts at <code>inputPos</code>. */
+	private CorruptResourceException corrupt(String message) {
+		return new CorruptResourceException(message, inputBase + inputPos);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer[readPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, end - readPos);
+		System.arraycopy(buffer, readPos, b, off, count);
+		readPos += count;
+		return count;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(dst.remaining(), end - readPos);
+		dst.put(buffer, readPos, count);
+		readPos += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && fill()) {
+			int count = (int) Math.min(n - skipped, end - readPos);
+			readPos += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return isClosed ? 0 : end - readPos;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !isClosed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		ByteArrayPool.release(input);
+		ByteArrayPool.release(buffer);
+		input = null;
+		buffer = null;
+		in.close();
+	}
+}
@@ -0,0 +1,85 @@
+package sporemodder.file.filestructures;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of byte arrays that can be reused instead of allocating new ones. Arrays are grouped in size classes
+ * of powers of two, so an acquired array can be bigger than requested: users must keep track of how many bytes are valid.
+ * The pool is lock-free, so it can be used by any number of threads at the same time.
+ */
+public final class ByteArrayPool {
+
+	/** The smallest size class, 1 KB. */
+	private static final int MIN_SHIFT = 10;
+	/** The biggest size class, 64 MB; bigger arrays are allocated and discarded as usual. */
+	private static final int MAX_SHIFT = 26;
+	/** Maximum amount of bytes kept by the pool in a single size class. */
+	private static final long CLASS_BUDGET = 128L * 1024 * 1024;
+
+	private static final AtomicReferenceArray<?>[] pools = new AtomicReferenceArray<?>[MAX_SHIFT - MIN_SHIFT + 1];
+
+	static {
+		int slots = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+		for (int i = 0; i < pools.length; i++) {
+			long size = 1L << (MIN_SHIFT + i);
+			pools[i] = new AtomicReferenceArray<byte[]>((int) Math.max(2, Math.min(slots, CLASS_BUDGET / size)));
+		}
+	}
+
+	private ByteArrayPool() {}
+
+	/** Returns the index of the smallest size class that can hold the given amount of bytes, or -1 if it is too big. */
+	private static int getSizeClass(int length) {
+		if (length <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AtomicReferenceArray<byte[]> getPool(int sizeClass) {
+		return (AtomicReferenceArray<byte[]>) pools[sizeClass];
+	}
+
+	/**
+	 * Returns an array of at least <code>length</code> bytes, reusing a released one if possible.
+	 * The content of the array is undefined.
+	 */
+	public static byte[] acquire(int length) {
+		int sizeClass = getSizeClass(length);
+		if (sizeClass == -1) {
+			return new byte[length];
+		}
+		AtomicReferenceArray<byte[]> pool = getPool(sizeClass);
+		for (int i = 0; i < pool.length(); i++) {
+			if (pool.get(i) != null) {
+				byte[] array = pool.getAndSet(i, null);
+				if (array != null) {
+					return array;
+				}
+			}
+		}
+		return new byte[1 << (MIN_SHIFT + sizeClass)];
+	}
+
+	/**
+	 * Gives an array back to the pool so it can be reused. The array must not be used after calling this method.
+	 * Arrays that were not acquired from the pool are ignored, and so are arrays that do not fit because the pool is full.
+	 */
+	public static void release(byte[] array) {
+		if (array == null || Integer.bitCount(array.length) != 1) {
+			return;
+		}
+		int sizeClass = getSizeClass(array.length);
+		if (sizeClass == -1 || array.length != 1 << (MIN_SHIFT + sizeClass)) {
+			return;
+		}
+		AtomicReferenceArray<byte[]> pool = getPool(sizeClass);
+		for (int i = 0; i < pool.length(); i++) {
+			if (pool.get(i) == null && pool.compareAndSet(i, null, array)) {
+				return;
+			}
+		}
+	}
+}
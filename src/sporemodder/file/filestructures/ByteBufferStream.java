@@ -0,0 +1,753 @@
+package sporemodder.file.filestructures;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A stream that keeps its data in a {@link ByteBuffer} in little-endian order, which can be a heap or a direct buffer.
+ * Values are read and written with the buffer methods instead of being assembled byte by byte, and the methods that read
+ * or write arrays of values transfer the whole array at once through the int/short/long/float/double views of the buffer.
+ * The stream grows automatically when writing past its capacity.
+ */
+public class ByteBufferStream implements ReadWriteStream, PositionalReader {
+	private static final int INITIAL_SIZE = 8192;
+
+	/** The data of the stream, always in little-endian order. Only absolute methods are used on it, so its position never changes. */
+	private ByteBuffer buffer;
+	private int filePointer;
+	private int baseOffset;
+	/** The amount of valid bytes in the buffer, which might be less than its capacity. */
+	private int length;
+	private float resizeFactor = 1.5f;
+
+	public ByteBufferStream() {
+		this(INITIAL_SIZE, false);
+	}
+
+	/**
+	 * Creates an empty stream with the given initial capacity.
+	 * @param capacity The initial size of the buffer, in bytes.
+	 * @param isDirect Whether to use a direct buffer, outside of the Java heap.
+	 */
+	public ByteBufferStream(int capacity, boolean isDirect) {
+		buffer = (isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Creates a stream that reads the content of the given buffer, from index 0 to its limit. The buffer is not copied,
+	 * so changes made through this stream are visible in the buffer, until the stream needs to grow.
+	 */
+	public ByteBufferStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+		this.length = buffer.limit();
+	}
+
+	/**
+	 * Creates a stream that reads the content of the given array. The array is not copied.
+	 */
+	public ByteBufferStream(byte[] arr) {
+		this(ByteBuffer.wrap(arr));
+	}
+
+	private ByteBufferStream(ByteBuffer buffer, int start, int end) {
+		this.buffer = buffer;
+		this.baseOffset = start;
+		this.filePointer = start;
+		this.length = end;
+	}
+
+	/**
+	 * Returns a view of the data of this stream, from index 0 to {@link #length()}, in little-endian order.
+	 * The view shares the content with this stream, but it has its own position and limit.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer.duplicate().limit(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Returns whether the data of this stream is stored outside of the Java heap. */
+	public boolean isDirect() {
+		return buffer.isDirect();
+	}
+
+	/**
+	 * Checks that there are <code>size</code> bytes available for reading, and moves the file pointer after them.
+	 * Returns the position of the first byte.
+	 */
+	private int advance(int size) throws EOFException {
+		int position = filePointer;
+		if (position < 0 || size < 0 || position + size > length) {
+			throw new EOFException("Cannot read " + size + " bytes at position " + position + ", stream size is " + length);
+		}
+		filePointer += size;
+		return position;
+	}
+
+	/**
+	 * Makes sure there is space to write <code>size</code> bytes, and moves the file pointer after them.
+	 * Returns the position of the first byte.
+	 */
+	private int reserve(int size) {
+		int position = filePointer;
+		ensureCapacity(position + size);
+		filePointer += size;
+		if (filePointer > length) {
+			length = filePointer;
+		}
+		return position;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > buffer.capacity()) {
+			int capacity = Math.max(size, (int) (buffer.capacity() * resizeFactor));
+			ByteBuffer newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			newBuffer.put(getBuffer());
+			buffer = newBuffer.clear().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Returns a duplicate of the buffer that starts at the current file pointer and has the given size, in the given order;
+	 * the file pointer is moved after it. This is used to transfer arrays of values.
+	 */
+	private ByteBuffer readView(int size, ByteOrder order) throws EOFException {
+		int position = advance(size);
+		return buffer.duplicate().position(position).limit(position + size).order(order);
+	}
+
+	private ByteBuffer writeView(int size, ByteOrder order) {
+		int position = reserve(size);
+		return buffer.duplicate().position(position).limit(position + size).order(order);
+	}
+
+	/**
+	 * Writes the content of this stream to the given file. If the file doesn't exist, it will create it.
+	 * @param file The File where the data will be written.
+	 * @throws IOException
+	 */
+	public void writeToFile(File file) throws IOException {
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer data = getBuffer();
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+		}
+	}
+
+	@Override
+	public void seek(long off) {
+		filePointer = (int) off + baseOffset;
+	}
+
+	@Override
+	public void seekAbs(long off) {
+		filePointer = (int) off;
+	}
+
+	@Override
+	public void skip(int n) {
+		filePointer += n;
+	}
+
+	/**
+	 * Releases the buffer of this stream. Direct buffers are freed when they are garbage collected.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+		filePointer = 0;
+		length = 0;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void setLength(long n) {
+		ensureCapacity((int) n);
+		length = (int) n;
+	}
+
+	@Override
+	public long getFilePointer() {
+		return filePointer - baseOffset;
+	}
+
+	@Override
+	public long getFilePointerAbs() {
+		return filePointer;
+	}
+
+	@Override
+	public void setBaseOffset(long val) {
+		baseOffset = (int) val;
+	}
+
+	@Override
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		byte[] array = new byte[length];
+		getBuffer().get(array);
+		return array;
+	}
+
+	@Override
+	public ByteBufferStream slice(long offset, long length) throws IOException {
+		int start = (int) offset + baseOffset;
+		if (start < 0 || length < 0 || start + length > this.length) {
+			throw new EOFException("Cannot slice " + length + " bytes at position " + start);
+		}
+		return new ByteBufferStream(buffer, start, (int) (start + length));
+	}
+
+	@Override
+	public void readAt(long offset, ByteBuffer dst) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || position + dst.remaining() > length) {
+			throw new EOFException("Cannot read " + dst.remaining() + " bytes at position " + position);
+		}
+		dst.put(buffer.duplicate().position(position).limit(position + dst.remaining()));
+	}
+
+	@Override
+	public ByteBuffer view(long offset, int length) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || length < 0 || position + length > this.length) {
+			throw new EOFException("Cannot read " + length + " bytes at position " + position);
+		}
+		return buffer.duplicate().position(position).limit(position + length).slice();
+	}
+
+	@Override
+	public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || position + count > length) {
+			throw new EOFException("Cannot transfer " + count + " bytes at position " + position);
+		}
+		ByteBuffer data = buffer.duplicate().position(position).limit((int) (position + count));
+		while (data.hasRemaining()) {
+			target.write(data);
+		}
+	}
+
+	@Override
+	public void read(byte[] dst) throws IOException {
+		read(dst, 0, dst.length);
+	}
+
+	@Override
+	public void read(byte[] dst, int dstOffset, int length) throws IOException {
+		readView(length, ByteOrder.LITTLE_ENDIAN).get(dst, dstOffset, length);
+	}
+
+	/** Returns the amount of bytes before the first 00 character, starting at the current file pointer, without moving it. */
+	private int getCStringLength(int characterSize) {
+		int position = filePointer;
+		while (position + characterSize <= length) {
+			if (characterSize == 1 ? buffer.get(position) == 0 : buffer.getShort(position) == 0) {
+				break;
+			}
+			position += characterSize;
+		}
+		return position - filePointer;
+	}
+
+	@Override
+	public String readCString(StringEncoding encoding) throws IOException {
+		int characterSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		byte[] array = new byte[getCStringLength(characterSize)];
+		read(array);
+		// Skip the 00 character, if there was one
+		filePointer = Math.min(filePointer + characterSize, Math.max(filePointer, length));
+		return new String(array, Charset.forName(encoding.getCharset()));
+	}
+
+	@Override
+	public String readString(StringEncoding encoding, int length) throws IOException {
+		int characterSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		int end = filePointer + length * characterSize;
+		if (end > this.length) {
+			throw new EOFException("Cannot read " + length + " characters at position " + filePointer + ", stream size is " + this.length);
+		}
+		int realLength = Math.min(getCStringLength(characterSize), length * characterSize);
+		byte[] array = new byte[realLength];
+		read(array);
+		filePointer = end;
+		return new String(array, Charset.forName(encoding.getCharset()));
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (filePointer >= length) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		while (filePointer < length) {
+			int c = readUByte();
+			if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				if (filePointer < length && buffer.get(filePointer) == '\n') {
+					filePointer++;
+				}
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public void readBooleans(boolean[] dst) throws IOException {
+		int position = advance(dst.length);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = buffer.get(position + i) != 0;
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return buffer.get(advance(1));
+	}
+
+	@Override
+	public short readUByte() throws IOException {
+		return (short) (readByte() & 0xFF);
+	}
+
+	@Override
+	public void readBytes(byte[] dst) throws IOException {
+		read(dst);
+	}
+
+	@Override
+	public void readUBytes(int[] dst) throws IOException {
+		int position = advance(dst.length);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = buffer.get(position + i) & 0xFF;
+		}
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return Character.reverseBytes(buffer.getChar(advance(2)));
+	}
+
+	@Override
+	public void readChars(char[] dst) throws IOException {
+		readView(dst.length * 2, ByteOrder.BIG_ENDIAN).asCharBuffer().get(dst);
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		return Short.reverseBytes(buffer.getShort(advance(2)));
+	}
+
+	@Override
+	public short readLEShort() throws IOException {
+		return buffer.getShort(advance(2));
+	}
+
+	@Override
+	public int readUShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+
+	@Override
+	public int readLEUShort() throws IOException {
+		return readLEShort() & 0xFFFF;
+	}
+
+	@Override
+	public void readShorts(short[] dst) throws IOException {
+		readView(dst.length * 2, ByteOrder.BIG_ENDIAN).asShortBuffer().get(dst);
+	}
+
+	@Override
+	public void readLEShorts(short[] dst) throws IOException {
+		readView(dst.length * 2, ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(dst);
+	}
+
+	@Override
+	public void readUShorts(int[] dst) throws IOException {
+		int position = advance(dst.length * 2);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = Short.reverseBytes(buffer.getShort(position + i*2)) & 0xFFFF;
+		}
+	}
+
+	@Override
+	public void readLEUShorts(int[] dst) throws IOException {
+		int position = advance(dst.length * 2);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = buffer.getShort(position + i*2) & 0xFFFF;
+		}
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return Integer.reverseBytes(buffer.getInt(advance(4)));
+	}
+
+	@Override
+	public int readLEInt() throws IOException {
+		return buffer.getInt(advance(4));
+	}
+
+	@Override
+	public long readUInt() throws IOException {
+		return readInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLEUInt() throws IOException {
+		return readLEInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void readInts(int[] dst) throws IOException {
+		readView(dst.length * 4, ByteOrder.BIG_ENDIAN).asIntBuffer().get(dst);
+	}
+
+	@Override
+	public void readLEInts(int[] dst) throws IOException {
+		readView(dst.length * 4, ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst);
+	}
+
+	@Override
+	public void readUInts(long[] dst) throws IOException {
+		int position = advance(dst.length * 4);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = Integer.reverseBytes(buffer.getInt(position + i*4)) & 0xFFFFFFFFL;
+		}
+	}
+
+	@Override
+	public void readLEUInts(long[] dst) throws IOException {
+		int position = advance(dst.length * 4);
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = buffer.getInt(position + i*4) & 0xFFFFFFFFL;
+		}
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return Long.reverseBytes(buffer.getLong(advance(8)));
+	}
+
+	@Override
+	public long readLELong() throws IOException {
+		return buffer.getLong(advance(8));
+	}
+
+	@Override
+	public void readLongs(long[] dst) throws IOException {
+		readView(dst.length * 8, ByteOrder.BIG_ENDIAN).asLongBuffer().get(dst);
+	}
+
+	@Override
+	public void readLELongs(long[] dst) throws IOException {
+		readView(dst.length * 8, ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(dst);
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	public float readLEFloat() throws IOException {
+		return buffer.getFloat(advance(4));
+	}
+
+	@Override
+	public void readFloats(float[] dst) throws IOException {
+		readView(dst.length * 4, ByteOrder.BIG_ENDIAN).asFloatBuffer().get(dst);
+	}
+
+	@Override
+	public void readLEFloats(float[] dst) throws IOException {
+		readView(dst.length * 4, ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(dst);
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public double readLEDouble() throws IOException {
+		return buffer.getDouble(advance(8));
+	}
+
+	@Override
+	public void readDoubles(double[] dst) throws IOException {
+		readView(dst.length * 8, ByteOrder.BIG_ENDIAN).asDoubleBuffer().get(dst);
+	}
+
+	@Override
+	public void readLEDoubles(double[] dst) throws IOException {
+		readView(dst.length * 8, ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(dst);
+	}
+
+
+	@Override
+	public void writePadding(int pad) throws IOException {
+		int position = reserve(pad);
+		for (int i = 0; i < pad; i++) {
+			buffer.put(position + i, (byte) 0);
+		}
+	}
+
+	@Override
+	public void write(byte[] arr) throws IOException {
+		write(arr, 0, arr.length);
+	}
+
+	@Override
+	public void write(byte[] arr, int off, int len) throws IOException {
+		writeView(len, ByteOrder.LITTLE_ENDIAN).put(arr, off, len);
+	}
+
+	@Override
+	public void writeCString(String text, StringEncoding encoding) throws IOException {
+		if (text != null) writeString(text, encoding);
+
+		if (encoding != StringEncoding.ASCII) {
+			writeShort(0);
+		} else {
+			writeByte(0);
+		}
+	}
+
+	@Override
+	public void writeString(String text, StringEncoding encoding) throws IOException {
+		if (text == null) return;
+		write(text.getBytes(Charset.forName(encoding.getCharset())));
+	}
+
+	@Override
+	public void writeString(String text, StringEncoding encoding, int length) throws IOException {
+		int size = encoding == StringEncoding.ASCII ? length : length * 2;
+		byte[] array = text == null ? new byte[0] : text.getBytes(Charset.forName(encoding.getCharset()));
+		int count = Math.min(array.length, size);
+		write(array, 0, count);
+		writePadding(size - count);
+	}
+
+	@Override
+	public void writeBoolean(boolean val) throws IOException {
+		int position = reserve(1);
+		buffer.put(position, (byte) (val ? 1 : 0));
+	}
+
+	@Override
+	public void writeBooleans(boolean... vals) throws IOException {
+		int position = reserve(vals.length);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.put(position + i, (byte) (vals[i] ? 1 : 0));
+		}
+	}
+
+	@Override
+	public void writeByte(int val) throws IOException {
+		int position = reserve(1);
+		buffer.put(position, (byte) val);
+	}
+
+	@Override
+	public void writeBytes(int... vals) throws IOException {
+		int position = reserve(vals.length);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.put(position + i, (byte) vals[i]);
+		}
+	}
+
+	@Override
+	public void writeUByte(int val) throws IOException {
+		writeByte(val);
+	}
+
+	@Override
+	public void writeUBytes(int... vals) throws IOException {
+		writeBytes(vals);
+	}
+
+	@Override
+	public void writeShort(int val) throws IOException {
+		int position = reserve(2);
+		buffer.putShort(position, Short.reverseBytes((short) val));
+	}
+
+	@Override
+	public void writeShorts(int... vals) throws IOException {
+		int position = reserve(vals.length * 2);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.putShort(position + i*2, Short.reverseBytes((short) vals[i]));
+		}
+	}
+
+	@Override
+	public void writeLEShort(int val) throws IOException {
+		int position = reserve(2);
+		buffer.putShort(position, (short) val);
+	}
+
+	@Override
+	public void writeLEShorts(int... vals) throws IOException {
+		int position = reserve(vals.length * 2);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.putShort(position + i*2, (short) vals[i]);
+		}
+	}
+
+	@Override
+	public void writeUShort(int val) throws IOException {
+		writeShort(val);
+	}
+
+	@Override
+	public void writeUShorts(int... vals) throws IOException {
+		writeShorts(vals);
+	}
+
+	@Override
+	public void writeLEUShort(int val) throws IOException {
+		writeLEShort(val);
+	}
+
+	@Override
+	public void writeLEUShorts(int... vals) throws IOException {
+		writeLEShorts(vals);
+	}
+
+	@Override
+	public void writeInt(int val) throws IOException {
+		int position = reserve(4);
+		buffer.putInt(position, Integer.reverseBytes(val));
+	}
+
+	@Override
+	public void writeInts(int... vals) throws IOException {
+		writeView(vals.length * 4, ByteOrder.BIG_ENDIAN).asIntBuffer().put(vals);
+	}
+
+	@Override
+	public void writeLEInt(int val) throws IOException {
+		int position = reserve(4);
+		buffer.putInt(position, val);
+	}
+
+	@Override
+	public void writeLEInts(int... vals) throws IOException {
+		writeView(vals.length * 4, ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(vals);
+	}
+
+	@Override
+	public void writeUInt(long val) throws IOException {
+		writeInt((int) val);
+	}
+
+	@Override
+	public void writeUInts(long... vals) throws IOException {
+		int position = reserve(vals.length * 4);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.putInt(position + i*4, Integer.reverseBytes((int) vals[i]));
+		}
+	}
+
+	@Override
+	public void writeLEUInt(long val) throws IOException {
+		writeLEInt((int) val);
+	}
+
+	@Override
+	public void writeLEUInts(long... vals) throws IOException {
+		int position = reserve(vals.length * 4);
+		for (int i = 0; i < vals.length; i++) {
+			buffer.putInt(position + i*4, (int) vals[i]);
+		}
+	}
+
+	@Override
+	public void writeLong(long val) throws IOException {
+		int position = reserve(8);
+		buffer.putLong(position, Long.reverseBytes(val));
+	}
+
+	@Override
+	public void writeLongs(long... vals) throws IOException {
+		writeView(vals.length * 8, ByteOrder.BIG_ENDIAN).asLongBuffer().put(vals);
+	}
+
+	@Override
+	public void writeLELong(long val) throws IOException {
+		int position = reserve(8);
+		buffer.putLong(position, val);
+	}
+
+	@Override
+	public void writeLELongs(long... vals) throws IOException {
+		writeView(vals.length * 8, ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(vals);
+	}
+
+	@Override
+	public void writeFloat(float val) throws IOException {
+		writeInt(Float.floatToRawIntBits(val));
+	}
+
+	@Override
+	public void writeFloats(float... vals) throws IOException {
+		writeView(vals.length * 4, ByteOrder.BIG_ENDIAN).asFloatBuffer().put(vals);
+	}
+
+	@Override
+	public void writeLEFloat(float val) throws IOException {
+		int position = reserve(4);
+		buffer.putFloat(position, val);
+	}
+
+	@Override
+	public void writeLEFloats(float... vals) throws IOException {
+		writeView(vals.length * 4, ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(vals);
+	}
+
+	@Override
+	public void writeDouble(double val) throws IOException {
+		writeLong(Double.doubleToRawLongBits(val));
+	}
+
+	@Override
+	public void writeDoubles(double... vals) throws IOException {
+		writeView(vals.length * 8, ByteOrder.BIG_ENDIAN).asDoubleBuffer().put(vals);
+	}
+
+	@Override
+	public void writeLEDouble(double val) throws IOException {
+		int position = reserve(8);
+		buffer.putDouble(position, val);
+	}
+
+	@Override
+	public void writeLEDoubles(double... vals) throws IOException {
+		writeView(vals.length * 8, ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(vals);
+	}
+}
@@ -0,0 +1,843 @@
+package sporemodder.file.filestructures;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A memory stream that stores its data in a list of fixed-size segments instead of a single array.
+ * Unlike {@link MemoryStream}, growing the stream never copies the existing data: new segments are just added at the end,
+ * so it is meant to be used to build big outputs, like packages of hundreds of megabytes.
+ * <p>
+ * The data can be written into other streams or files segment by segment with {@link #writeInto(StreamWriter)} and
+ * {@link #writeToFile(File)}, and it can be read without copying it with {@link #asReadOnly()} and {@link #slice(long, long)}.
+ * Segments are acquired from the {@link ByteArrayPool}, and they are released when the stream is closed.
+ */
+public class ChunkedMemoryStream implements ReadWriteStream {
+
+	/** The default segment size, 64 KB. */
+	public static final int DEFAULT_SEGMENT_SIZE = 65536;
+
+	private final int segmentShift;
+	private final int segmentMask;
+	private List<byte[]> segments;
+	/** Views share the segments of the stream they were created from: they cannot write nor release them. */
+	private final boolean isReadOnly;
+
+	private long filePointer;
+	private long baseOffset;
+	private long length;
+
+	public ChunkedMemoryStream() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates an empty stream.
+	 * @param segmentSize The size of every segment, which is rounded up to a power of two.
+	 */
+	public ChunkedMemoryStream(int segmentSize) {
+		segmentShift = 32 - Integer.numberOfLeadingZeros(Math.max(segmentSize, 16) - 1);
+		segmentMask = (1 << segmentShift) - 1;
+		segments = new ArrayList<byte[]>();
+		isReadOnly = false;
+	}
+
+	private ChunkedMemoryStream(ChunkedMemoryStream parent, long start, long end) {
+		segmentShift = parent.segmentShift;
+		segmentMask = parent.segmentMask;
+		// Copy the references, so the view is not affected by segments added later to the parent
+		segments = new ArrayList<byte[]>(parent.segments.subList(0, getSegmentCount(end)));
+		isReadOnly = true;
+		baseOffset = start;
+		filePointer = start;
+		length = end;
+	}
+
+	/** Returns how many segments are needed to store the given amount of bytes. */
+	private int getSegmentCount(long size) {
+		return (int) ((size + segmentMask) >>> segmentShift);
+	}
+
+	/** Returns the size of the segments of this stream. */
+	public int getSegmentSize() {
+		return segmentMask + 1;
+	}
+
+	/**
+	 * Returns a read-only stream that reads the current data of this stream, sharing its segments.
+	 * The view is only valid while this stream is open; data written later to this stream might not be visible in the view.
+	 */
+	public ChunkedMemoryStream asReadOnly() {
+		return new ChunkedMemoryStream(this, 0, length);
+	}
+
+	/** Returns whether this stream is a read-only view of another stream. */
+	public boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	/**
+	 * Returns read-only buffers that wrap the data of every segment, in order, without copying it.
+	 * The last buffer only contains the used part of its segment.
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[getSegmentCount(length)];
+		for (int i = 0; i < buffers.length; i++) {
+			int size = (int) Math.min(segmentMask + 1, length - ((long) i << segmentShift));
+			buffers[i] = ByteBuffer.wrap(segments.get(i), 0, size).asReadOnlyBuffer();
+		}
+		return buffers;
+	}
+
+	/**
+	 * Writes all the data of this stream into the given stream, one segment at a time.
+	 */
+	public void writeInto(StreamWriter out) throws IOException {
+		long remaining = length;
+		for (int i = 0; remaining > 0; i++) {
+			int size = (int) Math.min(segmentMask + 1, remaining);
+			out.write(segments.get(i), 0, size);
+			remaining -= size;
+		}
+	}
+
+	/**
+	 * Writes all the data of this stream to the given file with a single gathering write. If the file doesn't exist, it will create it.
+	 * @param file The File where the data will be written.
+	 * @throws IOException
+	 */
+	public void writeToFile(File file) throws IOException {
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] buffers = getBuffers();
+			long remaining = length;
+			while (remaining > 0) {
+				remaining -= out.write(buffers);
+			}
+		}
+	}
+
+	private void checkWritable() throws IOException {
+		if (isReadOnly) {
+			throw new IOException("Cannot write into a read-only view of a ChunkedMemoryStream.");
+		}
+	}
+
+	/**
+	 * Makes sure there are segments to store up to the given absolute position, adding empty segments if necessary.
+	 */
+	private void ensureCapacity(long size) {
+		int count = getSegmentCount(size);
+		while (segments.size() < count) {
+			byte[] segment = ByteArrayPool.acquire(segmentMask + 1);
+			Arrays.fill(segment, (byte) 0);
+			segments.add(segment);
+		}
+	}
+
+	/** Checks that size bytes can be written at the file pointer, and updates the length of the stream to include them. */
+	private void reserve(int size) throws IOException {
+		checkWritable();
+		ensureCapacity(filePointer + size);
+		if (filePointer + size > length) {
+			length = filePointer + size;
+		}
+	}
+
+	private void checkRead(long size) throws EOFException {
+		if (filePointer < 0 || filePointer + size > length) {
+			throw new EOFException("Cannot read " + size + " bytes at position " + filePointer + ", stream size is " + length);
+		}
+	}
+
+	private long readBigEndian(int size) throws IOException {
+		checkRead(size);
+		long result = 0;
+		int offset = (int) (filePointer & segmentMask);
+		byte[] segment = segments.get((int) (filePointer >>> segmentShift));
+		if (offset + size <= segmentMask + 1) {
+			for (int i = 0; i < size; i++) {
+				result = (result << 8) | (segment[offset + i] & 0xFF);
+			}
+			filePointer += size;
+		}
+		else {
+			for (int i = 0; i < size; i++) {
+				result = (result << 8) | (segments.get((int) (filePointer >>> segmentShift))[(int) (filePointer & segmentMask)] & 0xFF);
+				filePointer++;
+			}
+		}
+		return size == 8 ? result : (result << (64 - size*8)) >> (64 - size*8);
+	}
+
+	private void writeBigEndian(long value, int size) throws IOException {
+		reserve(size);
+		int offset = (int) (filePointer & segmentMask);
+		byte[] segment = segments.get((int) (filePointer >>> segmentShift));
+		if (offset + size <= segmentMask + 1) {
+			for (int i = size - 1; i >= 0; i--) {
+				segment[offset + i] = (byte) value;
+				value >>= 8;
+			}
+			filePointer += size;
+		}
+		else {
+			for (int i = size - 1; i >= 0; i--) {
+				segments.get((int) (filePointer >>> segmentShift))[(int) (filePointer & segmentMask)] = (byte) (value >> (i*8));
+				filePointer++;
+			}
+		}
+	}
+
+	@Override
+	public void seek(long off) {
+		filePointer = off + baseOffset;
+	}
+
+	@Override
+	public void seekAbs(long off) {
+		filePointer = off;
+	}
+
+	@Override
+	public void skip(int n) {
+		filePointer += n;
+	}
+
+	/**
+	 * Releases all the segments of this stream back to the pool. Views created from this stream must not be used after this.
+	 */
+	@Override
+	public void close() {
+		if (segments != null && !isReadOnly) {
+			for (byte[] segment : segments) {
+				ByteArrayPool.release(segment);
+			}
+		}
+		segments = null;
+		filePointer = 0;
+		length = 0;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void setLength(long n) throws IOException {
+		checkWritable();
+		if (n > length) {
+			ensureCapacity(n);
+		}
+		else {
+			int count = getSegmentCount(n);
+			while (segments.size() > count) {
+				ByteArrayPool.release(segments.remove(segments.size() - 1));
+			}
+			// Clear the rest of the last segment, so the stream reads zeros if it grows again
+			if ((n & segmentMask) != 0) {
+				Arrays.fill(segments.get(count - 1), (int) (n & segmentMask), segmentMask + 1, (byte) 0);
+			}
+		}
+		length = n;
+	}
+
+	@Override
+	public long getFilePointer() {
+		return filePointer - baseOffset;
+	}
+
+	@Override
+	public long getFilePointerAbs() {
+		return filePointer;
+	}
+
+	@Override
+	public void setBaseOffset(long val) {
+		baseOffset = val;
+	}
+
+	@Override
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		long oldPointer = filePointer;
+		filePointer = 0;
+		byte[] array = new byte[(int) length];
+		read(array);
+		filePointer = oldPointer;
+		return array;
+	}
+
+	/**
+	 * Returns a read-only view of the given range of this stream, which shares the segments of this stream.
+	 */
+	@Override
+	public ChunkedMemoryStream slice(long offset, long length) throws IOException {
+		long start = offset + baseOffset;
+		if (start < 0 || length < 0 || start + length > this.length) {
+			throw new EOFException("Cannot slice " + length + " bytes at position " + start);
+		}
+		return new ChunkedMemoryStream(this, start, start + length);
+	}
+
+	@Override
+	public void read(byte[] dst) throws IOException {
+		read(dst, 0, dst.length);
+	}
+
+	@Override
+	public void read(byte[] dst, int dstOffset, int length) throws IOException {
+		checkRead(length);
+		int end = dstOffset + length;
+		while (dstOffset < end) {
+			int offset = (int) (filePointer & segmentMask);
+			int count = Math.min(end - dstOffset, segmentMask + 1 - offset);
+			System.arraycopy(segments.get((int) (filePointer >>> segmentShift)), offset, dst, dstOffset, count);
+			dstOffset += count;
+			filePointer += count;
+		}
+	}
+
+	@Override
+	public String readCString(StringEncoding encoding) throws IOException {
+		int characterSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		long firstIndex = filePointer;
+
+		while (true) {
+			if (characterSize == 1 ? readByte() == 0 : readShort() == 0) {
+				break;
+			}
+		}
+
+		byte[] arr = new byte[(int) (filePointer - firstIndex - characterSize)];
+		long lastIndex = filePointer;
+		filePointer = firstIndex;
+		read(arr);
+		filePointer = lastIndex;
+
+		return new String(arr, encoding.getCharset());
+	}
+
+	@Override
+	public String readString(StringEncoding encoding, int length) throws IOException {
+		int characterSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		byte[] arr = new byte[length * characterSize];
+		read(arr);
+
+		// Discard 00 characters
+		int realLength = 0;
+		while (realLength < arr.length && (characterSize == 1 ? arr[realLength] != 0 : (arr[realLength] != 0 || arr[realLength + 1] != 0))) {
+			realLength += characterSize;
+		}
+		return new String(arr, 0, realLength, encoding.getCharset());
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (filePointer >= length) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		while (filePointer < length) {
+			int c = readUByte();
+			if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				if (filePointer < length && readUByte() != '\n') {
+					filePointer--;
+				}
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public void readBooleans(boolean[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readBoolean();
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return (byte) readBigEndian(1);
+	}
+
+	@Override
+	public short readUByte() throws IOException {
+		return (short) (readBigEndian(1) & 0xFF);
+	}
+
+	@Override
+	public void readBytes(byte[] dst) throws IOException {
+		read(dst);
+	}
+
+	@Override
+	public void readUBytes(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUByte();
+		}
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return (char) readBigEndian(2);
+	}
+
+	@Override
+	public void readChars(char[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readChar();
+		}
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		return (short) readBigEndian(2);
+	}
+
+	@Override
+	public short readLEShort() throws IOException {
+		return Short.reverseBytes((short) readBigEndian(2));
+	}
+
+	@Override
+	public int readUShort() throws IOException {
+		return (int) (readBigEndian(2) & 0xFFFF);
+	}
+
+	@Override
+	public int readLEUShort() throws IOException {
+		return readLEShort() & 0xFFFF;
+	}
+
+	@Override
+	public void readShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readShort();
+		}
+	}
+
+	@Override
+	public void readLEShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEShort();
+		}
+	}
+
+	@Override
+	public void readUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUShort();
+		}
+	}
+
+	@Override
+	public void readLEUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUShort();
+		}
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return (int) readBigEndian(4);
+	}
+
+	@Override
+	public int readLEInt() throws IOException {
+		return Integer.reverseBytes((int) readBigEndian(4));
+	}
+
+	@Override
+	public long readUInt() throws IOException {
+		return readBigEndian(4) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLEUInt() throws IOException {
+		return readLEInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void readInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readInt();
+		}
+	}
+
+	@Override
+	public void readLEInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEInt();
+		}
+	}
+
+	@Override
+	public void readUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUInt();
+		}
+	}
+
+	@Override
+	public void readLEUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUInt();
+		}
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return readBigEndian(8);
+	}
+
+	@Override
+	public long readLELong() throws IOException {
+		return Long.reverseBytes(readBigEndian(8));
+	}
+
+	@Override
+	public void readLongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLong();
+		}
+	}
+
+	@Override
+	public void readLELongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLELong();
+		}
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	public float readLEFloat() throws IOException {
+		return Float.intBitsToFloat(readLEInt());
+	}
+
+	@Override
+	public void readFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readFloat();
+		}
+	}
+
+	@Override
+	public void readLEFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEFloat();
+		}
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public double readLEDouble() throws IOException {
+		return Double.longBitsToDouble(readLELong());
+	}
+
+	@Override
+	public void readDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readDouble();
+		}
+	}
+
+	@Override
+	public void readLEDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEDouble();
+		}
+	}
+
+
+	@Override
+	public void writePadding(int pad) throws IOException {
+		reserve(pad);
+		int remaining = pad;
+		while (remaining > 0) {
+			int offset = (int) (filePointer & segmentMask);
+			int count = Math.min(remaining, segmentMask + 1 - offset);
+			Arrays.fill(segments.get((int) (filePointer >>> segmentShift)), offset, offset + count, (byte) 0);
+			remaining -= count;
+			filePointer += count;
+		}
+	}
+
+	@Override
+	public void write(byte[] arr) throws IOException {
+		write(arr, 0, arr.length);
+	}
+
+	@Override
+	public void write(byte[] arr, int off, int len) throws IOException {
+		reserve(len);
+		int end = off + len;
+		while (off < end) {
+			int offset = (int) (filePointer & segmentMask);
+			int count = Math.min(end - off, segmentMask + 1 - offset);
+			System.arraycopy(arr, off, segments.get((int) (filePointer >>> segmentShift)), offset, count);
+			off += count;
+			filePointer += count;
+		}
+	}
+
+	@Override
+	public void writeCString(String text, StringEncoding encoding) throws IOException {
+		if (text != null) writeString(text, encoding);
+
+		if (encoding != StringEncoding.ASCII) {
+			writeShort(0);
+		} else {
+			writeByte(0);
+		}
+	}
+
+	@Override
+	public void writeString(String text, StringEncoding encoding) throws IOException {
+		if (text == null) return;
+		write(text.getBytes(encoding.getCharset()));
+	}
+
+	@Override
+	public void writeString(String text, StringEncoding encoding, int length) throws IOException {
+		int size = encoding == StringEncoding.ASCII ? length : length * 2;
+		byte[] array = text == null ? new byte[0] : text.getBytes(encoding.getCharset());
+		int count = Math.min(array.length, size);
+		write(array, 0, count);
+		writePadding(size - count);
+	}
+
+	@Override
+	public void writeBoolean(boolean val) throws IOException {
+		writeBigEndian(val ? 1 : 0, 1);
+	}
+
+	@Override
+	public void writeBooleans(boolean... vals) throws IOException {
+		for (boolean value : vals) {
+			writeBoolean(value);
+		}
+	}
+
+	@Override
+	public void writeByte(int val) throws IOException {
+		writeBigEndian(val, 1);
+	}
+
+	@Override
+	public void writeBytes(int... vals) throws IOException {
+		for (int value : vals) {
+			writeByte(value);
+		}
+	}
+
+	@Override
+	public void writeUByte(int val) throws IOException {
+		writeBigEndian(val, 1);
+	}
+
+	@Override
+	public void writeUBytes(int... vals) throws IOException {
+		for (int value : vals) {
+			writeUByte(value);
+		}
+	}
+
+	@Override
+	public void writeShort(int val) throws IOException {
+		writeBigEndian(val, 2);
+	}
+
+	@Override
+	public void writeShorts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeShort(value);
+		}
+	}
+
+	@Override
+	public void writeLEShort(int val) throws IOException {
+		writeBigEndian(Short.reverseBytes((short) val), 2);
+	}
+
+	@Override
+	public void writeLEShorts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeLEShort(value);
+		}
+	}
+
+	@Override
+	public void writeUShort(int val) throws IOException {
+		writeShort(val);
+	}
+
+	@Override
+	public void writeUShorts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeUShort(value);
+		}
+	}
+
+	@Override
+	public void writeLEUShort(int val) throws IOException {
+		writeLEShort(val);
+	}
+
+	@Override
+	public void writeLEUShorts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeLEUShort(value);
+		}
+	}
+
+	@Override
+	public void writeInt(int val) throws IOException {
+		writeBigEndian(val, 4);
+	}
+
+	@Override
+	public void writeInts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeInt(value);
+		}
+	}
+
+	@Override
+	public void writeLEInt(int val) throws IOException {
+		writeBigEndian(Integer.reverseBytes(val), 4);
+	}
+
+	@Override
+	public void writeLEInts(int... vals) throws IOException {
+		for (int value : vals) {
+			writeLEInt(value);
+		}
+	}
+
+	@Override
+	public void writeUInt(long val) throws IOException {
+		writeInt((int) val);
+	}
+
+	@Override
+	public void writeUInts(long... vals) throws IOException {
+		for (long value : vals) {
+			writeUInt(value);
+		}
+	}
+
+	@Override
+	public void writeLEUInt(long val) throws IOException {
+		writeLEInt((int) val);
+	}
+
+	@Override
+	public void writeLEUInts(long... vals) throws IOException {
+		for (long value : vals) {
+			writeLEUInt(value);
+		}
+	}
+
+	@Override
+	public void writeLong(long val) throws IOException {
+		writeBigEndian(val, 8);
+	}
+
+	@Override
+	public void writeLongs(long... vals) throws IOException {
+		for (long value : vals) {
+			writeLong(value);
+		}
+	}
+
+	@Override
+	public void writeLELong(long val) throws IOException {
+		writeBigEndian(Long.reverseBytes(val), 8);
+	}
+
+	@Override
+	public void writeLELongs(long... vals) throws IOException {
+		for (long value : vals) {
+			writeLELong(value);
+		}
+	}
+
+	@Override
+	public void writeFloat(float val) throws IOException {
+		writeInt(Float.floatToRawIntBits(val));
+	}
+
+	@Override
+	public void writeFloats(float... vals) throws IOException {
+		for (float value : vals) {
+			writeFloat(value);
+		}
+	}
+
+	@Override
+	public void writeLEFloat(float val) throws IOException {
+		writeLEInt(Float.floatToRawIntBits(val));
+	}
+
+	@Override
+	public void writeLEFloats(float... vals) throws IOException {
+		for (float value : vals) {
+			writeLEFloat(value);
+		}
+	}
+
+	@Override
+	public void writeDouble(double val) throws IOException {
+		writeLong(Double.doubleToRawLongBits(val));
+	}
+
+	@Override
+	public void writeDoubles(double... vals) throws IOException {
+		for (double value : vals) {
+			writeDouble(value);
+		}
+	}
+
+	@Override
+	public void writeLEDouble(double val) throws IOException {
+		writeLELong(Double.doubleToRawLongBits(val));
+	}
+
+	@Override
+	public void writeLEDoubles(double... vals) throws IOException {
+		for (double value : vals) {
+			writeLEDouble(value);
+		}
+	}
+}
@@ -1,15 +1,40 @@
 package sporemodder.file.filestructures;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
-public class FileStream implements ReadWriteStream {
+public class FileStream implements ReadWriteStream, PositionalReader {
+	
+	/** The default amount of bytes read at once by buffered streams after a seek. */
+	public static final int DEFAULT_BLOCK_SIZE = 8192;
+	/** The default amount of bytes read at once by buffered streams when reading sequentially. */
+	public static final int DEFAULT_READ_AHEAD = 65536;
 
 	private RandomAccessFile ram;
 	private long baseOffset;
+	/** The file this stream reads, used to open slices. */
+	private final File file;
+	/** The end of the data that can be read by this stream if it is a slice, or -1 if it's the whole file. */
+	private long sliceEnd = -1;
+	
+	/** Only used in buffered mode: the block buffer, null if the stream is not buffered. */
+	private byte[] buffer;
+	/** Only used in buffered mode: how many bytes are read when filling the buffer after a seek. */
+	private int blockSize;
+	/** Only used in buffered mode: the absolute file position of the first byte in the buffer. */
+	private long bufferStart;
+	/** Only used in buffered mode: the amount of valid bytes in the buffer. */
+	private int bufferLength;
+	/** Only used in buffered mode: the index in the buffer of the next byte that will be read. */
+	private int bufferPosition;
+	/** Only used in buffered mode: the absolute file position where the last read from the file ended, used to detect sequential reads. */
+	private long lastReadEnd = -1;
 	
 	public FileStream(File file, String mode) throws FileNotFoundException {
 		this(file, mode, false);
@@ -20,8 +45,116 @@ public class FileStream implements ReadWriteStream {
 			file.delete();
 		}
 		
+		this.file = file;
 		ram = new RandomAccessFile(file, mode);
 	}
+	
+	/**
+	 * Creates a read-only buffered stream. Data is read from the file in blocks of <code>blockSize</code> bytes;
+	 * when the stream detects sequential reads, it reads up to <code>readAhead</code> bytes at once.
+	 * @param file The file to read.
+	 * @param blockSize The amount of bytes read after a seek.
+	 * @param readAhead The maximum amount of bytes read at once when reading sequentially.
+	 * @throws FileNotFoundException
+	 */
+	public FileStream(File file, int blockSize, int readAhead) throws FileNotFoundException {
+		this.file = file;
+		ram = new RandomAccessFile(file, "r");
+		this.blockSize = Math.max(blockSize, 8);
+		buffer = new byte[Math.max(this.blockSize, readAhead)];
+	}
+	
+	/** Returns whether this stream uses an internal block buffer to read data. */
+	public boolean isBuffered() {
+		return buffer != null;
+	}
+	
+	private void seekBuffered(long position) {
+		if (position >= bufferStart && position <= bufferStart + bufferLength) {
+			bufferPosition = (int) (position - bufferStart);
+		} else {
+			bufferStart = position;
+			bufferLength = 0;
+			bufferPosition = 0;
+		}
+	}
+	
+	/**
+	 * Makes sure there are at least <code>size</code> bytes available in the buffer, reading them from the file if necessary.
+	 * Throws an EOFException if the end of file is reached before.
+	 */
+	private void fillBuffer(int size) throws IOException {
+		int remaining = bufferLength - bufferPosition;
+		if (remaining >= size) {
+			return;
+		}
+		System.arraycopy(buffer, bufferPosition, buffer, 0, remaining);
+		bufferStart += bufferPosition;
+		bufferPosition = 0;
+		bufferLength = remaining;
+		
+		long readStart = bufferStart + bufferLength;
+		// Read more than a block if we are reading sequentially
+		int target = readStart == lastReadEnd ? buffer.length : Math.max(size, blockSize);
+		if (sliceEnd != -1) {
+			// Slices never read past their end
+			target = (int) Math.max(bufferLength, Math.min(target, sliceEnd - bufferStart));
+		}
+		
+		ram.seek(readStart);
+		while (bufferLength < target) {
+			int count = ram.read(buffer, bufferLength, target - bufferLength);
+			if (count < 0) break;
+			bufferLength += count;
+		}
+		lastReadEnd = bufferStart + bufferLength;
+		
+		if (bufferLength < size) {
+			checkSliceEnd(bufferStart, size);
+			throw new EOFException();
+		}
+	}
+	
+	/** Throws an EOFException if this stream is a slice and the <code>size</code> bytes at the absolute position go past its end. */
+	private void checkSliceEnd(long position, long size) throws EOFException {
+		if (sliceEnd != -1 && position + size > sliceEnd) {
+			throw new EOFException("Cannot read " + size + " bytes at position " + position + ", slice ends at " + sliceEnd);
+		}
+	}
+	
+	/** In unbuffered mode, throws an EOFException if this stream is a slice and reading <code>size</code> bytes goes past its end. */
+	private void checkUnbufferedRead(int size) throws IOException {
+		if (sliceEnd != -1) {
+			checkSliceEnd(ram.getFilePointer(), size);
+		}
+	}
+	
+	/** Reads a big-endian value of 1, 2, 4 or 8 bytes from the buffer. */
+	private long readBuffered(int size) throws IOException {
+		fillBuffer(size);
+		long result = 0;
+		for (int i = 0; i < size; i++) {
+			result = (result << 8) | (buffer[bufferPosition++] & 0xFF);
+		}
+		return size == 8 ? result : (result << (64 - size*8)) >> (64 - size*8);
+	}
+	
+	/** In buffered mode, moves the file pointer of the file to the position of the stream, so the file can be used directly. */
+	private void releaseBuffer() throws IOException {
+		if (buffer != null) {
+			ram.seek(bufferStart + bufferPosition);
+			bufferLength = 0;
+			bufferPosition = 0;
+		}
+	}
+	
+	/** In buffered mode, moves the position of the stream to the file pointer of the file, after it has been used directly. */
+	private void acquireBuffer() throws IOException {
+		if (buffer != null) {
+			bufferStart = ram.getFilePointer();
+			lastReadEnd = bufferStart;
+		}
+	}
 
 	@Override
 	public void writePadding(int pad) throws IOException {
@@ -32,12 +165,14 @@ public class FileStream implements ReadWriteStream {
 	
 	@Override
 	public void seek(long off) throws IOException {
-		ram.seek(off + baseOffset);
+		if (buffer != null) seekBuffered(off + baseOffset);
+		else ram.seek(off + baseOffset);
 	}
 	
 	@Override
 	public void seekAbs(long off) throws IOException {
-		ram.seek(off);
+		if (buffer != null) seekBuffered(off);
+		else ram.seek(off);
 	}
 	
 	@Override
@@ -48,84 +183,113 @@ public class FileStream implements ReadWriteStream {
 	
 	@Override
 	public void skip(int len) throws IOException {
-		ram.seek(ram.getFilePointer() + len);
+		if (buffer != null) seekBuffered(bufferStart + bufferPosition + len);
+		else ram.seek(ram.getFilePointer() + len);
 	}
 	
 	@Override
 	public long getFilePointer() throws IOException {
-		return ram.getFilePointer() - baseOffset;
+		return getFilePointerAbs() - baseOffset;
 	}
 	
 	@Override
 	public long length() throws IOException {
-		return ram.length();
+		return sliceEnd != -1 ? sliceEnd : ram.length();
+	}
+	
+	/**
+	 * Returns a read-only stream that reads the given range of the file. The file is opened again,
+	 * so the slice can be used by other threads; if this stream is buffered, the slice is buffered as well.
+	 * Reading past the end of the slice throws an EOFException, even if the file continues.
+	 */
+	@Override
+	public FileStream slice(long offset, long length) throws IOException {
+		long start = offset + baseOffset;
+		if (start < 0 || length < 0 || start + length > length()) {
+			throw new EOFException("Cannot slice " + length + " bytes at position " + start);
+		}
+		FileStream stream = buffer != null ? new FileStream(file, blockSize, buffer.length) : new FileStream(file, "r");
+		stream.sliceEnd = start + length;
+		stream.setBaseOffset(start);
+		stream.seek(0);
+		return stream;
 	}
 	
 	
 	@Override
 	public byte readByte() throws IOException {
+		if (buffer != null) return (byte) readBuffered(1);
+		checkUnbufferedRead(1);
 		return ram.readByte();
 	}
 	@Override
 	public short readUByte() throws IOException {
-		return (short) (ram.readByte() & 0xFF);
+		return (short) (readByte() & 0xFF);
 	}
 	
 	@Override
 	public char readChar() throws IOException {
+		if (buffer != null) return (char) readBuffered(2);
+		checkUnbufferedRead(2);
 		return ram.readChar();
 	}
 	
 	@Override
 	public short readShort() throws IOException {
+		if (buffer != null) return (short) readBuffered(2);
+		checkUnbufferedRead(2);
 		return ram.readShort();
 	}
 	@Override
 	public int readUShort() throws IOException {
-		return ram.readShort() & 0xFFFF;
+		return readShort() & 0xFFFF;
 	}
 	@Override
 	public short readLEShort() throws IOException {
-		short i = ram.readShort();
+		short i = readShort();
 		return Short.reverseBytes(i);
 	}
 	@Override
 	public int readLEUShort() throws IOException {
-		int i = ram.readShort();
+		int i = readShort();
 		return (((i & 0xFF) << 8) | ((i & 0xFF00) >> 8));
 	}
 	
 	@Override
 	public int readInt() throws IOException {
+		if (buffer != null) return (int) readBuffered(4);
+		checkUnbufferedRead(4);
 		return ram.readInt();
 	}
 	@Override
 	public long readUInt() throws IOException {
-		return ram.readInt() & 0xFFFFFFFFL;
+		return readInt() & 0xFFFFFFFFL;
 	}
 	@Override
 	public int readLEInt() throws IOException {
-		int i = ram.readInt();
+		int i = readInt();
 		return (int) (((i & 0xFF) << 24) | ((i & 0xFF00) << 8) | ((i & 0xFF0000) >> 8) | ((i & 0xFF000000L) >> 24));
 	}
 	@Override
 	public long readLEUInt() throws IOException {
-		int i = ram.readInt();
+		int i = readInt();
 		return (((i & 0xFF) << 24) | ((i & 0xFF00) << 8) | ((i & 0xFF0000) >> 8) | ((i & 0xFF000000L) >> 24)) & 0xFFFFFFFFL;
 	}
 	
 	@Override
 	public long readLong() throws IOException {
+		if (buffer != null) return readBuffered(8);
+		checkUnbufferedRead(8);
 		return ram.readLong();
 	}
 	@Override
 	public long readLELong() throws IOException {
-		return Long.reverseBytes(ram.readLong());
+		return Long.reverseBytes(readLong());
 	}
 	
 	@Override
 	public float readFloat() throws IOException {
-		return ram.readFloat();
+		return Float.intBitsToFloat(readInt());
 	}
 	@Override
 	public float readLEFloat() throws IOException {
@@ -134,7 +298,7 @@ public class FileStream implements ReadWriteStream {
 	
 	@Override
 	public double readDouble() throws IOException {
-		return ram.readDouble();
+		return Double.longBitsToDouble(readLong());
 	}
 	@Override
 	public double readLEDouble() throws IOException {
@@ -219,15 +383,51 @@ public class FileStream implements ReadWriteStream {
 	}
 	@Override
 	public void read(byte[] arr) throws IOException {
-		ram.read(arr);
+		read(arr, 0, arr.length);
+	}
+	@Override
+	public void read(byte[] arr, int off, int len) throws IOException {
+		if (buffer == null) {
+			checkUnbufferedRead(len);
+			ram.read(arr, off, len);
+			return;
+		}
+		int count = Math.min(len, bufferLength - bufferPosition);
+		System.arraycopy(buffer, bufferPosition, arr, off, count);
+		bufferPosition += count;
+		
+		int remaining = len - count;
+		if (remaining >= buffer.length) {
+			// Big reads go straight to the destination array
+			checkSliceEnd(bufferStart + bufferPosition, remaining);
+			releaseBuffer();
+			ram.readFully(arr, off + count, remaining);
+			acquireBuffer();
+		}
+		else if (remaining > 0) {
+			fillBuffer(remaining);
+			System.arraycopy(buffer, bufferPosition, arr, off + count, remaining);
+			bufferPosition += remaining;
+		}
 	}
 	@Override
 	public String readLine() throws IOException {
-		return ram.readLine();
+		releaseBuffer();
+		long start = ram.getFilePointer();
+		String line = sliceEnd != -1 && start >= sliceEnd ? null : ram.readLine();
+		if (sliceEnd != -1 && ram.getFilePointer() > sliceEnd) {
+			// The line continues after the end of the slice; each character of the line is one byte
+			if (line.length() > sliceEnd - start) {
+				line = line.substring(0, (int) (sliceEnd - start));
+			}
+			ram.seek(sliceEnd);
+		}
+		acquireBuffer();
+		return line;
 	}
 	@Override
 	public boolean readBoolean() throws IOException {
-		return ram.readBoolean();
+		return readByte() != 0;
 	}
 	@Override
 	public void write(byte[] arr) throws IOException {
@@ -253,15 +453,17 @@ public class FileStream implements ReadWriteStream {
 	}
 	@Override
 	public long getFilePointerAbs() throws IOException {
-		return ram.getFilePointer();
+		return buffer != null ? bufferStart + bufferPosition : ram.getFilePointer();
 	}
 	@Override
 	public byte[] toByteArray() throws IOException {
+		releaseBuffer();
 		long oldPointer = ram.getFilePointer();
 		ram.seek(0);
-		byte[] array = new byte[(int) ram.length()];
+		byte[] array = new byte[(int) length()];
 		ram.read(array);
 		ram.seek(oldPointer);
+		acquireBuffer();
 		return array;
 	}
 	
@@ -483,12 +685,44 @@ public class FileStream implements ReadWriteStream {
 		return ram.getChannel();
 	}
 	
+	@Override
+	public void readAt(long offset, ByteBuffer dst) throws IOException {
+		// Positional channel reads do not use nor modify the file pointer
+		FileChannel channel = ram.getChannel();
+		long position = offset + baseOffset;
+		checkSliceEnd(position, dst.remaining());
+		while (dst.hasRemaining()) {
+			int count = channel.read(dst, position);
+			if (count < 0) {
+				throw new EOFException("Cannot read " + dst.remaining() + " bytes at position " + position);
+			}
+			position += count;
+		}
+	}
+	
+	@Override
+	public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		FileChannel channel = ram.getChannel();
+		long position = offset + baseOffset;
+		checkSliceEnd(position, count);
+		while (count > 0) {
+			long transferred = channel.transferTo(position, count, target);
+			if (transferred <= 0 && position + count > channel.size()) {
+				throw new EOFException("Cannot transfer " + count + " bytes at position " + position);
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+	
 	@Override
 	public String readCString(StringEncoding encoding) throws IOException {
+		releaseBuffer();
 		long firstIndex = ram.getFilePointer();
 		long lastIndex = firstIndex;
 		
 		while(true) {
+			checkSliceEnd(lastIndex, encoding == StringEncoding.ASCII ? 1 : 2);
 			if (ram.read() == 0) {
 				if (encoding == StringEncoding.ASCII || ram.read() == 0) {
 					lastIndex++;
@@ -503,6 +737,7 @@ public class FileStream implements ReadWriteStream {
 		ram.seek(firstIndex);
 		ram.read(arr);
 		ram.seek(lastIndex);
+		acquireBuffer();
 		
 		return new String(arr, encoding.getCharset());
 	}
@@ -510,7 +745,7 @@ public class FileStream implements ReadWriteStream {
 	@Override
 	public String readString(StringEncoding encoding, int length) throws IOException {
 		byte[] arr = new byte[encoding == StringEncoding.ASCII ? length : length*2];
-		ram.read(arr);
+		read(arr);
 		return new String(arr, encoding.getCharset());
 	}
 	
@@ -1,13 +1,15 @@
 package sporemodder.file.filestructures;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.util.Arrays;
 
-public class FixedMemoryStream implements ReadWriteStream {
+public class FixedMemoryStream implements ReadWriteStream, PositionalReader {
 	protected int filePointer;
 	protected byte[] data;
 	protected int baseOffset;
@@ -73,9 +75,52 @@ public class FixedMemoryStream implements ReadWriteStream {
 	
 	@Override
 	public void read(byte[] arr) throws IOException {
-		
-		System.arraycopy(data, filePointer, arr, 0, arr.length);
-		filePointer += arr.length;
+		read(arr, 0, arr.length);
+	}
+	
+	@Override
+	public void read(byte[] arr, int off, int len) throws IOException {
+		System.arraycopy(data, filePointer, arr, off, len);
+		filePointer += len;
+	}
+	
+	@Override
+	public MemoryStream slice(long offset, long length) throws IOException {
+		int start = (int) offset + baseOffset;
+		if (start < 0 || length < 0 || start + length > length()) {
+			throw new EOFException("Cannot slice " + length + " bytes at position " + start);
+		}
+		return new MemoryStream(data, start, (int) (start + length));
+	}
+	
+	@Override
+	public void readAt(long offset, ByteBuffer dst) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || position + dst.remaining() > length()) {
+			throw new EOFException("Cannot read " + dst.remaining() + " bytes at position " + position);
+		}
+		dst.put(data, position, dst.remaining());
+	}
+	
+	@Override
+	public ByteBuffer view(long offset, int length) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || length < 0 || position + length > length()) {
+			throw new EOFException("Cannot read " + length + " bytes at position " + position);
+		}
+		return ByteBuffer.wrap(data, position, length).slice();
+	}
+	
+	@Override
+	public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		int position = (int) offset + baseOffset;
+		if (position < 0 || position + count > length()) {
+			throw new EOFException("Cannot transfer " + count + " bytes at position " + position);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data, position, (int) count);
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
 	}
 	
 	@Override
@@ -0,0 +1,525 @@
+package sporemodder.file.filestructures;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only stream that reads a file through memory-mapped windows instead of system calls.
+ * The file is mapped lazily in windows of 1 GB, so files bigger than 2 GB (such as DBBF packages) are supported;
+ * values that cross the border between two windows are assembled byte by byte.
+ */
+public class MappedFileStream implements StreamReader, PositionalReader {
+
+	private static final int WINDOW_SHIFT = 30;
+	private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+	private static final long WINDOW_MASK = WINDOW_SIZE - 1;
+
+	private FileChannel channel;
+	private final long length;
+	/** The size of the whole file, which might be bigger than the length if this is a slice. */
+	private final long fileSize;
+	/** The mapped windows, shared with slices and with the threads that read from the stream; null until they are used. */
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+	/** Slices share the channel and windows of the stream they were created from, so they must not close them. */
+	private final boolean isSlice;
+
+	private long filePointer;
+	private long baseOffset;
+
+	public MappedFileStream(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		length = channel.size();
+		fileSize = length;
+		windows = new AtomicReferenceArray<MappedByteBuffer>((int) ((length + WINDOW_MASK) >>> WINDOW_SHIFT));
+		isSlice = false;
+	}
+	
+	private MappedFileStream(MappedFileStream parent, long start, long end) {
+		channel = parent.channel;
+		windows = parent.windows;
+		fileSize = parent.fileSize;
+		length = end;
+		baseOffset = start;
+		filePointer = start;
+		isSlice = true;
+	}
+	
+	/**
+	 * Returns a stream that reads the given range of the file through the same mapped windows.
+	 * The slice is only valid while this stream is open.
+	 */
+	@Override
+	public MappedFileStream slice(long offset, long length) throws IOException {
+		long start = offset + baseOffset;
+		if (start < 0 || length < 0 || start + length > this.length) {
+			throw new EOFException("Cannot slice " + length + " bytes at position " + start);
+		}
+		return new MappedFileStream(this, start, start + length);
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the window that contains the absolute position, mapping it if necessary.
+	 * Windows are mapped under a lock, so a window is never mapped twice even if multiple threads need it at the same time;
+	 * once it is mapped, it is read without locking.
+	 */
+	private MappedByteBuffer getWindow(int index) throws IOException {
+		MappedByteBuffer window = windows.get(index);
+		if (window == null) {
+			synchronized (windows) {
+				window = windows.get(index);
+				if (window == null) {
+					long start = (long) index << WINDOW_SHIFT;
+					window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+					windows.set(index, window);
+				}
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * Returns the window that contains the range [position, position + size), or null if the range
+	 * crosses the border between two windows. Throws an EOFException if the range is outside the file.
+	 */
+	private ByteBuffer getWindow(long position, int size) throws IOException {
+		if (position < 0 || position + size > length) {
+			throw new EOFException("Cannot read " + size + " bytes at position " + position + ", file size is " + length);
+		}
+		int index = (int) (position >>> WINDOW_SHIFT);
+		if (index != (int) ((position + size - 1) >>> WINDOW_SHIFT)) {
+			return null;
+		}
+		return getWindow(index);
+	}
+
+	private long readBigEndian(int size) throws IOException {
+		long result = 0;
+		ByteBuffer window = getWindow(filePointer, size);
+		if (window != null) {
+			int index = (int) (filePointer & WINDOW_MASK);
+			switch (size) {
+			case 1: result = window.get(index); break;
+			case 2: result = window.getShort(index); break;
+			case 4: result = window.getInt(index); break;
+			default: result = window.getLong(index); break;
+			}
+			filePointer += size;
+		}
+		else {
+			for (int i = 0; i < size; i++) {
+				result = (result << 8) | (getWindow((int) (filePointer >>> WINDOW_SHIFT)).get((int) (filePointer & WINDOW_MASK)) & 0xFF);
+				filePointer++;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void seek(long off) {
+		filePointer = off + baseOffset;
+	}
+
+	@Override
+	public void seekAbs(long off) {
+		filePointer = off;
+	}
+
+	@Override
+	public void skip(int n) {
+		filePointer += n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (isSlice) {
+			channel = null;
+			return;
+		}
+		// Mapped buffers are released when they are garbage collected
+		for (int i = 0; i < windows.length(); i++) {
+			windows.set(i, null);
+		}
+		if (channel != null) channel.close();
+		channel = null;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void setLength(long n) throws IOException {
+		throw new IOException("Cannot change the length of a memory-mapped read-only stream.");
+	}
+
+	@Override
+	public long getFilePointer() {
+		return filePointer - baseOffset;
+	}
+
+	@Override
+	public long getFilePointerAbs() {
+		return filePointer;
+	}
+
+	@Override
+	public void setBaseOffset(long val) {
+		baseOffset = val;
+	}
+
+	@Override
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		long oldPointer = filePointer;
+		filePointer = 0;
+		byte[] array = new byte[(int) length];
+		read(array);
+		filePointer = oldPointer;
+		return array;
+	}
+
+	@Override
+	public void read(byte[] dst) throws IOException {
+		read(dst, 0, dst.length);
+	}
+	
+	@Override
+	public void read(byte[] dst, int dstOffset, int length) throws IOException {
+		if (filePointer < 0 || filePointer + length > this.length) {
+			throw new EOFException("Cannot read " + length + " bytes at position " + filePointer + ", file size is " + this.length);
+		}
+		int end = dstOffset + length;
+		while (dstOffset < end) {
+			ByteBuffer window = getWindow((int) (filePointer >>> WINDOW_SHIFT)).duplicate();
+			window.position((int) (filePointer & WINDOW_MASK));
+			int count = Math.min(end - dstOffset, window.remaining());
+			window.get(dst, dstOffset, count);
+			dstOffset += count;
+			filePointer += count;
+		}
+	}
+
+	@Override
+	public void readAt(long offset, ByteBuffer dst) throws IOException {
+		long position = offset + baseOffset;
+		if (position < 0 || position + dst.remaining() > length) {
+			throw new EOFException("Cannot read " + dst.remaining() + " bytes at position " + position + ", file size is " + length);
+		}
+		while (dst.hasRemaining()) {
+			ByteBuffer window = getWindow((int) (position >>> WINDOW_SHIFT)).duplicate();
+			window.position((int) (position & WINDOW_MASK));
+			if (window.remaining() > dst.remaining()) {
+				window.limit(window.position() + dst.remaining());
+			}
+			position += window.remaining();
+			dst.put(window);
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the mapped window that contains the range, or null if the range crosses the border
+	 * between two windows.
+	 */
+	@Override
+	public ByteBuffer view(long offset, int length) throws IOException {
+		long position = offset + baseOffset;
+		ByteBuffer window = getWindow(position, length);
+		if (window == null) {
+			return null;
+		}
+		int start = (int) (position & WINDOW_MASK);
+		return window.duplicate().position(start).limit(start + length).slice();
+	}
+
+	@Override
+	public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		long position = offset + baseOffset;
+		while (count > 0) {
+			long transferred = channel.transferTo(position, count, target);
+			if (transferred <= 0 && position + count > channel.size()) {
+				throw new EOFException("Cannot transfer " + count + " bytes at position " + position);
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	@Override
+	public String readCString(StringEncoding encoding) throws IOException {
+		int characterSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		long firstIndex = filePointer;
+
+		while (true) {
+			if (characterSize == 1 ? readByte() == 0 : readShort() == 0) {
+				break;
+			}
+		}
+
+		byte[] arr = new byte[(int) (filePointer - firstIndex - characterSize)];
+		long lastIndex = filePointer;
+		filePointer = firstIndex;
+		read(arr);
+		filePointer = lastIndex;
+
+		return new String(arr, encoding.getCharset());
+	}
+
+	@Override
+	public String readString(StringEncoding encoding, int length) throws IOException {
+		byte[] arr = new byte[encoding == StringEncoding.ASCII ? length : length*2];
+		read(arr);
+		return new String(arr, encoding.getCharset());
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (filePointer >= length) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		while (filePointer < length) {
+			int c = readUByte();
+			if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				if (filePointer < length && readUByte() != '\n') {
+					filePointer--;
+				}
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public void readBooleans(boolean[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readBoolean();
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return (byte) readBigEndian(1);
+	}
+
+	@Override
+	public short readUByte() throws IOException {
+		return (short) (readBigEndian(1) & 0xFF);
+	}
+
+	@Override
+	public void readBytes(byte[] dst) throws IOException {
+		read(dst);
+	}
+
+	@Override
+	public void readUBytes(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUByte();
+		}
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return (char) readBigEndian(2);
+	}
+
+	@Override
+	public void readChars(char[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readChar();
+		}
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		return (short) readBigEndian(2);
+	}
+
+	@Override
+	public short readLEShort() throws IOException {
+		return Short.reverseBytes((short) readBigEndian(2));
+	}
+
+	@Override
+	public int readUShort() throws IOException {
+		return (int) (readBigEndian(2) & 0xFFFF);
+	}
+
+	@Override
+	public int readLEUShort() throws IOException {
+		return readLEShort() & 0xFFFF;
+	}
+
+	@Override
+	public void readShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readShort();
+		}
+	}
+
+	@Override
+	public void readLEShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEShort();
+		}
+	}
+
+	@Override
+	public void readUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUShort();
+		}
+	}
+
+	@Override
+	public void readLEUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUShort();
+		}
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return (int) readBigEndian(4);
+	}
+
+	@Override
+	public int readLEInt() throws IOException {
+		return Integer.reverseBytes((int) readBigEndian(4));
+	}
+
+	@Override
+	public long readUInt() throws IOException {
+		return readBigEndian(4) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLEUInt() throws IOException {
+		return readLEInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void readInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readInt();
+		}
+	}
+
+	@Override
+	public void readLEInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEInt();
+		}
+	}
+
+	@Override
+	public void readUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUInt();
+		}
+	}
+
+	@Override
+	public void readLEUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUInt();
+		}
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return readBigEndian(8);
+	}
+
+	@Override
+	public long readLELong() throws IOException {
+		return Long.reverseBytes(readBigEndian(8));
+	}
+
+	@Override
+	public void readLongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLong();
+		}
+	}
+
+	@Override
+	public void readLELongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLELong();
+		}
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	public float readLEFloat() throws IOException {
+		return Float.intBitsToFloat(readLEInt());
+	}
+
+	@Override
+	public void readFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readFloat();
+		}
+	}
+
+	@Override
+	public void readLEFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEFloat();
+		}
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public double readLEDouble() throws IOException {
+		return Double.longBitsToDouble(readLELong());
+	}
+
+	@Override
+	public void readDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readDouble();
+		}
+	}
+
+	@Override
+	public void readLEDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEDouble();
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package sporemodder.file.filestructures;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 
 public class MemoryStream extends FixedMemoryStream {
 	private static final int INITIAL_SIZE = 8192; 
 	
 	private int length;
 	private float resizeFactor = 1.5f;
+	/** Whether the data array was acquired from the {@link ByteArrayPool}, and must be released when the stream is closed. */
+	private boolean isPooled;
 	
 	public MemoryStream() {
 		super(INITIAL_SIZE);
@@ -23,6 +28,32 @@ public class MemoryStream extends FixedMemoryStream {
 		length = arr.length;
 	}
 	
+	/**
+	 * Creates a stream that shares the given array, used for slices: the base offset and file pointer are set to
+	 * <code>start</code>, and the length of the stream is <code>end</code>.
+	 */
+	MemoryStream(byte[] arr, int start, int end) {
+		super(arr);
+		baseOffset = start;
+		filePointer = start;
+		length = end;
+	}
+	
+	/**
+	 * Creates a stream that uses an array acquired from the {@link ByteArrayPool}, of which only the first <code>length</code> bytes are valid.
+	 * The stream owns the array: it will be released back to the pool when the stream is closed, so it must not be used after that.
+	 */
+	public static MemoryStream fromPool(byte[] arr, int length) {
+		MemoryStream stream = new MemoryStream(arr);
+		stream.length = length;
+		stream.isPooled = true;
+		return stream;
+	}
+	
+	/**
+	 * Returns the array that stores the data of this stream. The array might be bigger than the stream;
+	 * only the first {@link #length()} bytes are valid.
+	 */
 	public byte[] getRawData() {
 		return data;
 	}
@@ -31,7 +62,27 @@ public class MemoryStream extends FixedMemoryStream {
 		out.write(data, 0, length);
 	}
 	
+	@Override
+	public void close() {
+		if (isPooled) {
+			ByteArrayPool.release(data);
+			isPooled = false;
+		}
+		super.close();
+	}
+	
+	@Override
+	public void writeToFile(File file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			out.write(data, 0, length);
+		}
+	}
+	
 	public void reset(int nCapacity) {
+		if (isPooled) {
+			ByteArrayPool.release(data);
+			isPooled = false;
+		}
 		data = new byte[nCapacity];
 		filePointer = 0;
 		baseOffset = 0;
@@ -39,10 +90,11 @@ public class MemoryStream extends FixedMemoryStream {
 	}
 	
 	private void reallocate(long size) {
-		byte[] arr = new byte[(int) size];
+		byte[] arr = isPooled ? ByteArrayPool.acquire((int) size) : new byte[(int) size];
 		
 		if (data != null) {
 			System.arraycopy(data, 0, arr, 0, data.length);
+			if (isPooled) ByteArrayPool.release(data);
 		}
 		
 		data = arr;
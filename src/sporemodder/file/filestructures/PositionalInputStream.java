@@ -0,0 +1,67 @@
+package sporemodder.file.filestructures;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * An input stream over a range of bytes of a {@link PositionalReader}. Every read is a positional read, so any amount
+ * of these streams can read from the same reader at the same time. The stream is not buffered: reads are passed
+ * directly to the reader, so it is better to read big blocks than single bytes.
+ */
+public class PositionalInputStream extends InputStream {
+
+	private final PositionalReader reader;
+	/** The position of the reader the next byte is read from. */
+	private long position;
+	/** The position of the reader where the range ends. */
+	private final long end;
+
+	/**
+	 * @param reader The reader the bytes are read from; closing this stream doesn't close it.
+	 * @param offset The position of the reader where the range starts.
+	 * @param length The amount of bytes of the range.
+	 */
+	public PositionalInputStream(PositionalReader reader, long offset, long length) {
+		this.reader = reader;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+		byte[] b = new byte[1];
+		reader.readAt(position++, b, 0, 1);
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= end) {
+			return -1;
+		}
+		int count = (int) Math.min(len, end - position);
+		reader.readAt(position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		long count = Math.max(0, Math.min(n, end - position));
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+}
@@ -0,0 +1,62 @@
+package sporemodder.file.filestructures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An object that can read data at any position without moving a shared file pointer. Unlike the {@link Stream} methods,
+ * these methods are thread-safe: any number of threads can read from the same reader at the same time.
+ * Offsets are relative to the base offset of the stream, like in {@link Stream#seek(long)}.
+ */
+public interface PositionalReader {
+
+	/**
+	 * Reads dst.remaining() bytes starting at the given offset into the destination buffer.
+	 * Throws an EOFException if the end of the data is reached before.
+	 */
+	public void readAt(long offset, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Reads length bytes starting at the given offset into the destination array, starting at dstOffset.
+	 */
+	public default void readAt(long offset, byte[] dst, int dstOffset, int length) throws IOException {
+		readAt(offset, ByteBuffer.wrap(dst, dstOffset, length));
+	}
+
+	/**
+	 * Reads dst.length bytes starting at the given offset into the destination array.
+	 */
+	public default void readAt(long offset, byte[] dst) throws IOException {
+		readAt(offset, dst, 0, dst.length);
+	}
+
+	/**
+	 * Writes count bytes starting at the given offset into the target channel. Implementations backed by a file
+	 * transfer the bytes directly between channels, without copying them into the Java heap.
+	 */
+	public default void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 65536));
+		while (count > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(count, buffer.capacity()));
+			readAt(offset, buffer);
+			buffer.flip();
+			offset += buffer.remaining();
+			count -= buffer.remaining();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer that shares the bytes of the given range, so they can be used without copying them, or null if this
+	 * reader cannot do it (for example, because the data is not in memory). The buffer goes from index 0 to the length
+	 * and it can be read-only; it is only valid while this reader is open.
+	 * Throws an EOFException if the range is outside the data.
+	 */
+	public default ByteBuffer view(long offset, int length) throws IOException {
+		return null;
+	}
+}
@@ -0,0 +1,163 @@
+package sporemodder.file.filestructures;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads a list of ranges of a file ahead of time on a dedicated I/O thread, so the disk always has pending requests while the
+ * data that was already read is being processed. This is meant for slow storage like hard disks or network filesystems.
+ * <p>
+ * The ranges are read in the given order, and they are returned in that same order by {@link #next()}.
+ * The amount of data that has been read but not released yet is limited by the buffer size; when the limit is reached,
+ * the I/O thread waits until some chunks are closed. Chunks use arrays from the {@link ByteArrayPool}.
+ */
+public class PrefetchingReader implements Closeable {
+
+	/** The default amount of bytes that can be read ahead, 64 MB. */
+	public static final long DEFAULT_BUFFER_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * The data of a single range. The chunk must be closed once it has been used, so the I/O thread can keep reading.
+	 */
+	public static class Chunk implements Closeable {
+		private final PrefetchingReader reader;
+		private final int permits;
+		private byte[] data;
+		private final int length;
+		private final IOException error;
+
+		private Chunk(PrefetchingReader reader, int permits, byte[] data, int length, IOException error) {
+			this.reader = reader;
+			this.permits = permits;
+			this.data = data;
+			this.length = length;
+			this.error = error;
+		}
+
+		/**
+		 * Returns the array that contains the data of the range; only the first {@link #getLength()} bytes are valid.
+		 * @throws IOException If there was an error reading this range.
+		 */
+		public byte[] getData() throws IOException {
+			if (error != null) {
+				throw error;
+			}
+			return data;
+		}
+
+		/** Returns the amount of bytes in this chunk. */
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (data != null) {
+				ByteArrayPool.release(data);
+				data = null;
+				reader.budget.release(permits);
+			}
+		}
+	}
+
+	private final PositionalReader source;
+	private final long[] offsets;
+	private final int[] sizes;
+	private final int maxPermits;
+	private final Semaphore budget;
+	private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+	private final Thread thread;
+	private volatile boolean isClosed;
+	private int nextIndex;
+
+	/**
+	 * Creates the reader and starts reading the ranges in the background.
+	 * @param source The reader used to read the data.
+	 * @param offsets The offset of every range, relative to the base offset of the source.
+	 * @param sizes The size of every range.
+	 * @param bufferSize The maximum amount of bytes that can be read and not released at once.
+	 */
+	public PrefetchingReader(PositionalReader source, long[] offsets, int[] sizes, long bufferSize) {
+		if (offsets.length != sizes.length) {
+			throw new IllegalArgumentException("There must be the same amount of offsets and sizes.");
+		}
+		this.source = source;
+		this.offsets = offsets;
+		this.sizes = sizes;
+		maxPermits = (int) Math.max(1, Math.min(bufferSize, Integer.MAX_VALUE));
+		budget = new Semaphore(maxPermits);
+
+		thread = new Thread(this::readRanges, "Prefetching reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void readRanges() {
+		for (int i = 0; i < offsets.length && !isClosed; i++) {
+			// Ranges bigger than the buffer take all of it, so they can still be read
+			int permits = Math.min(sizes[i], maxPermits);
+			budget.acquireUninterruptibly(permits);
+			if (isClosed) {
+				break;
+			}
+
+			byte[] data = null;
+			Chunk chunk;
+			try {
+				data = ByteArrayPool.acquire(sizes[i]);
+				source.readAt(offsets[i], data, 0, sizes[i]);
+				chunk = new Chunk(this, permits, data, sizes[i], null);
+			}
+			catch (IOException | RuntimeException | OutOfMemoryError e) {
+				// Errors are given to the user of the chunk, so that next() never waits for a chunk that won't come
+				ByteArrayPool.release(data);
+				budget.release(permits);
+				chunk = new Chunk(this, 0, null, sizes[i], e instanceof IOException ? (IOException) e : new IOException(e));
+			}
+			queue.add(chunk);
+		}
+	}
+
+	/** Returns whether there are still ranges that have not been returned by {@link #next()}. */
+	public boolean hasNext() {
+		return nextIndex < offsets.length;
+	}
+
+	/**
+	 * Returns the data of the next range, waiting until it has been read.
+	 * If there was an error reading the range, the error is thrown by {@link Chunk#getData()}.
+	 * @throws NoSuchElementException If all the ranges have already been returned.
+	 */
+	public Chunk next() throws InterruptedException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Chunk chunk = queue.take();
+		nextIndex++;
+		return chunk;
+	}
+
+	/**
+	 * Stops reading and releases all the chunks that have not been returned yet. Chunks that have already been returned
+	 * must still be closed by their users. The source is not closed.
+	 */
+	@Override
+	public void close() {
+		isClosed = true;
+		// The I/O thread is not interrupted, as that would close the file channel it is reading; just make sure it doesn't wait
+		budget.release(maxPermits);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Chunk chunk;
+		while ((chunk = queue.poll()) != null) {
+			chunk.close();
+		}
+	}
+}
@@ -9,11 +9,24 @@ public interface StreamReader extends Stream {
 	 */
 	public byte[] toByteArray() throws IOException;
 	
+	/**
+	 * Returns a new stream that reads the <code>length</code> bytes that start at <code>offset</code> (relative to the base offset) in this stream.
+	 * The slice shares the same data or file without copying it, but it has its own file pointer, so both streams can be used independently.
+	 * The base offset of the slice is the beginning of the slice, and its length is the end of the slice.
+	 * The slice must be closed separately, but closing it does not close this stream.
+	 */
+	public StreamReader slice(long offset, long length) throws IOException;
+	
 	/**
 	 * Reads dst.length bytes into the provided destination array, and moves the file pointer dst.length positions forward.
 	 */
 	public void read(byte[] dst) throws IOException;
 	
+	/**
+	 * Reads length bytes into the provided destination array starting at dstOffset, and moves the file pointer length positions forward.
+	 */
+	public void read(byte[] dst, int dstOffset, int length) throws IOException;
+	
 	/** Reads a string with the provided encoding, until a 00 character is found. */
 	public String readCString(StringEncoding encoding) throws IOException;
 	/** Reads a string of the given length with the provided encoding. When a 00 character is found,
@@ -0,0 +1,116 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import sporemodder.file.filestructures.MemoryStream;
+
+public class DBPFIndexTableTest {
+	
+	private static final int TYPE_ID = 0x0000ABCD;
+	private static final int GROUP_ID = 0x12345678;
+	
+	/**
+	 * Writes an index with one item for every instance ID and reads it back as a table.
+	 * The memory size of every item is its position in the index, so filters can tell them apart.
+	 */
+	private static DBPFIndexTable createTable(int ... instanceIDs) throws IOException {
+		DBPFIndex index = new DBPFIndex();
+		for (int i = 0; i < instanceIDs.length; i++) {
+			DBPFItem item = new DBPFItem();
+			item.name.setTypeID(TYPE_ID);
+			item.name.setGroupID(GROUP_ID);
+			item.name.setInstanceID(instanceIDs[i]);
+			item.chunkOffset = 96 + i * 16;
+			item.compressedSize = 16;
+			item.memSize = i;
+			index.items.add(item);
+		}
+		
+		try (MemoryStream stream = new MemoryStream()) {
+			index.write(stream);
+			index.writeItems(stream, false);
+			stream.seek(0);
+			
+			DBPFIndex readIndex = new DBPFIndex();
+			readIndex.read(stream);
+			return readIndex.readTable(stream, instanceIDs.length, false);
+		}
+	}
+	
+	private static int[] removeRepeatedKeys(DBPFIndexTable table, int[] items, boolean keepFirst) {
+		int[] array = Arrays.copyOf(items, items.length);
+		int count = table.removeRepeatedKeys(array, array.length, keepFirst);
+		return Arrays.copyOf(array, count);
+	}
+	
+	@Test
+	public void testUniqueKeysAreKept() throws IOException {
+		DBPFIndexTable table = createTable(1, 2, 3);
+		assertArrayEquals(new int[] {0, 1, 2}, removeRepeatedKeys(table, new int[] {0, 1, 2}, false));
+		assertArrayEquals(new int[] {0, 1, 2}, removeRepeatedKeys(table, new int[] {0, 1, 2}, true));
+	}
+	
+	@Test
+	public void testLastItemOfKeyIsKept() throws IOException {
+		DBPFIndexTable table = createTable(1, 2, 1, 3, 1);
+		assertArrayEquals(new int[] {1, 3, 4}, removeRepeatedKeys(table, new int[] {0, 1, 2, 3, 4}, false));
+	}
+	
+	/** When the written files are checked (multiple packages), the first item of every key wins. */
+	@Test
+	public void testFirstItemOfKeyIsKept() throws IOException {
+		DBPFIndexTable table = createTable(1, 2, 1, 3, 1);
+		assertArrayEquals(new int[] {0, 1, 3}, removeRepeatedKeys(table, new int[] {0, 1, 2, 3, 4}, true));
+	}
+	
+	/** If the item that would win was removed by a filter, another item with the same key must still be kept. */
+	@Test
+	public void testWinnerIsChosenAmongFilteredItems() throws IOException {
+		DBPFIndexTable table = createTable(1, 2, 1, 3, 1);
+		assertArrayEquals(new int[] {1, 2}, removeRepeatedKeys(table, new int[] {1, 2}, false));
+		assertArrayEquals(new int[] {0, 1, 3}, removeRepeatedKeys(table, new int[] {0, 1, 3}, false));
+		assertArrayEquals(new int[] {2, 3}, removeRepeatedKeys(table, new int[] {0, 2, 3}, false));
+		assertArrayEquals(new int[] {2, 3}, removeRepeatedKeys(table, new int[] {2, 3, 4}, true));
+		assertArrayEquals(new int[] {4}, removeRepeatedKeys(table, new int[] {4}, true));
+	}
+	
+	@Test
+	public void testFilteredItemsAreSelectedOnce() throws IOException {
+		DBPFIndexTable table = createTable(1, 1, 1);
+		DBPFItem filterItem = new DBPFItem();
+		int[] items = new int[table.size()];
+		int count = 0;
+		// Only the first two items pass, so the second one wins instead of the third one
+		for (int i = 0; i < table.size(); i++) {
+			if (table.fillItem(i, filterItem).memSize <= 1) {
+				items[count++] = i;
+			}
+		}
+		assertEquals(1, table.removeRepeatedKeys(items, count, false));
+		assertEquals(1, items[0]);
+	}
+}
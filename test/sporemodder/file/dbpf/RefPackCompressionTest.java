@@ -0,0 +1,160 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import sporemodder.file.dbpf.RefPackCompression.CompressionLevel;
+import sporemodder.file.dbpf.RefPackCompression.CompressorOutput;
+
+public class RefPackCompressionTest {
+	
+	/** Text with few different symbols, where comparing more matches used to make MAX bigger than DEFAULT. */
+	private static byte[] createLowEntropyText(int length, String symbols, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) symbols.charAt(random.nextInt(symbols.length()));
+		}
+		return data;
+	}
+	
+	private static byte[] createRepeatedText(int length, long seed) {
+		Random random = new Random(seed);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append("line ").append(random.nextInt(1000)).append(": value = ").append(random.nextInt(50)).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/** Compresses the data with the given level, checks that it decompresses to the same data and returns the compressed size. */
+	private static int compress(byte[] data, CompressionLevel level) throws IOException {
+		CompressorOutput out = new CompressorOutput();
+		RefPackCompression.compress(data, data.length, out, level);
+		
+		byte[] decompressed = new byte[data.length];
+		assertEquals(data.length, RefPackCompression.decompressValidated(out.data, 0, out.lengthInBytes, decompressed, 0, data.length));
+		assertArrayEquals(data, decompressed);
+		return out.lengthInBytes;
+	}
+	
+	private static void checkLevels(byte[] data) throws IOException {
+		int fastSize = compress(data, CompressionLevel.FAST);
+		int defaultSize = compress(data, CompressionLevel.DEFAULT);
+		int maxSize = compress(data, CompressionLevel.MAX);
+		
+		assertTrue(maxSize <= defaultSize, "MAX (" + maxSize + " bytes) is bigger than DEFAULT (" + defaultSize + " bytes)");
+		assertTrue(defaultSize < data.length && fastSize < data.length, "The data was not compressed");
+	}
+	
+	@Test
+	public void testMaxIsNotBiggerOnLowEntropyText() throws IOException {
+		checkLevels(createLowEntropyText(100000, "acgt", 1));
+		checkLevels(createLowEntropyText(100000, "abcdefg", 2));
+	}
+	
+	@Test
+	public void testMaxIsNotBiggerOnRepeatedText() throws IOException {
+		checkLevels(createRepeatedText(100000, 3));
+	}
+	
+	@Test
+	public void testSmallInputs() throws IOException {
+		for (int length = 0; length < 40; length++) {
+			byte[] data = createLowEntropyText(length, "ab", length);
+			for (CompressionLevel level : CompressionLevel.values()) {
+				compress(data, level);
+			}
+		}
+	}
+	
+	private static ByteBuffer toDirectBuffer(byte[] data, int length) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		buffer.put(data, 0, length);
+		return buffer;
+	}
+	
+	@Test
+	public void testDecompressRoundTrip() throws IOException {
+		byte[] data = createRepeatedText(50000, 4);
+		CompressorOutput out = new CompressorOutput();
+		RefPackCompression.compress(data, data.length, out);
+		
+		byte[] decompressed = new byte[data.length + 3];
+		assertEquals(data.length, RefPackCompression.decompress(out.data, 0, out.lengthInBytes, decompressed, 3));
+		assertArrayEquals(data, Arrays.copyOfRange(decompressed, 3, decompressed.length));
+		
+		decompressed = new byte[data.length];
+		assertEquals(data.length, RefPackCompression.decompress(toDirectBuffer(out.data, out.lengthInBytes), 0, out.lengthInBytes, decompressed, 0));
+		assertArrayEquals(data, decompressed);
+		
+		decompressed = new byte[data.length];
+		RefPackCompression.decompressFast(out.data, decompressed);
+		assertArrayEquals(data, decompressed);
+	}
+	
+	/** The tokens write 4 bytes, but the header says there are only 2: nothing must be written past them. */
+	@Test
+	public void testOutputLongerThanHeader() {
+		byte[] data = {0x10, (byte) 0xFB, 0, 0, 2, (byte) 0xE0, 'A', 'B', 'C', 'D', (byte) 0xFC};
+		byte[] out = new byte[8];
+		
+		assertThrows(IOException.class, () -> RefPackCompression.decompress(data, 0, data.length, out, 0));
+		assertArrayEquals(new byte[8], out);
+		
+		assertThrows(IOException.class, () -> RefPackCompression.decompress(toDirectBuffer(data, data.length), 0, data.length, out, 0));
+		assertArrayEquals(new byte[8], out);
+		
+		assertThrows(IOException.class, () -> RefPackCompression.decompressFast(data, out));
+		assertArrayEquals(new byte[8], out);
+	}
+	
+	/** The bytes after the input range must never be decoded, even if they complete the data. */
+	@Test
+	public void testTruncatedInput() throws IOException {
+		byte[] literals = {0x10, (byte) 0xFB, 0, 0, 4, (byte) 0xE0, 'A', 'B', 'C', 'D', (byte) 0xFC};
+		assertThrows(IOException.class, () -> RefPackCompression.decompress(literals, 0, 6, new byte[4], 0));
+		assertThrows(IOException.class, () -> RefPackCompression.decompress(toDirectBuffer(literals, literals.length), 0, 6, new byte[4], 0));
+		
+		byte[] data = createRepeatedText(100000, 5);
+		CompressorOutput out = new CompressorOutput();
+		RefPackCompression.compress(data, data.length, out);
+		ByteBuffer buffer = toDirectBuffer(out.data, out.lengthInBytes);
+		
+		for (int length : new int[] {5, 6, out.lengthInBytes / 3, out.lengthInBytes / 2, out.lengthInBytes - 8}) {
+			// Decompress the whole data first, so the pooled blocks used for direct buffers contain the rest of it
+			RefPackCompression.decompress(buffer, 0, out.lengthInBytes, new byte[data.length], 0);
+			
+			assertThrows(IOException.class, () -> RefPackCompression.decompress(out.data, 0, length, new byte[data.length], 0));
+			assertThrows(IOException.class, () -> RefPackCompression.decompress(buffer, 0, length, new byte[data.length], 0));
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package sporemodder.file.filestructures;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares ChunkedMemoryStream with MemoryStream, which stores the same data in a single array.
+ * Small segments are used so most values cross the border between two segments. Values of more than one byte are
+ * encoded with a ByteBuffer and written into the MemoryStream as bytes, as some of its value writers have bugs.
+ */
+public class ChunkedMemoryStreamTest {
+
+	private static final int SEGMENT_SIZE = 16;
+
+	private static byte[] encode(int size, ByteOrder order, long value) {
+		ByteBuffer buffer = ByteBuffer.allocate(8).order(order);
+		switch (size) {
+		case 2: buffer.putShort((short) value); break;
+		case 4: buffer.putInt((int) value); break;
+		default: buffer.putLong(value); break;
+		}
+		return Arrays.copyOf(buffer.array(), size);
+	}
+
+	/** Applies the same random writes, padding and seeks to both streams. */
+	private static void writeRandomData(ChunkedMemoryStream chunked, MemoryStream expected, Random random, int operations) throws IOException {
+		for (int i = 0; i < operations; i++) {
+			long value = random.nextLong();
+			switch (random.nextInt(12)) {
+			case 0:
+				byte[] array = new byte[random.nextInt(3 * SEGMENT_SIZE)];
+				random.nextBytes(array);
+				chunked.write(array);
+				expected.write(array);
+				break;
+			case 1:
+				chunked.writeByte((int) value);
+				expected.write(new byte[] {(byte) value});
+				break;
+			case 2:
+				chunked.writeShort((int) value);
+				expected.write(encode(2, ByteOrder.BIG_ENDIAN, value));
+				break;
+			case 3:
+				chunked.writeLEShort((int) value);
+				expected.write(encode(2, ByteOrder.LITTLE_ENDIAN, value));
+				break;
+			case 4:
+				chunked.writeInt((int) value);
+				expected.write(encode(4, ByteOrder.BIG_ENDIAN, value));
+				break;
+			case 5:
+				chunked.writeLEInt((int) value);
+				expected.write(encode(4, ByteOrder.LITTLE_ENDIAN, value));
+				break;
+			case 6:
+				chunked.writeLong(value);
+				expected.write(encode(8, ByteOrder.BIG_ENDIAN, value));
+				break;
+			case 7:
+				chunked.writeLELong(value);
+				expected.write(encode(8, ByteOrder.LITTLE_ENDIAN, value));
+				break;
+			case 8:
+				double number = random.nextGaussian() * 1e6;
+				chunked.writeDouble(number);
+				expected.write(encode(8, ByteOrder.BIG_ENDIAN, Double.doubleToLongBits(number)));
+				break;
+			case 9:
+				int pad = random.nextInt(2 * SEGMENT_SIZE);
+				chunked.writePadding(pad);
+				expected.writePadding(pad);
+				break;
+			default:
+				// Go back to overwrite existing data, or to the end to append
+				long position = random.nextBoolean() ? chunked.length() : random.nextInt((int) chunked.length() + 1);
+				chunked.seek(position);
+				expected.seek(position);
+				break;
+			}
+			assertEquals(expected.length(), chunked.length());
+			assertEquals(expected.getFilePointer(), chunked.getFilePointer());
+		}
+	}
+
+	/** Reads values at random positions of the stream and compares them with the expected data. */
+	private static void checkRandomReads(ChunkedMemoryStream stream, byte[] data, Random random, int count) throws IOException {
+		ByteBuffer be = ByteBuffer.wrap(data);
+		ByteBuffer le = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++) {
+			int position = random.nextInt(data.length - 7);
+			stream.seek(position);
+			switch (random.nextInt(8)) {
+			case 0: assertEquals(data[position], stream.readByte()); break;
+			case 1: assertEquals(be.getShort(position), stream.readShort()); break;
+			case 2: assertEquals(le.getShort(position) & 0xFFFF, stream.readLEUShort()); break;
+			case 3: assertEquals(be.getInt(position), stream.readInt()); break;
+			case 4: assertEquals(le.getInt(position), stream.readLEInt()); break;
+			case 5: assertEquals(be.getLong(position), stream.readLong()); break;
+			case 6: assertEquals(le.getLong(position), stream.readLELong()); break;
+			default:
+				byte[] array = new byte[random.nextInt(data.length - position + 1)];
+				stream.read(array);
+				assertArrayEquals(Arrays.copyOfRange(data, position, position + array.length), array);
+				break;
+			}
+		}
+	}
+
+	private static byte[] createRandomStream(ChunkedMemoryStream chunked, long seed) throws IOException {
+		MemoryStream expected = new MemoryStream();
+		writeRandomData(chunked, expected, new Random(seed), 2000);
+		byte[] data = expected.toByteArray();
+		assertArrayEquals(data, chunked.toByteArray());
+		return data;
+	}
+
+	@Test
+	public void testWritesMatchMemoryStream() throws IOException {
+		for (long seed = 0; seed < 4; seed++) {
+			try (ChunkedMemoryStream chunked = new ChunkedMemoryStream(SEGMENT_SIZE)) {
+				byte[] data = createRandomStream(chunked, seed);
+				assertTrue(data.length > 10 * SEGMENT_SIZE, "The data should span many segments");
+				checkRandomReads(chunked, data, new Random(seed), 1000);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteIntoAndWriteToFile() throws IOException {
+		try (ChunkedMemoryStream chunked = new ChunkedMemoryStream(SEGMENT_SIZE)) {
+			byte[] data = createRandomStream(chunked, 10);
+
+			MemoryStream out = new MemoryStream();
+			chunked.writeInto(out);
+			assertArrayEquals(data, out.toByteArray());
+
+			File file = File.createTempFile("chunked", ".bin");
+			file.deleteOnExit();
+			// Existing data must be replaced, even if it is longer
+			Files.write(file.toPath(), new byte[data.length + 100]);
+			chunked.writeToFile(file);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSlices() throws IOException {
+		try (ChunkedMemoryStream chunked = new ChunkedMemoryStream(SEGMENT_SIZE)) {
+			byte[] data = createRandomStream(chunked, 20);
+			Random random = new Random(20);
+			for (int i = 0; i < 200; i++) {
+				int offset = random.nextInt(data.length - 8);
+				int length = 8 + random.nextInt(data.length - offset - 8 + 1);
+				ChunkedMemoryStream slice = chunked.slice(offset, length);
+				byte[] expected = Arrays.copyOfRange(data, offset, offset + length);
+
+				assertTrue(slice.isReadOnly());
+				assertEquals(0, slice.getFilePointer());
+				checkRandomReads(slice, expected, random, 10);
+
+				slice.seek(0);
+				byte[] array = new byte[length];
+				slice.read(array);
+				assertArrayEquals(expected, array);
+				assertThrows(EOFException.class, () -> slice.readByte());
+				assertThrows(IOException.class, () -> slice.writeByte(0));
+
+				// Slices of slices are relative to the slice
+				int subOffset = random.nextInt(length);
+				ChunkedMemoryStream subSlice = slice.slice(subOffset, length - subOffset);
+				byte[] subArray = new byte[length - subOffset];
+				subSlice.read(subArray);
+				assertArrayEquals(Arrays.copyOfRange(expected, subOffset, length), subArray);
+				assertThrows(EOFException.class, () -> slice.slice(subOffset, length - subOffset + 1));
+			}
+		}
+	}
+
+	@Test
+	public void testSetLength() throws IOException {
+		try (ChunkedMemoryStream chunked = new ChunkedMemoryStream(SEGMENT_SIZE)) {
+			byte[] data = createRandomStream(chunked, 30);
+			int shortLength = 5 * SEGMENT_SIZE + 3;
+
+			chunked.setLength(shortLength);
+			assertArrayEquals(Arrays.copyOf(data, shortLength), chunked.toByteArray());
+
+			// Growing again reads zeros, not the old data
+			chunked.setLength(data.length);
+			assertArrayEquals(Arrays.copyOf(data, shortLength), Arrays.copyOf(chunked.toByteArray(), shortLength));
+			assertArrayEquals(new byte[data.length - shortLength], Arrays.copyOfRange(chunked.toByteArray(), shortLength, data.length));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package sporemodder.file.filestructures;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+public class FileStreamTest {
+
+	private static final int FILE_SIZE = 64;
+	private static final int SLICE_OFFSET = 16;
+	private static final int SLICE_LENGTH = 16;
+
+	/** Creates a temporary file where each byte is its own position. */
+	private static File createFile() throws IOException {
+		byte[] data = new byte[FILE_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		File file = File.createTempFile("filestream", ".bin");
+		file.deleteOnExit();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static FileStream openStream(File file, boolean isBuffered) throws IOException {
+		return isBuffered ? new FileStream(file, 8, 32) : new FileStream(file, "r");
+	}
+
+	private static byte[] expectedBytes(int offset, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (offset + i);
+		}
+		return data;
+	}
+
+	private static void checkSliceContents(boolean isBuffered) throws IOException {
+		File file = createFile();
+		try (FileStream stream = openStream(file, isBuffered);
+				FileStream slice = stream.slice(SLICE_OFFSET, SLICE_LENGTH)) {
+			byte[] data = new byte[SLICE_LENGTH];
+			slice.read(data);
+			assertArrayEquals(expectedBytes(SLICE_OFFSET, SLICE_LENGTH), data);
+
+			slice.seek(SLICE_LENGTH - 8);
+			assertEquals(Long.reverseBytes(0x18191A1B1C1D1E1FL), slice.readLELong());
+		}
+		file.delete();
+	}
+
+	private static void checkReadsPastSliceEnd(boolean isBuffered) throws IOException {
+		File file = createFile();
+		try (FileStream stream = openStream(file, isBuffered);
+				FileStream slice = stream.slice(SLICE_OFFSET, SLICE_LENGTH)) {
+			assertThrows(EOFException.class, () -> slice.read(new byte[2 * SLICE_LENGTH]));
+
+			slice.seek(SLICE_LENGTH - 4);
+			assertThrows(EOFException.class, () -> slice.readLELong());
+
+			slice.seek(SLICE_LENGTH - 1);
+			assertEquals(SLICE_OFFSET + SLICE_LENGTH - 1, slice.readByte());
+			assertThrows(EOFException.class, () -> slice.readByte());
+
+			assertThrows(EOFException.class, () -> slice.readAt(SLICE_LENGTH - 2, ByteBuffer.allocate(4)));
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testSliceContents() throws IOException {
+		checkSliceContents(false);
+		checkSliceContents(true);
+	}
+
+	@Test
+	public void testReadsPastSliceEnd() throws IOException {
+		checkReadsPastSliceEnd(false);
+		checkReadsPastSliceEnd(true);
+	}
+
+	@Test
+	public void testBufferedReadsStopAtSliceEnd() throws IOException {
+		// Sequential reads fill the buffer ahead; the bytes after the slice must not be returned
+		File file = createFile();
+		try (FileStream stream = openStream(file, true);
+				FileStream slice = stream.slice(SLICE_OFFSET, SLICE_LENGTH)) {
+			byte[] data = new byte[SLICE_LENGTH];
+			for (int i = 0; i < SLICE_LENGTH; i++) {
+				data[i] = slice.readByte();
+			}
+			assertArrayEquals(expectedBytes(SLICE_OFFSET, SLICE_LENGTH), data);
+			assertThrows(EOFException.class, () -> slice.readInt());
+
+			slice.seek(0);
+			assertThrows(EOFException.class, () -> slice.read(new byte[SLICE_LENGTH + 1]));
+		}
+		file.delete();
+	}
+}